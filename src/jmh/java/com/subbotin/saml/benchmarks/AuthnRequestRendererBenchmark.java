@@ -0,0 +1,52 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.AuthnRequestRenderer;
+import com.subbotin.saml.saml.SamlRequest;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code createSamlRequest} with the precompiled AuthnRequest template against the OpenSAML object tree.
+ * The renderer is chosen through {@code authnRequest.renderer} of a temporary settings directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthnRequestRendererBenchmark {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+
+    @Param({"template", "object-tree"})
+    public String renderer;
+
+    private SamlService samlService;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkResources.useSettingsDirectory("example.com", "https://idp.example.com/sso/saml", "unused",
+                AuthnRequestRenderer.SETTING + "=" + renderer);
+        SamlSystemUtils.init();
+        samlService = new SamlServiceImpl();
+    }
+
+    @Benchmark
+    public SamlRequest createSamlRequest() {
+        return samlService.createSamlRequest(ACS_URL, null);
+    }
+}
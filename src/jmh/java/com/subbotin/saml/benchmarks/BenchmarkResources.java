@@ -0,0 +1,66 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.TenantRegistry;
+import org.apache.cxf.helpers.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class BenchmarkResources {
+
+    static String read(String path) throws IOException {
+        try (InputStream input = BenchmarkResources.class.getClassLoader().getResourceAsStream(path)) {
+            return IOUtils.toString(input, "UTF-8");
+        }
+    }
+
+    /**
+     * Points {@link TenantRegistry#getInstance()} at a temporary settings directory with one tenant, must be
+     * called before anything touches the registry in the benchmark JVM.
+     */
+    static Path useSettingsDirectory(String domain, String samlEndpoint, String certificate, String... commonSettings) throws IOException {
+        Path directory = Files.createTempDirectory("saml-benchmark");
+        directory.toFile().deleteOnExit();
+        StringBuilder common = new StringBuilder("acsUrl=https://realtimeboard.com/sso/acs\nwarmup.iterations=0\n");
+        for (String setting : commonSettings) {
+            common.append(setting).append('\n');
+        }
+        write(directory.resolve(TenantRegistry.COMMON_PROPERTIES), common.toString());
+        write(directory.resolve(domain + ".properties"), "samlEndpoint=" + samlEndpoint + "\nx509Certificate=" + certificate + "\n");
+        System.setProperty(TenantRegistry.SETTINGS_DIRECTORY_PROPERTY, directory.toString());
+        return directory;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+        file.toFile().deleteOnExit();
+    }
+
+    /**
+     * FirstName and LastName like a regular IdP sends them plus a multi-valued "Groups" attribute, so
+     * the payload grows from a minimal assertion up to hundreds of attribute values.
+     */
+    static Map<String, List<String>> attributes(int groupValues) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("FirstName", Collections.singletonList("Alexey"));
+        attributes.put("LastName", Collections.singletonList("Subbotin"));
+        if (groupValues > 0) {
+            List<String> groups = new ArrayList<>(groupValues);
+            for (int i = 0; i < groupValues; i++) {
+                groups.add("cn=group-" + i + ",ou=groups,dc=example,dc=com");
+            }
+            attributes.put("Groups", groups);
+        }
+        return attributes;
+    }
+
+    private BenchmarkResources() {}
+}
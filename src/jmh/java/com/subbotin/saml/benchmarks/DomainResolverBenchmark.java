@@ -0,0 +1,65 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.DomainResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tenant lookup by email with the suffix-matching {@link DomainResolver} against the previous
+ * {@code substring} plus exact {@link HashMap} lookup, for an exact hit, a mixed-case subdomain (which
+ * the previous lookup could not resolve) and an unknown domain, across index sizes. Run with
+ * {@code -prof gc} to see that the resolver does not allocate.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="DomainResolverBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomainResolverBenchmark {
+    @Param({"100", "10000", "100000", "1000000"})
+    public int domains;
+
+    @Param({"user@tenant42.example.com", "First.Last@EU.Mail.Tenant42.Example.com", "user@unknown.org"})
+    public String email;
+
+    private DomainResolver<String> domainResolver;
+    private Map<String, String> hashMap;
+
+    @Setup
+    public void setUp() {
+        DomainResolver.Builder<String> builder = new DomainResolver.Builder<>();
+        hashMap = new HashMap<>();
+        for (int i = 0; i < domains; i++) {
+            String domain = "tenant" + i + ".example.com";
+            builder.putIfAbsent(domain, domain);
+            hashMap.put(domain, domain);
+        }
+        domainResolver = builder.build();
+    }
+
+    @Benchmark
+    public String domainResolver() {
+        return domainResolver.get(email);
+    }
+
+    @Benchmark
+    public String substringAndHashMap() {
+        return hashMap.get(email.substring(email.lastIndexOf("@") + 1));
+    }
+}
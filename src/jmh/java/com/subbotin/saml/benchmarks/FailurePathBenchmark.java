@@ -0,0 +1,93 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.utils.FailureLog;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ACS requests that are rejected against the one that is accepted: an expired response fails after
+ * parsing, a response of another IdP fails on the signature. A failure is handed to {@link FailureLog} as
+ * {@code SamlWorkerPool} does, with a no-op target so the output of JMH stays readable.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="FailurePathBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FailurePathBenchmark {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+    private static final String SAML_ENDPOINT = "https://idp.example.com/sso/saml";
+    private static final String EMAIL = "user@example.com";
+
+    private SamlService samlService;
+    private String certificate;
+    private String validResponse;
+    private String expiredResponse;
+    private SamlResponse foreignResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        SamlResponseGenerator samlResponseGenerator = SamlResponseGenerator.createSelfSigned();
+        certificate = samlResponseGenerator.getCertificateBase64();
+        BenchmarkResources.useSettingsDirectory("example.com", SAML_ENDPOINT, certificate);
+        SamlSystemUtils.init();
+        samlService = new SamlServiceImpl();
+        validResponse = samlResponseGenerator.generateBase64(ACS_URL, EMAIL, Collections.emptyMap(), DateTime.now(), true);
+        expiredResponse = samlResponseGenerator.generateBase64(ACS_URL, EMAIL, Collections.emptyMap(), DateTime.now().minusDays(1), true);
+        foreignResponse = samlService.createSamlResponse(SamlResponseGenerator.createSelfSigned()
+                .generateBase64(ACS_URL, EMAIL, Collections.emptyMap(), DateTime.now(), true));
+    }
+
+    @Benchmark
+    public SamlResponse accept() {
+        SamlResponse samlResponse = samlService.createSamlResponse(validResponse);
+        samlService.checkSignature(samlResponse, certificate);
+        return samlResponse;
+    }
+
+    @Benchmark
+    public RuntimeException rejectExpired() {
+        try {
+            samlService.createSamlResponse(expiredResponse);
+            throw new IllegalStateException("Expired response is accepted");
+        } catch (RuntimeException e) {
+            return logged(e);
+        }
+    }
+
+    @Benchmark
+    public RuntimeException rejectForeignSignature() {
+        try {
+            samlService.checkSignature(foreignResponse, certificate);
+            throw new IllegalStateException("Response of another IdP is accepted");
+        } catch (RuntimeException e) {
+            return logged(e);
+        }
+    }
+
+    private static RuntimeException logged(RuntimeException e) {
+        FailureLog.getInstance().error(NOPLogger.NOP_LOGGER, FailureLog.getReason(e), e);
+        return e;
+    }
+}
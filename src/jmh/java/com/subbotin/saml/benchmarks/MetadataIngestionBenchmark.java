@@ -0,0 +1,123 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.MetadataCatalog;
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.xml.MetadataReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a synthetic federation aggregate into a {@link MetadataCatalog}. Every IdP has a distinct signing
+ * and encryption certificate, UI info, an organization and a contact, so the file is close to a real
+ * aggregate byte for byte. Setup prints how much heap the resulting catalog retains.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="MetadataIngestionBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetadataIngestionBenchmark {
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    @Param({"10", "50"})
+    public int megabytes;
+
+    private Path file;
+    private MetadataReader metadataReader;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("aggregate", ".xml");
+        file.toFile().deleteOnExit();
+        int idps = writeAggregate(file, (long) megabytes * BYTES_IN_MB, SamlResponseGenerator.createSelfSigned().getCertificateBase64());
+        metadataReader = new MetadataReader();
+
+        long before = usedHeap();
+        MetadataCatalog metadataCatalog = ingest();
+        long retained = usedHeap() - before;
+        System.out.printf("%nAggregate of %d IdPs, %.1f MB, catalog of %d IdPs retains %.1f MB%n",
+                idps, Files.size(file) / (double) BYTES_IN_MB, metadataCatalog.size(), retained / (double) BYTES_IN_MB);
+    }
+
+    @Benchmark
+    public MetadataCatalog ingest() throws Exception {
+        MetadataCatalog.Builder builder = new MetadataCatalog.Builder();
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            metadataReader.read(input, builder);
+        }
+        return builder.build();
+    }
+
+    private static int writeAggregate(Path file, long size, String certificate) throws IOException {
+        int idps = 0;
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+                    + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\""
+                    + " xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\" Name=\"urn:example:federation\">\n");
+            long written = 0;
+            while (written < size) {
+                String entity = entity(idps++, certificate);
+                writer.write(entity);
+                written += entity.length();
+            }
+            writer.write("</md:EntitiesDescriptor>\n");
+        }
+        return idps;
+    }
+
+    private static String entity(int index, String certificate) {
+        String domain = "org" + index + ".example.edu";
+        String suffix = String.format("%08x", index);
+        String signing = certificate.substring(0, certificate.length() - 12) + suffix + certificate.substring(certificate.length() - 4);
+        String encryption = suffix + certificate.substring(8);
+        return "<md:EntityDescriptor entityID=\"https://idp." + domain + "/idp/shibboleth\">\n"
+                + "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+                + "<md:Extensions><shibmd:Scope regexp=\"false\">" + domain + "</shibmd:Scope>\n"
+                + "<mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">Organization " + index + "</mdui:DisplayName>"
+                + "<mdui:Description xml:lang=\"en\">Identity provider of organization " + index + " for staff and students</mdui:Description>"
+                + "<mdui:Logo height=\"16\" width=\"16\">https://idp." + domain + "/logo.png</mdui:Logo></mdui:UIInfo>\n"
+                + "<mdui:DiscoHints><mdui:DomainHint>" + domain + "</mdui:DomainHint></mdui:DiscoHints></md:Extensions>\n"
+                + "<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n" + signing
+                + "\n</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n"
+                + "<md:KeyDescriptor use=\"encryption\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n" + encryption
+                + "\n</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n"
+                + "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://idp." + domain + "/idp/profile/SAML2/POST/SSO\"/>\n"
+                + "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"https://idp." + domain + "/idp/profile/SAML2/Redirect/SSO\"/>\n"
+                + "</md:IDPSSODescriptor>\n"
+                + "<md:Organization><md:OrganizationName xml:lang=\"en\">Organization " + index + "</md:OrganizationName>"
+                + "<md:OrganizationDisplayName xml:lang=\"en\">Organization " + index + "</md:OrganizationDisplayName>"
+                + "<md:OrganizationURL xml:lang=\"en\">https://www." + domain + "/</md:OrganizationURL></md:Organization>\n"
+                + "<md:ContactPerson contactType=\"technical\"><md:GivenName>IT</md:GivenName>"
+                + "<md:EmailAddress>mailto:it@" + domain + "</md:EmailAddress></md:ContactPerson>\n"
+                + "</md:EntityDescriptor>\n";
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,65 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.metrics.LatencyHistogram;
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.metrics.Stage;
+import com.subbotin.saml.metrics.StageTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording overhead of the pipeline metrics: one histogram sample, and a whole ACS request with all of
+ * its stages timed and recorded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final Stage[] ACS_STAGES = {Stage.ACS_DECODE, Stage.ACS_PREFILTER, Stage.ACS_PARSE, Stage.ACS_SCHEMA,
+            Stage.ACS_STATUS, Stage.ACS_ASSERTION, Stage.ACS_CONDITIONS, Stage.ACS_ATTRIBUTES};
+
+    private Metrics metrics;
+    private LatencyHistogram histogram;
+
+    @Setup
+    public void setUp() {
+        metrics = new Metrics();
+        histogram = new LatencyHistogram();
+    }
+
+    @Benchmark
+    public LatencyHistogram recordSample() {
+        histogram.record(1234567);
+        return histogram;
+    }
+
+    @Benchmark
+    public StageTimer recordAcsRequest() {
+        StageTimer timer = metrics.startTimer();
+        for (Stage stage : ACS_STAGES) {
+            timer.stage(stage);
+        }
+        timer.finish("example.com");
+        return timer;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public StageTimer recordAcsRequestConcurrent() {
+        return recordAcsRequest();
+    }
+}
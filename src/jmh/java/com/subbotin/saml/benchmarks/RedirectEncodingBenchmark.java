@@ -0,0 +1,63 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The unsigned redirect of a login: Base64 string of {@code createSamlRequest} passed through
+ * {@link URIBuilder}, as the servlet did before, against {@code getRedirectUrl} that encodes into the
+ * precomputed endpoint prefix. Run with {@code -prof gc} to see the allocation per login.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="RedirectEncodingBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedirectEncodingBenchmark {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+    private static final String SAML_ENDPOINT = "https://idp.example.com/sso/saml?tenant=realtimeboard";
+
+    private SamlService samlService;
+    private SamlSettings samlSettings;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkResources.useSettingsDirectory("example.com", SAML_ENDPOINT, "unused");
+        SamlSystemUtils.init();
+        samlService = new SamlServiceImpl();
+        samlSettings = new SamlSettings(SAML_ENDPOINT, "unused");
+    }
+
+    @Benchmark
+    public String uriBuilder() throws URISyntaxException {
+        URIBuilder uriBuilder = new URIBuilder(SAML_ENDPOINT);
+        uriBuilder.setCharset(StandardCharsets.UTF_8);
+        uriBuilder.addParameter("SAMLRequest", samlService.createSamlRequest(ACS_URL, null).getRequestBase64());
+        return uriBuilder.build().toString();
+    }
+
+    @Benchmark
+    public String redirectUrl() {
+        return samlService.getRedirectUrl(samlSettings, ACS_URL, null);
+    }
+}
@@ -0,0 +1,141 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.SamlRequest;
+import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.services.SamlSystemService;
+import com.subbotin.saml.services.SamlSystemServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.common.SAMLException;
+import org.opensaml.xml.XMLObject;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of the login (AuthnRequest) and ACS (Response) pipelines. Responses are signed by
+ * {@link SamlResponseGenerator} because the captured fixture in {@code xml/correct.response.xml} has long
+ * expired; the fixture is still used for the parse-only benchmark. {@code groupValues} scales the payload
+ * from a minimal assertion up to hundreds of attribute values.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="SamlPipelineBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamlPipelineBenchmark {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+    private static final String SAML_ENDPOINT = "https://idp.example.com/sso/saml";
+    private static final String EMAIL = "user@example.com";
+
+    @Param({"0", "10", "100", "500"})
+    public int groupValues;
+
+    private SamlService samlService;
+    private SamlSystemService samlSystemService;
+    private String certificate;
+    private String encodedResponse;
+    private String fixtureResponse;
+    private byte[] fixtureBytes;
+    private byte[] junkBytes;
+    private String requestBase64;
+    private SamlResponse parsedResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        SamlResponseGenerator samlResponseGenerator = SamlResponseGenerator.createSelfSigned();
+        certificate = samlResponseGenerator.getCertificateBase64();
+        BenchmarkResources.useSettingsDirectory("example.com", SAML_ENDPOINT, certificate);
+
+        SamlSystemUtils.init();
+        samlService = new SamlServiceImpl();
+        samlSystemService = new SamlSystemServiceImpl();
+        encodedResponse = samlResponseGenerator.generateBase64(ACS_URL, EMAIL, BenchmarkResources.attributes(groupValues),
+                DateTime.now(), true);
+        fixtureResponse = BenchmarkResources.read("xml/correct.response.xml");
+        fixtureBytes = fixtureResponse.getBytes(StandardCharsets.UTF_8);
+        junkBytes = fixtureResponse.replace("samlp:Response", "samlp:ArtifactResponse").getBytes(StandardCharsets.UTF_8);
+        requestBase64 = samlService.createSamlRequest(ACS_URL, null).getRequestBase64();
+        parsedResponse = samlService.createSamlResponse(encodedResponse);
+    }
+
+    @Benchmark
+    public SamlRequest createSamlRequest() {
+        return samlService.createSamlRequest(ACS_URL, null);
+    }
+
+    @Benchmark
+    public URI getUriRequest() {
+        return samlService.getUriRequest(SAML_ENDPOINT, requestBase64, null);
+    }
+
+    @Benchmark
+    public SamlResponse createSamlResponse() {
+        return samlService.createSamlResponse(encodedResponse);
+    }
+
+    @Benchmark
+    public SamlResponse checkSignature() {
+        samlService.checkSignature(parsedResponse, certificate);
+        return parsedResponse;
+    }
+
+    @Benchmark
+    public String getUserName() {
+        return samlService.getUserName(new SamlResponse(parsedResponse.getResponse(), parsedResponse.getAssertion(),
+                samlSystemService.getAttributeValues(parsedResponse.getAssertion()), parsedResponse.getSubjectNameId()));
+    }
+
+    @Benchmark
+    public int getAllAttributeValues() {
+        return samlSystemService.getAttributeValues(parsedResponse.getAssertion()).entrySet().size();
+    }
+
+    @Benchmark
+    public XMLObject parseFixture() throws SAMLException {
+        return samlSystemService.convertStringToXmlObject(fixtureResponse);
+    }
+
+    @Benchmark
+    public byte[] prefilterFixture() throws SAMLException {
+        samlSystemService.prefilterResponse(fixtureBytes, 0, fixtureBytes.length);
+        return fixtureBytes;
+    }
+
+    @Benchmark
+    public SAMLException prefilterWrongRoot() {
+        try {
+            samlSystemService.prefilterResponse(junkBytes, 0, junkBytes.length);
+            return null;
+        } catch (SAMLException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public String acsFlow() {
+        SamlResponse samlResponse = samlService.createSamlResponse(encodedResponse);
+        SamlSettings samlSettings = samlService.getTrustedSamlSettings(samlResponse);
+        samlService.checkSignature(samlResponse, samlSettings.getX509Certificate());
+        return samlService.getUserName(samlResponse);
+    }
+}
@@ -0,0 +1,69 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.common.MappedSessionUserStore;
+import com.subbotin.saml.common.User;
+import com.subbotin.saml.security.SessionTokenCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What resolving the user of a request costs in the {@code token} mode of sessions, for a valid token and
+ * for a forged one that fails the GCM tag, against a lookup of the {@code table} mode in memory.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="SessionTokenBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionTokenBenchmark {
+    private static final String SESSION_ID = "Qm9hcmQgb2YgZGlyZWN0b3Jz";
+
+    private SessionTokenCodec codec;
+    private MappedSessionUserStore store;
+    private String token;
+    private String forgedToken;
+
+    @Setup
+    public void setUp() {
+        codec = new SessionTokenCodec(Collections.singletonMap(1, new SecretKeySpec(new byte[32], "AES")), 1);
+        User user = new User("user@example.com", "User Name");
+        long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        token = codec.encode(user, expiresAt);
+        char[] forged = token.toCharArray();
+        forged[forged.length - 1] = forged[forged.length - 1] == 'A' ? 'B' : 'A';
+        forgedToken = new String(forged);
+
+        store = new MappedSessionUserStore(MappedSessionUserStore.DEFAULT_SLOTS, MappedSessionUserStore.DEFAULT_STRIPES);
+        store.put(SESSION_ID, user, expiresAt);
+    }
+
+    @Benchmark
+    public User decodeToken() {
+        return codec.decode(token, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public User rejectForgedToken() {
+        return codec.decode(forgedToken, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public User lookUpTable() {
+        return store.get(SESSION_ID);
+    }
+}
@@ -0,0 +1,68 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.security.CertificateUtils;
+import com.subbotin.saml.security.SignatureValidatorCache;
+import org.apache.cxf.helpers.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.Validator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of getting a signature validator for a tenant certificate: parsing the certificate
+ * on every ACS hit (the previous behaviour) against the fingerprint-keyed cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureValidatorCacheBenchmark {
+    private String certificate;
+    private SignatureValidatorCache signatureValidatorCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("certs/correct.key.pem")) {
+            certificate = IOUtils.toString(input);
+        }
+        signatureValidatorCache = new SignatureValidatorCache();
+    }
+
+    @Benchmark
+    public Validator<Signature> parseEveryTime() throws CertificateException {
+        Certificate cert = CertificateUtils.getCertificate(certificate);
+        BasicCredential credential = new BasicCredential();
+        credential.setPublicKey(cert.getPublicKey());
+        return new SignatureValidator(credential);
+    }
+
+    @Benchmark
+    public Validator<Signature> cached() throws CertificateException {
+        return signatureValidatorCache.getValidator(certificate);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Validator<Signature> cachedConcurrent() throws CertificateException {
+        return signatureValidatorCache.getValidator(certificate);
+    }
+}
@@ -0,0 +1,93 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.security.CertificateUtils;
+import com.subbotin.saml.security.SignatureEngine;
+import com.subbotin.saml.services.SamlSystemService;
+import com.subbotin.saml.services.SamlSystemServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.validation.ValidationException;
+import org.opensaml.xml.validation.Validator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of the Response and Assertion signatures of one login by OpenSAML's validator against the
+ * pooled JCA engine, for the algorithms IdPs sign with. Each invocation gets a freshly parsed response,
+ * because xmlsec keeps the canonical {@code SignedInfo} of a signature it has already checked.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="SignatureVerificationBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureVerificationBenchmark {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+    private static final String EMAIL = "user@example.com";
+
+    @Param({"RSA_SHA1", "RSA_SHA256", "ECDSA_SHA256"})
+    public String algorithm;
+
+    @Param({"OPENSAML", "POOLED"})
+    public SignatureEngine engine;
+
+    private SamlSystemService samlSystemService;
+    private String xml;
+    private Validator<Signature> validator;
+    private Response response;
+
+    @Setup
+    public void setUp() throws Exception {
+        SamlSystemUtils.init();
+        SamlResponseGenerator samlResponseGenerator = createGenerator(algorithm);
+        samlSystemService = new SamlSystemServiceImpl();
+        xml = samlResponseGenerator.generate(ACS_URL, EMAIL, BenchmarkResources.attributes(10), DateTime.now(), true);
+        validator = engine.createValidator(CertificateUtils.getCertificate(samlResponseGenerator.getCertificateBase64()).getPublicKey());
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() throws Exception {
+        response = (Response) samlSystemService.convertStringToXmlObject(xml);
+    }
+
+    @Benchmark
+    public Response verifyResponseAndAssertion() throws ValidationException {
+        validator.validate(response.getSignature());
+        validator.validate(response.getAssertions().get(0).getSignature());
+        return response;
+    }
+
+    private static SamlResponseGenerator createGenerator(String algorithm) throws Exception {
+        switch (algorithm) {
+            case "RSA_SHA1":
+                return SamlResponseGenerator.createSelfSigned("RSA", 2048, "SHA1withRSA",
+                        SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureConstants.ALGO_ID_DIGEST_SHA1);
+            case "RSA_SHA256":
+                return SamlResponseGenerator.createSelfSigned();
+            case "ECDSA_SHA256":
+                return SamlResponseGenerator.createSelfSigned("EC", 256, "SHA256withECDSA",
+                        SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, SignatureConstants.ALGO_ID_DIGEST_SHA256);
+            default:
+                throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        }
+    }
+}
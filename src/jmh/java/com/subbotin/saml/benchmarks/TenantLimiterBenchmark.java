@@ -0,0 +1,67 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.saml.TenantLimits;
+import com.subbotin.saml.security.TenantLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link TenantLimiter} adds to an ACS request: a token of the bucket of the tenant and a place in its
+ * bulkhead, with limits that admit every request, and the rejection of a tenant over its rate. With one
+ * tenant every thread contends for the same stripe, with many tenants they are spread over the stripes.
+ * Pass {@code -t} with the number of cores of the target host to see the cost under contention.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="TenantLimiterBenchmark -t 8 -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class TenantLimiterBenchmark {
+    @Param({"1", "1000"})
+    public int tenants;
+
+    private String[] domains;
+    private TenantLimiter admitting;
+    private TenantLimiter rejecting;
+
+    @Setup
+    public void setUp() {
+        domains = new String[tenants];
+        for (int i = 0; i < tenants; i++) {
+            domains[i] = "tenant" + i + ".example.com";
+        }
+        admitting = new TenantLimiter(tenant -> new TenantLimits(1e9, 1e9, 1 << 20), TenantLimiter.DEFAULT_STRIPES);
+        rejecting = new TenantLimiter(tenant -> new TenantLimits(1e-6, 1, 0), TenantLimiter.DEFAULT_STRIPES);
+    }
+
+    @Benchmark
+    public long admit() {
+        String tenant = domains[ThreadLocalRandom.current().nextInt(domains.length)];
+        long retryAfterSeconds = admitting.tryAcquire(tenant);
+        TenantLimiter.Permit permit = admitting.tryEnterVerification(tenant);
+        permit.release();
+        return retryAfterSeconds;
+    }
+
+    @Benchmark
+    public long reject() {
+        return rejecting.tryAcquire(domains[ThreadLocalRandom.current().nextInt(domains.length)]);
+    }
+}
@@ -0,0 +1,94 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.common.BoundedUserRegistry;
+import com.subbotin.saml.common.UserPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to start with a registry of {@code users} users: nine tenths of them come from the snapshot and the
+ * rest from the journal written after it, as after a crash between two snapshots. Every invocation recovers
+ * the same files into an empty registry.
+ *
+ * <pre>mvn -Pjmh test-compile exec:exec -Djmh.args="UserRecoveryBenchmark"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class UserRecoveryBenchmark {
+    @Param({"100000", "1000000"})
+    public int users;
+
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path source = Files.createTempDirectory("users");
+        directory = Files.createTempDirectory("users-copy");
+        BoundedUserRegistry registry = newRegistry();
+        UserPersistence persistence = UserPersistence.open(source, registry, 100, TimeUnit.DAYS.toMillis(1), Long.MAX_VALUE);
+        int inSnapshot = users - users / 10;
+        for (int i = 0; i < users; i++) {
+            if (i == inSnapshot) {
+                persistence.snapshot();
+            }
+            registry.login("user" + i + "@tenant" + i % 1000 + ".example.com", "User Name " + i);
+        }
+        persistence.flush();
+        copyFiles(source, directory);
+        persistence.close();
+        delete(source);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        delete(directory);
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        BoundedUserRegistry registry = newRegistry();
+        UserPersistence.recover(directory, registry);
+        return registry.getSize();
+    }
+
+    private BoundedUserRegistry newRegistry() {
+        return new BoundedUserRegistry(users, TimeUnit.DAYS.toMillis(1));
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+            for (Path file : files) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,71 @@
+package com.subbotin.saml.benchmarks;
+
+import com.subbotin.saml.common.BoundedUserRegistry;
+import com.subbotin.saml.common.User;
+import com.subbotin.saml.common.UserRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login throughput of the user registry under concurrent logins, against the unbounded map it replaced.
+ * With more distinct users than {@code maxSize} the bounded registry evicts on most logins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class UserRegistryBenchmark {
+    @Param({"1000", "1000000"})
+    private int distinctUsers;
+
+    private String[] emails;
+    private UserRegistry userRegistry;
+    private ConcurrentMap<String, User> unboundedMap;
+
+    @Setup
+    public void setUp() {
+        emails = new String[distinctUsers];
+        for (int i = 0; i < distinctUsers; i++) {
+            emails[i] = "user" + i + "@example.com";
+        }
+        userRegistry = new BoundedUserRegistry(BoundedUserRegistry.DEFAULT_MAX_SIZE, TimeUnit.DAYS.toMillis(1));
+        unboundedMap = new ConcurrentHashMap<>();
+    }
+
+    @Benchmark
+    public User boundedRegistry() {
+        String email = emails[ThreadLocalRandom.current().nextInt(distinctUsers)];
+        return userRegistry.login(email, "User");
+    }
+
+    @Benchmark
+    public User unboundedMap() {
+        String email = emails[ThreadLocalRandom.current().nextInt(distinctUsers)];
+        User user = unboundedMap.get(email);
+        if (user == null) {
+            user = new User(email, "User");
+            unboundedMap.put(email, user);
+        } else {
+            user.setName("User");
+        }
+        return user;
+    }
+}
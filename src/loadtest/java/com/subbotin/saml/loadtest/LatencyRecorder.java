@@ -0,0 +1,45 @@
+package com.subbotin.saml.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Raw latencies of one step recorded by one virtual user. Recorders of all users are merged after the
+ * run, so percentiles are exact rather than bucketed.
+ */
+final class LatencyRecorder {
+    private long[] nanos = new long[1024];
+    private int size;
+
+    void record(long value) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = value;
+    }
+
+    void addAll(LatencyRecorder other) {
+        if (size + other.size > nanos.length) {
+            nanos = Arrays.copyOf(nanos, Math.max(nanos.length * 2, size + other.size));
+        }
+        System.arraycopy(other.nanos, 0, nanos, size, other.size);
+        size += other.size;
+    }
+
+    int getCount() {
+        return size;
+    }
+
+    /**
+     * Returns the latencies at the given percentiles in nanoseconds, 0 when nothing was recorded.
+     */
+    long[] getPercentiles(double... percentiles) {
+        long[] sorted = Arrays.copyOf(nanos, size);
+        Arrays.sort(sorted);
+        long[] values = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length && size > 0; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * size) - 1;
+            values[i] = sorted[Math.max(0, Math.min(size - 1, rank))];
+        }
+        return values;
+    }
+}
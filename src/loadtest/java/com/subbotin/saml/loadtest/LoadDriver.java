@@ -0,0 +1,238 @@
+package com.subbotin.saml.loadtest;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Virtual users that log in again and again through the whole loop: the email form, the redirect to
+ * the IdP, the POST of the response to the ACS and the protected page. Every user keeps its own cookies
+ * and starts each login with a new session.
+ */
+class LoadDriver {
+    private static final Pattern FORM_ACTION = Pattern.compile("action=\"([^\"]+)\"");
+    private static final Pattern SAML_RESPONSE = Pattern.compile("name=\"SAMLResponse\" value=\"([^\"]+)\"");
+    private static final double[] PERCENTILES = {50, 95, 99, 99.9};
+    private static final double NANOS_IN_MILLISECOND = 1e6;
+
+    enum Step {
+        LOGIN, IDP, ACS, INDEX, TOTAL
+    }
+
+    private final String baseUrl;
+    private final String domain;
+    private final int users;
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    LoadDriver(String baseUrl, String domain, int users) {
+        this.baseUrl = baseUrl;
+        this.domain = domain;
+        this.users = users;
+    }
+
+    Report run(long durationMillis) throws InterruptedException, IOException {
+        errors.clear();
+        try (CloseableHttpClient httpClient = HttpClients.custom()
+                .disableRedirectHandling()
+                .setMaxConnTotal(users * 2)
+                .setMaxConnPerRoute(users * 2)
+                .build()) {
+            long deadline = System.nanoTime() + durationMillis * 1_000_000;
+            VirtualUser[] virtualUsers = new VirtualUser[users];
+            Thread[] threads = new Thread[users];
+            long start = System.nanoTime();
+            for (int i = 0; i < users; i++) {
+                virtualUsers[i] = new VirtualUser(httpClient, "user" + i + ".loadtest@" + domain, deadline);
+                threads[i] = new Thread(virtualUsers[i], "virtual-user-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Map<Step, LatencyRecorder> latencies = new EnumMap<>(Step.class);
+            for (Step step : Step.values()) {
+                LatencyRecorder merged = new LatencyRecorder();
+                for (VirtualUser virtualUser : virtualUsers) {
+                    merged.addAll(virtualUser.latencies.get(step));
+                }
+                latencies.put(step, merged);
+            }
+            Map<String, Long> errorCounts = new TreeMap<>();
+            errors.forEach((reason, count) -> errorCounts.put(reason, count.sum()));
+            return new Report(users, elapsed, latencies, errorCounts);
+        }
+    }
+
+    private final class VirtualUser implements Runnable {
+        private final CloseableHttpClient httpClient;
+        private final String email;
+        private final long deadline;
+        private final BasicCookieStore cookieStore = new BasicCookieStore();
+        private final HttpClientContext context = HttpClientContext.create();
+        private final Map<Step, LatencyRecorder> latencies = new EnumMap<>(Step.class);
+
+        VirtualUser(CloseableHttpClient httpClient, String email, long deadline) {
+            this.httpClient = httpClient;
+            this.email = email;
+            this.deadline = deadline;
+            context.setCookieStore(cookieStore);
+            for (Step step : Step.values()) {
+                latencies.put(step, new LatencyRecorder());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                cookieStore.clear();
+                long start = System.nanoTime();
+                try {
+                    if (login()) {
+                        latencies.get(Step.TOTAL).record(System.nanoTime() - start);
+                    }
+                } catch (IOException e) {
+                    countError(e.getClass().getSimpleName());
+                }
+            }
+        }
+
+        private boolean login() throws IOException {
+            HttpPost loginForm = new HttpPost(baseUrl + "/login");
+            loginForm.setEntity(form("email", email));
+            String idpUrl = redirect(Step.LOGIN, loginForm);
+            if (idpUrl == null) {
+                return false;
+            }
+
+            String idpPage = page(Step.IDP, new HttpGet(idpUrl + "&" + MockIdp.LOGIN + "=" + URLEncoder.encode(email, "UTF-8")));
+            Matcher action = FORM_ACTION.matcher(StringUtils.defaultString(idpPage));
+            Matcher samlResponse = SAML_RESPONSE.matcher(StringUtils.defaultString(idpPage));
+            if (!action.find() || !samlResponse.find()) {
+                countError(Step.IDP + " no form");
+                return false;
+            }
+
+            HttpPost acs = new HttpPost(StringEscapeUtils.unescapeHtml4(action.group(1)));
+            acs.setEntity(form("SAMLResponse", samlResponse.group(1)));
+            String indexUrl = redirect(Step.ACS, acs);
+            if (indexUrl == null) {
+                return false;
+            }
+            if (!indexUrl.endsWith("index.jsp")) {
+                countError(Step.ACS + " redirect to " + indexUrl);
+                return false;
+            }
+
+            String indexPage = page(Step.INDEX, new HttpGet(baseUrl + "/index.jsp"));
+            if (indexPage != null && !indexPage.contains(email)) {
+                countError(Step.INDEX + " not logged in");
+                return false;
+            }
+            return indexPage != null;
+        }
+
+        private String redirect(Step step, HttpUriRequest request) throws IOException {
+            long start = System.nanoTime();
+            try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+                EntityUtils.consume(response.getEntity());
+                latencies.get(step).record(System.nanoTime() - start);
+                if (response.getStatusLine().getStatusCode() != 302 || response.getFirstHeader("Location") == null) {
+                    countError(step, response);
+                    return null;
+                }
+                return response.getFirstHeader("Location").getValue();
+            }
+        }
+
+        private String page(Step step, HttpUriRequest request) throws IOException {
+            long start = System.nanoTime();
+            try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+                String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                latencies.get(step).record(System.nanoTime() - start);
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    countError(step, response);
+                    return null;
+                }
+                return body;
+            }
+        }
+
+        private void countError(Step step, HttpResponse response) {
+            countError(step + " " + response.getStatusLine().getStatusCode());
+        }
+
+        private void countError(String reason) {
+            errors.computeIfAbsent(reason, key -> new LongAdder()).increment();
+        }
+    }
+
+    private static UrlEncodedFormEntity form(String name, String value) {
+        List<NameValuePair> parameters = Collections.singletonList(new BasicNameValuePair(name, value));
+        return new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8);
+    }
+
+    static final class Report {
+        private final int users;
+        private final long elapsedNanos;
+        private final Map<Step, LatencyRecorder> latencies;
+        private final Map<String, Long> errors;
+
+        Report(int users, long elapsedNanos, Map<Step, LatencyRecorder> latencies, Map<String, Long> errors) {
+            this.users = users;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.errors = errors;
+        }
+
+        int getLogins() {
+            return latencies.get(Step.TOTAL).getCount();
+        }
+
+        Map<String, Long> getErrors() {
+            return errors;
+        }
+
+        void print(PrintStream out) {
+            out.printf("Users: %d, duration: %.1f s, logins: %d, throughput: %.1f logins/s, errors: %d%n",
+                    users, elapsedNanos / 1e9, getLogins(), getLogins() * 1e9 / elapsedNanos,
+                    errors.values().stream().mapToLong(Long::longValue).sum());
+            out.printf("%-6s %9s %9s %9s %9s %9s  (ms)%n", "step", "count", "p50", "p95", "p99", "p99.9");
+            for (Map.Entry<Step, LatencyRecorder> entry : latencies.entrySet()) {
+                long[] values = entry.getValue().getPercentiles(PERCENTILES);
+                out.printf("%-6s %9d %9.2f %9.2f %9.2f %9.2f%n", entry.getKey().name().toLowerCase(), entry.getValue().getCount(),
+                        values[0] / NANOS_IN_MILLISECOND, values[1] / NANOS_IN_MILLISECOND,
+                        values[2] / NANOS_IN_MILLISECOND, values[3] / NANOS_IN_MILLISECOND);
+            }
+            errors.forEach((reason, count) -> out.printf("%8d  %s%n", count, reason));
+        }
+    }
+}
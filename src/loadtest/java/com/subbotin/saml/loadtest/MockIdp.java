@@ -0,0 +1,145 @@
+package com.subbotin.saml.loadtest;
+
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.security.RedirectSigner;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLException;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Stands in for the IdP: reads the AuthnRequest of the Redirect binding, takes the user named in the
+ * {@value #LOGIN} parameter as authenticated and answers with the auto-submitting form of the POST
+ * binding, signed by {@link SamlResponseGenerator}. With the SP key it also requires a valid signature of
+ * the Redirect binding, like IdPs that only accept signed AuthnRequests.
+ */
+class MockIdp extends HttpServlet {
+    static final String LOGIN = "login";
+    private static final String SAML_REQUEST = "SAMLRequest";
+    private static final String SIG_ALG = "SigAlg";
+    private static final String SIGNATURE_PARAMETER = "&Signature=";
+    private static final Pattern ACS_URL = Pattern.compile("AssertionConsumerServiceURL=\"([^\"]+)\"");
+    private static final int MAX_AUTHN_REQUEST_BYTES = 64 * 1024;
+
+    private final SamlResponseGenerator samlResponseGenerator;
+    @Nullable
+    private final PublicKey spPublicKey;
+
+    MockIdp(SamlResponseGenerator samlResponseGenerator, @Nullable PublicKey spPublicKey) {
+        this.samlResponseGenerator = samlResponseGenerator;
+        this.spPublicKey = spPublicKey;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String samlRequest = request.getParameter(SAML_REQUEST);
+        String login = request.getParameter(LOGIN);
+        if (StringUtils.isEmpty(samlRequest) || StringUtils.isEmpty(login)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, SAML_REQUEST + " and " + LOGIN + " are required");
+            return;
+        }
+        if (spPublicKey != null && !isSignatureValid(request.getQueryString(), request.getParameter(SIG_ALG))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "AuthnRequest signature is missing or invalid");
+            return;
+        }
+        Matcher acsUrl = ACS_URL.matcher(inflate(Base64.decodeBase64(samlRequest)));
+        if (!acsUrl.find()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "AuthnRequest does not have AssertionConsumerServiceURL");
+            return;
+        }
+
+        String samlResponse;
+        try {
+            samlResponse = samlResponseGenerator.generateBase64(acsUrl.group(1), login, attributes(login), DateTime.now(), false);
+        } catch (SAMLException e) {
+            throw new ServletException(e);
+        }
+        response.setContentType("text/html;charset=UTF-8");
+        Writer writer = response.getWriter();
+        writer.write("<html><body onload=\"document.forms[0].submit()\"><form method=\"post\" action=\"");
+        writer.write(StringEscapeUtils.escapeHtml4(acsUrl.group(1)));
+        writer.write("\"><input type=\"hidden\" name=\"SAMLResponse\" value=\"");
+        writer.write(samlResponse);
+        writer.write("\"/></form></body></html>");
+    }
+
+    /**
+     * Checks the signed octets as they are in the query string, the {@value #LOGIN} parameter added by the
+     * driver after {@code Signature} is not covered.
+     */
+    private boolean isSignatureValid(String query, @Nullable String sigAlg) throws ServletException, IOException {
+        int start = query.indexOf(SIGNATURE_PARAMETER);
+        if (start < 0 || sigAlg == null) {
+            return false;
+        }
+        int end = query.indexOf('&', start + SIGNATURE_PARAMETER.length());
+        String value = query.substring(start + SIGNATURE_PARAMETER.length(), end < 0 ? query.length() : end);
+        for (RedirectSigner.Algorithm algorithm : RedirectSigner.Algorithm.values()) {
+            if (algorithm.getUri().equals(sigAlg)) {
+                try {
+                    Signature signature = Signature.getInstance(algorithm.getJcaName());
+                    signature.initVerify(spPublicKey);
+                    signature.update(query.substring(0, start).getBytes(StandardCharsets.US_ASCII));
+                    return signature.verify(Base64.decodeBase64(URLDecoder.decode(value, "UTF-8")));
+                } catch (GeneralSecurityException e) {
+                    throw new ServletException(e);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String inflate(byte[] deflated) throws ServletException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished() && output.size() < MAX_AUTHN_REQUEST_BYTES) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                output.write(buffer, 0, inflated);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new ServletException("AuthnRequest is not deflated", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Map<String, List<String>> attributes(String login) {
+        String[] names = StringUtils.substringBefore(login, "@").split("\\.", 2);
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("FirstName", Collections.singletonList(StringUtils.capitalize(names[0])));
+        attributes.put("LastName", Collections.singletonList(names.length > 1 ? StringUtils.capitalize(names[1]) : "Loadtest"));
+        attributes.put("Groups", Arrays.asList("cn=users,ou=groups,dc=example,dc=com", "cn=loadtest,ou=groups,dc=example,dc=com"));
+        return attributes;
+    }
+}
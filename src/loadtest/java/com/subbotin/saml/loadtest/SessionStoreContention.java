@@ -0,0 +1,198 @@
+package com.subbotin.saml.loadtest;
+
+import com.subbotin.saml.common.MappedSessionUserStore;
+import com.subbotin.saml.common.User;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives one {@link MappedSessionUserStore} file from several JVMs at once, as nodes on one host would
+ * share it: every process runs threads that look sessions up and, with the given share, write them again, and
+ * reports its operations and latencies. The table is created and filled by this process before the others
+ * start, so a lookup that does not find its session, while nothing was refused, means the processes do not
+ * see the writes of each other.
+ * <p>
+ * Options: {@code --processes N}, {@code --threads T} per process, {@code --duration S} in seconds,
+ * {@code --sessions K} filled before the run, {@code --slots S} of the table and {@code --writes P}, the
+ * percentage of operations that write a session.
+ *
+ * <pre>mvn -Ploadtest test-compile exec:exec -Dloadtest.main=com.subbotin.saml.loadtest.SessionStoreContention -Dloadtest.args="--processes 4 --threads 2"</pre>
+ */
+public class SessionStoreContention {
+    private static final String WORKER = "--worker";
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        if (options.worker != null) {
+            runWorker(options);
+            return;
+        }
+
+        Path file = Files.createTempFile("saml-sessions", ".bin");
+        file.toFile().deleteOnExit();
+        MappedSessionUserStore store = MappedSessionUserStore.open(file, options.slots, MappedSessionUserStore.DEFAULT_STRIPES);
+        long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < options.sessions; i++) {
+            store.put(sessionId(i), new User("user" + i + "@example.com", "User " + i), expiresAt);
+        }
+        store.close();
+        System.out.println(options.sessions + " sessions written, rejections " + store.getRejections());
+
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < options.processes; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SessionStoreContention.class.getName());
+            command.add(WORKER);
+            command.add(file.toString());
+            for (String arg : args) {
+                command.add(arg);
+            }
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).start());
+        }
+
+        long operations = 0;
+        int exitCode = 0;
+        for (int i = 0; i < processes.size(); i++) {
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(processes.get(i).getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    System.out.println("process " + i + ": " + line);
+                    if (line.startsWith("operations ")) {
+                        operations += Long.parseLong(line.split(" ")[1]);
+                    }
+                }
+            }
+            exitCode |= processes.get(i).waitFor();
+        }
+        System.out.printf(Locale.ROOT, "%d processes x %d threads: %.0f operations/s in total%n",
+                options.processes, options.threads, operations / (double) options.durationSeconds);
+        System.exit(exitCode);
+    }
+
+    private static void runWorker(Options options) throws Exception {
+        MappedSessionUserStore store = MappedSessionUserStore.open(Paths.get(options.worker), options.slots, MappedSessionUserStore.DEFAULT_STRIPES);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < options.threads; i++) {
+            Worker worker = new Worker(store, options, deadline);
+            worker.start();
+            workers.add(worker);
+        }
+
+        LatencyRecorder reads = new LatencyRecorder();
+        LatencyRecorder writes = new LatencyRecorder();
+        long misses = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            reads.addAll(worker.reads);
+            writes.addAll(worker.writes);
+            misses += worker.misses;
+        }
+        store.close();
+
+        System.out.println("operations " + (reads.getCount() + writes.getCount()));
+        print("get", reads);
+        print("put", writes);
+        System.out.println("sessions not found " + misses + ", rejections " + store.getRejections());
+    }
+
+    private static void print(String name, LatencyRecorder recorder) {
+        long[] values = recorder.getPercentiles(PERCENTILES);
+        System.out.printf(Locale.ROOT, "%s %d, p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n",
+                name, recorder.getCount(), values[0] / 1e3, values[1] / 1e3, values[2] / 1e3);
+    }
+
+    private static String sessionId(int i) {
+        return "session-" + i;
+    }
+
+    private static final class Worker extends Thread {
+        final MappedSessionUserStore store;
+        final Options options;
+        final long deadline;
+        final LatencyRecorder reads = new LatencyRecorder();
+        final LatencyRecorder writes = new LatencyRecorder();
+        long misses;
+
+        Worker(MappedSessionUserStore store, Options options, long deadline) {
+            this.store = store;
+            this.options = options;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            User user = new User("user@example.com", "User");
+            long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+            long start;
+            while ((start = System.nanoTime()) < deadline) {
+                String sessionId = sessionId(random.nextInt(options.sessions));
+                if (random.nextInt(100) < options.writes) {
+                    store.put(sessionId, user, expiresAt);
+                    writes.record(System.nanoTime() - start);
+                } else {
+                    User found = store.get(sessionId);
+                    reads.record(System.nanoTime() - start);
+                    if (found == null) {
+                        misses++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Options {
+        String worker;
+        int processes = 4;
+        int threads = 2;
+        long durationSeconds = 10;
+        int sessions = MappedSessionUserStore.DEFAULT_SLOTS / 4;
+        int slots = MappedSessionUserStore.DEFAULT_SLOTS;
+        int writes = 5;
+
+        Options(String[] args) {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case WORKER:
+                        worker = args[++i];
+                        break;
+                    case "--processes":
+                        processes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--sessions":
+                        sessions = Integer.parseInt(args[++i]);
+                        break;
+                    case "--slots":
+                        slots = Integer.parseInt(args[++i]);
+                        break;
+                    case "--writes":
+                        writes = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.subbotin.saml.common;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps about {@code maxSize} users and forgets the ones that did not log in for {@code expireAfterMillis}.
+ * Lookups and repeated logins are lock-free. New users are added with a per-key update; when the registry
+ * grows over {@code maxSize}, or once per tenth of the expiration time, one writer sweeps it: expired users
+ * are removed first, then the users with the oldest logins down to 90% of {@code maxSize}, so the sweep
+ * cost is shared by many logins.
+ * <p>
+ * A listener, such as the {@link UserPersistence} journal, is told about new users, renames and, once per
+ * tenth of the expiration time, repeated logins of a user, so it is not called on most logins.
+ */
+public class BoundedUserRegistry implements UserRegistry {
+    public static final String MAX_SIZE = "userRegistry.maxSize";
+    public static final String EXPIRE_AFTER_MINUTES = "userRegistry.expireAfterMinutes";
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    public static final long DEFAULT_EXPIRE_AFTER_MINUTES = TimeUnit.DAYS.toMinutes(1);
+
+    private final ConcurrentMap<String, Entry> users = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final int lowWatermark;
+    private final long expireAfterMillis;
+    private final LongSupplier clock;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private volatile long nextSweep;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile ObjLongConsumer<User> listener;
+
+    public BoundedUserRegistry(int maxSize, long expireAfterMillis) {
+        this(maxSize, expireAfterMillis, System::currentTimeMillis);
+    }
+
+    BoundedUserRegistry(int maxSize, long expireAfterMillis, LongSupplier clock) {
+        this.maxSize = Math.max(1, maxSize);
+        this.lowWatermark = this.maxSize - this.maxSize / 10;
+        this.expireAfterMillis = expireAfterMillis;
+        this.clock = clock;
+        this.nextSweep = clock.getAsLong() + getSweepInterval();
+    }
+
+    @Override
+    @Nullable
+    public User getUser(String email) {
+        Entry entry = users.get(email);
+        if (entry == null || isExpired(entry, clock.getAsLong())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.user;
+    }
+
+    @Override
+    public User addUser(User user) {
+        long now = clock.getAsLong();
+        users.put(user.getEmail(), new Entry(user, now));
+        notifyListener(user, now);
+        sweepIfNeeded(now);
+        return user;
+    }
+
+    @Override
+    public User login(String email, String name) {
+        long now = clock.getAsLong();
+        Entry entry = users.get(email);
+        if (entry == null || isExpired(entry, now)) {
+            Entry created = new Entry(new User(email, name), now);
+            entry = users.compute(email, (key, current) -> current == null || isExpired(current, now) ? created : current);
+            if (entry == created) {
+                misses.increment();
+                notifyListener(created.user, now);
+                sweepIfNeeded(now);
+                return created.user;
+            }
+        }
+        hits.increment();
+        if (entry.lastLogin != now) {
+            entry.lastLogin = now;
+        }
+        boolean renamed = !Objects.equals(entry.user.getName(), name);
+        entry.user.setName(name);
+        if (renamed || now - entry.notifiedLogin >= getSweepInterval()) {
+            entry.notifiedLogin = now;
+            notifyListener(entry.user, now);
+        }
+        return entry.user;
+    }
+
+    /**
+     * Puts a user recovered from a snapshot or a journal, without calling the listener. Of two records of
+     * one user the later login wins, users expired by now are skipped.
+     */
+    void restore(User user, long lastLoginMillis) {
+        long now = clock.getAsLong();
+        if (now - lastLoginMillis >= expireAfterMillis) {
+            return;
+        }
+        users.merge(user.getEmail(), new Entry(user, lastLoginMillis),
+                (current, restored) -> restored.lastLogin >= current.lastLogin ? restored : current);
+        if (users.size() > maxSize) {
+            sweepIfNeeded(now);
+        }
+    }
+
+    /**
+     * Passes every user with its last login to {@code consumer}, concurrent logins may or may not be seen.
+     */
+    void forEachUser(ObjLongConsumer<User> consumer) {
+        for (Entry entry : users.values()) {
+            consumer.accept(entry.user, entry.lastLogin);
+        }
+    }
+
+    void setListener(@Nullable ObjLongConsumer<User> listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener(User user, long now) {
+        ObjLongConsumer<User> current = listener;
+        if (current != null) {
+            current.accept(user, now);
+        }
+    }
+
+    private void sweepIfNeeded(long now) {
+        if ((users.size() > maxSize || now >= nextSweep) && sweepLock.tryLock()) {
+            try {
+                nextSweep = now + getSweepInterval();
+                sweep(now);
+            } finally {
+                sweepLock.unlock();
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        for (Iterator<Entry> iterator = users.values().iterator(); iterator.hasNext(); ) {
+            if (isExpired(iterator.next(), now)) {
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+        if (users.size() <= maxSize) {
+            return;
+        }
+
+        long[] logins = new long[users.size()];
+        int count = 0;
+        for (Entry entry : users.values()) {
+            if (count == logins.length) {
+                break;
+            }
+            logins[count++] = entry.lastLogin;
+        }
+        Arrays.sort(logins, 0, count);
+        int toEvict = count - lowWatermark;
+        long cutoff = logins[toEvict - 1];
+        for (Iterator<Entry> iterator = users.values().iterator(); iterator.hasNext() && toEvict > 0; ) {
+            if (iterator.next().lastLogin <= cutoff) {
+                iterator.remove();
+                evictions.increment();
+                toEvict--;
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.lastLogin >= expireAfterMillis;
+    }
+
+    private long getSweepInterval() {
+        return Math.max(1, expireAfterMillis / 10);
+    }
+
+    @Override
+    public int getSize() {
+        return users.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static final class Entry {
+        final User user;
+        volatile long lastLogin;
+        volatile long notifiedLogin;
+
+        Entry(User user, long lastLogin) {
+            this.user = user;
+            this.lastLogin = lastLogin;
+            this.notifiedLogin = lastLogin;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.subbotin.saml.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions in a fixed-size table outside of the Java heap, laid out like {@code ReplayCache}: a session ID
+ * maps by its 128-bit SHA-256 prefix to a bucket of {@value #BUCKET_SIZE} slots, a slot holds the hash, the
+ * expiry time and the email and name of the user. A session whose bucket is full goes to the first of the
+ * next {@value #PROBE_BUCKETS} buckets with room, so random IDs fill about two thirds of the slots before
+ * the first refusal; {@link #getCapacity()} reports half of them. Expired slots are reused; a live session
+ * is never given up for a new one, a session that finds no room is refused and counted. Raw session IDs
+ * are never stored.
+ * <p>
+ * With {@code sessionStore.file} set the table is memory-mapped from that file, so it survives restarts
+ * and is shared by every JVM on the host that maps the same file. A bucket is then guarded by the striped
+ * lock of the JVM and by a lock of its byte range of the file, which other processes respect; readers take
+ * the file lock shared. A file is mapped by at most one store of a JVM, since file locks are held by the
+ * JVM and a second store would run into the locks of the first.
+ */
+public class MappedSessionUserStore implements SessionUserStore {
+    public static final String SLOTS = "sessionStore.slots";
+    public static final String STRIPES = "sessionStore.stripes";
+    public static final String FILE = "sessionStore.file";
+    public static final int DEFAULT_SLOTS = 1 << 14;
+    public static final int DEFAULT_STRIPES = 64;
+
+    static final int BUCKET_SIZE = 4;
+    static final int PROBE_BUCKETS = 16;
+    static final int SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 16;
+    private static final int EXPIRES_AT = 2 * Long.BYTES;
+    private static final int EMAIL_LENGTH = EXPIRES_AT + Long.BYTES;
+    private static final int NAME_LENGTH = EMAIL_LENGTH + Short.BYTES;
+    private static final int DATA = NAME_LENGTH + Short.BYTES;
+    static final int MAX_DATA = SLOT_SIZE - DATA;
+    private static final long MAGIC = 0x5341_4d4c_5345_5331L;
+
+    static Logger logger = LoggerFactory.getLogger(MappedSessionUserStore.class);
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final Set<Path> openFiles = ConcurrentHashMap.newKeySet();
+
+    private final ByteBuffer table;
+    private final Path file;
+    private final int buckets;
+    private final Object[] locks;
+    private final LongAdder rejections = new LongAdder();
+    private volatile FileChannel channel;
+
+    public MappedSessionUserStore(int slots, int stripes) {
+        this(ByteBuffer.allocateDirect(HEADER_SIZE + getBuckets(slots) * BUCKET_SIZE * SLOT_SIZE), null, null, slots, stripes);
+    }
+
+    private MappedSessionUserStore(ByteBuffer table, @Nullable Path file, @Nullable FileChannel channel, int slots, int stripes) {
+        this.table = table;
+        this.file = file;
+        this.channel = channel;
+        this.buckets = getBuckets(slots);
+        this.locks = new Object[Math.max(1, stripes)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Maps the table from {@code file}, creating it if needed. A file of another size or format is cleared
+     * under an exclusive lock of the whole file, so processes that start together agree on the format.
+     *
+     * @throws IOException also if a store of this JVM already maps the file
+     */
+    public static MappedSessionUserStore open(Path file, int slots, int stripes) throws IOException {
+        int buckets = getBuckets(slots);
+        long size = HEADER_SIZE + (long) buckets * BUCKET_SIZE * SLOT_SIZE;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Path realFile;
+        try {
+            realFile = file.toRealPath();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (!openFiles.add(realFile)) {
+            channel.close();
+            throw new IOException("Session table file " + file + " is already mapped by this JVM");
+        }
+        try {
+            MappedByteBuffer table;
+            FileLock fileLock = channel.lock();
+            try {
+                long previousSize = channel.size();
+                table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (previousSize != size || table.getLong(0) != MAGIC || table.getInt(8) != buckets || table.getInt(12) != SLOT_SIZE) {
+                    if (previousSize > 0) {
+                        logger.warn("Session table file {} has another format, it is cleared", file);
+                    }
+                    for (int position = 0; position < size; position += Long.BYTES) {
+                        table.putLong(position, 0);
+                    }
+                    table.putLong(0, MAGIC);
+                    table.putInt(8, buckets);
+                    table.putInt(12, SLOT_SIZE);
+                }
+            } finally {
+                fileLock.release();
+            }
+            return new MappedSessionUserStore(table, realFile, channel, slots, stripes);
+        } catch (IOException | RuntimeException e) {
+            openFiles.remove(realFile);
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static MappedSessionUserStore openOrFallBack(Path file, int slots, int stripes) {
+        try {
+            return open(file, slots, stripes);
+        } catch (IOException e) {
+            logger.error("Problem mapping session table file " + file + ", sessions are kept in memory of this node only", e);
+            return new MappedSessionUserStore(slots, stripes);
+        }
+    }
+
+    @Override
+    public boolean put(String sessionId, User user, long expiresAtMillis) {
+        return put(sessionId, user, expiresAtMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * A user whose email does not fit into a slot is refused, a name that does not fit is cut.
+     */
+    boolean put(String sessionId, User user, long expiresAtMillis, long nowMillis) {
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        if (email.length > MAX_DATA) {
+            throw new IllegalArgumentException("Email of " + email.length + " bytes does not fit into a session");
+        }
+        ByteBuffer data = ByteBuffer.allocate(MAX_DATA);
+        data.put(email);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        encoder.encode(CharBuffer.wrap(user.getName() == null ? "" : user.getName()), data, true);
+        data.flip();
+
+        long[] hash = hash(sessionId);
+        int home = getBucket(hash[0]);
+        for (int i = 0; i < getProbeBuckets(); i++) {
+            if (putIntoBucket((home + i) % buckets, hash, data, email.length, Math.max(expiresAtMillis, nowMillis + 1), nowMillis)) {
+                return true;
+            }
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * Buckets are locked one at a time, so a session already stored in a later bucket of its probe
+     * sequence may be stored again in an earlier one: lookups find the earlier copy first and removal
+     * clears every copy.
+     */
+    private boolean putIntoBucket(int bucket, long[] hash, ByteBuffer data, int emailLength, long expiresAtMillis, long nowMillis) {
+        int first = HEADER_SIZE + bucket * BUCKET_SIZE * SLOT_SIZE;
+        synchronized (locks[bucket % locks.length]) {
+            FileLock fileLock = lockBucket(first, false);
+            try {
+                int target = -1;
+                for (int position = first; position < first + BUCKET_SIZE * SLOT_SIZE; position += SLOT_SIZE) {
+                    long expiresAt = table.getLong(position + EXPIRES_AT);
+                    if (expiresAt > nowMillis && isSession(position, hash)) {
+                        target = position;
+                        break;
+                    } else if (expiresAt <= nowMillis && target < 0) {
+                        target = position;
+                    }
+                }
+                if (target < 0) {
+                    return false;
+                }
+                ByteBuffer slot = table.duplicate();
+                slot.position(target + DATA);
+                slot.put(data);
+                table.putLong(target, hash[0]);
+                table.putLong(target + Long.BYTES, hash[1]);
+                table.putShort(target + EMAIL_LENGTH, (short) emailLength);
+                table.putShort(target + NAME_LENGTH, (short) (data.limit() - emailLength));
+                table.putLong(target + EXPIRES_AT, expiresAtMillis);
+                return true;
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public User get(String sessionId) {
+        return get(sessionId, System.currentTimeMillis());
+    }
+
+    @Nullable
+    User get(String sessionId, long nowMillis) {
+        long[] hash = hash(sessionId);
+        int home = getBucket(hash[0]);
+        for (int i = 0; i < getProbeBuckets(); i++) {
+            User user = getFromBucket((home + i) % buckets, hash, nowMillis);
+            if (user != null) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private User getFromBucket(int bucket, long[] hash, long nowMillis) {
+        int first = HEADER_SIZE + bucket * BUCKET_SIZE * SLOT_SIZE;
+        byte[] data;
+        int emailLength;
+        synchronized (locks[bucket % locks.length]) {
+            FileLock fileLock = lockBucket(first, true);
+            try {
+                int position = find(first, hash, nowMillis);
+                if (position < 0) {
+                    return null;
+                }
+                emailLength = table.getShort(position + EMAIL_LENGTH);
+                data = new byte[emailLength + table.getShort(position + NAME_LENGTH)];
+                ByteBuffer slot = table.duplicate();
+                slot.position(position + DATA);
+                slot.get(data);
+            } finally {
+                release(fileLock);
+            }
+        }
+        return new User(new String(data, 0, emailLength, StandardCharsets.UTF_8),
+                new String(data, emailLength, data.length - emailLength, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void remove(String sessionId) {
+        long[] hash = hash(sessionId);
+        int home = getBucket(hash[0]);
+        for (int i = 0; i < getProbeBuckets(); i++) {
+            int bucket = (home + i) % buckets;
+            int first = HEADER_SIZE + bucket * BUCKET_SIZE * SLOT_SIZE;
+            synchronized (locks[bucket % locks.length]) {
+                FileLock fileLock = lockBucket(first, false);
+                try {
+                    int position;
+                    while ((position = find(first, hash, 0)) >= 0) {
+                        table.putLong(position + EXPIRES_AT, 0);
+                    }
+                } finally {
+                    release(fileLock);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Live sessions the table holds before a refusal becomes likely: half of its slots. Size
+     * {@code sessionStore.slots} to twice the sessions expected within {@code sessionStore.ttlMinutes}.
+     */
+    public int getCapacity() {
+        return buckets * BUCKET_SIZE / 2;
+    }
+
+    @Override
+    public void close() {
+        if (file == null) {
+            return;
+        }
+        ((MappedByteBuffer) table).force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Problem closing session table file " + file, e);
+        } finally {
+            openFiles.remove(file);
+        }
+    }
+
+    private int find(int first, long[] hash, long nowMillis) {
+        for (int position = first; position < first + BUCKET_SIZE * SLOT_SIZE; position += SLOT_SIZE) {
+            if (table.getLong(position + EXPIRES_AT) > nowMillis && isSession(position, hash)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isSession(int position, long[] hash) {
+        return table.getLong(position) == hash[0] && table.getLong(position + Long.BYTES) == hash[1];
+    }
+
+    @Nullable
+    private FileLock lockBucket(int position, boolean shared) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            return getChannel().lock(position, BUCKET_SIZE * SLOT_SIZE, shared);
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem locking session table file " + file, e);
+        }
+    }
+
+    /**
+     * An interrupt of a thread waiting for a file lock closes the channel, it is reopened for the others.
+     * The mapping does not depend on the channel.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (!current.isOpen()) {
+            synchronized (this) {
+                if (!channel.isOpen()) {
+                    logger.warn("Session table file {} was closed by an interrupt, it is reopened", file);
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                current = channel;
+            }
+        }
+        return current;
+    }
+
+    private void release(@Nullable FileLock fileLock) {
+        if (fileLock != null && fileLock.isValid()) {
+            try {
+                fileLock.release();
+            } catch (IOException e) {
+                logger.warn("Problem unlocking session table file " + file, e);
+            }
+        }
+    }
+
+    private int getProbeBuckets() {
+        return Math.min(PROBE_BUCKETS, buckets);
+    }
+
+    private int getBucket(long high) {
+        return (int) Math.floorMod(high, (long) buckets);
+    }
+
+    private static long[] hash(String sessionId) {
+        ByteBuffer hash = ByteBuffer.wrap(digest.get().digest(sessionId.getBytes(StandardCharsets.UTF_8)));
+        return new long[]{hash.getLong(0), hash.getLong(Long.BYTES)};
+    }
+
+    private static int getBuckets(int slots) {
+        return Math.max(1, (slots + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    }
+}
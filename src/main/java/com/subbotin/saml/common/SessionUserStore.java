@@ -0,0 +1,32 @@
+package com.subbotin.saml.common;
+
+import javax.annotation.Nullable;
+
+/**
+ * Users logged in by session ID. The session ID is kept in a cookie of the application and not in the
+ * {@code HttpSession} of the container, so a store shared by several nodes does not need sticky sessions.
+ */
+public interface SessionUserStore {
+    /**
+     * Returns false when the store has no room for the session, no live session is given up for it.
+     */
+    boolean put(String sessionId, User user, long expiresAtMillis);
+
+    /**
+     * Returns the user of the session, or {@code null} when it is unknown, expired or removed.
+     */
+    @Nullable
+    User get(String sessionId);
+
+    void remove(String sessionId);
+
+    /**
+     * Sessions refused because the table had no room for them.
+     */
+    long getRejections();
+
+    /**
+     * Writes the sessions to durable storage if the store has one and releases its resources.
+     */
+    void close();
+}
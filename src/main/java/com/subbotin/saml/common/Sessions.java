@@ -0,0 +1,189 @@
+package com.subbotin.saml.common;
+
+import com.subbotin.saml.exceptions.SessionTableIsFullException;
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.SessionTokenCodec;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logged in users of the application, kept in the {@value #COOKIE_NAME} cookie. In the {@code table} mode
+ * the cookie holds a random session ID and the user is kept in the {@link SessionUserStore}, so any node
+ * that shares the store serves the session and a restart does not log the users out when the store is kept
+ * in a file. In the {@code token} mode the cookie holds the user encrypted by {@link SessionTokenCodec} and
+ * nodes keep nothing; such a session can not be ended before it expires, logout only drops the cookie.
+ * The cookie is {@code Secure} unless {@code sessionStore.secureCookie} is false, which only suits plain
+ * HTTP in development: the flag does not depend on the request, which a proxy may forward over HTTP.
+ */
+public class Sessions {
+    public static final String COOKIE_NAME = "SAML_SESSION";
+    public static final String USER_ATTRIBUTE = "com.subbotin.saml.user";
+    public static final String MODE = "sessionStore.mode";
+    public static final String TABLE_MODE = "table";
+    public static final String TOKEN_MODE = "token";
+    public static final String TTL_MINUTES = "sessionStore.ttlMinutes";
+    public static final long DEFAULT_TTL_MINUTES = 480;
+    public static final String SECURE_COOKIE = "sessionStore.secureCookie";
+    private static final int SESSION_ID_BYTES = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+    static volatile SessionUserStore sessionUserStore;
+    static volatile SessionTokenCodec sessionTokenCodec;
+    static volatile Boolean tokenMode;
+    static long ttlMillis;
+    static boolean secureCookie = true;
+
+    /**
+     * Reads the mode and the lifetime of sessions, and creates the store or the codec of the mode.
+     */
+    public static void init() {
+        if (isTokenMode()) {
+            getCodec();
+        } else {
+            getStore();
+        }
+    }
+
+    public static boolean isTokenMode() {
+        Boolean mode = tokenMode;
+        if (mode == null) {
+            synchronized (Sessions.class) {
+                mode = tokenMode;
+                if (mode == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    ttlMillis = TimeUnit.MINUTES.toMillis(settings.getLong(TTL_MINUTES, DEFAULT_TTL_MINUTES));
+                    secureCookie = settings.getBoolean(SECURE_COOKIE, true);
+                    mode = TOKEN_MODE.equals(settings.getString(MODE, TABLE_MODE).trim());
+                    tokenMode = mode;
+                }
+            }
+        }
+        return mode;
+    }
+
+    public static SessionUserStore getStore() {
+        SessionUserStore store = sessionUserStore;
+        if (store == null) {
+            synchronized (Sessions.class) {
+                store = sessionUserStore;
+                if (store == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    int slots = settings.getInt(MappedSessionUserStore.SLOTS, MappedSessionUserStore.DEFAULT_SLOTS);
+                    int stripes = settings.getInt(MappedSessionUserStore.STRIPES, MappedSessionUserStore.DEFAULT_STRIPES);
+                    String file = settings.getString(MappedSessionUserStore.FILE, StringUtils.EMPTY);
+                    store = StringUtils.isBlank(file) ? new MappedSessionUserStore(slots, stripes)
+                            : MappedSessionUserStore.openOrFallBack(Paths.get(file.trim()), slots, stripes);
+                    sessionUserStore = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    public static SessionTokenCodec getCodec() {
+        SessionTokenCodec codec = sessionTokenCodec;
+        if (codec == null) {
+            codec = SessionTokenCodec.getInstance();
+            sessionTokenCodec = codec;
+        }
+        return codec;
+    }
+
+    public static void closeStore() {
+        SessionUserStore store = sessionUserStore;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Starts a new session of the user, the previous session of the request is ended.
+     *
+     * @throws SessionTableIsFullException when the session table has no room for the new session
+     */
+    public static void login(HttpServletRequest request, HttpServletResponse response, User user) {
+        boolean token = isTokenMode();
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String value;
+        if (token) {
+            value = getCodec().encode(user, expiresAt);
+        } else {
+            SessionUserStore store = getStore();
+            String previousSessionId = getCookieValue(request);
+            if (previousSessionId != null) {
+                store.remove(previousSessionId);
+            }
+            byte[] bytes = new byte[SESSION_ID_BYTES];
+            random.nextBytes(bytes);
+            value = Base64.encodeBase64URLSafeString(bytes);
+            if (!store.put(value, user, expiresAt)) {
+                throw new SessionTableIsFullException("Session table has no room for a new session");
+            }
+        }
+        response.addCookie(createCookie(request, value, (int) TimeUnit.MILLISECONDS.toSeconds(ttlMillis)));
+    }
+
+    /**
+     * Returns the user of the session of the request, or {@code null} when there is none. The user is
+     * resolved once per request and kept in the {@value #USER_ATTRIBUTE} attribute.
+     */
+    @Nullable
+    public static User getUser(HttpServletRequest request) {
+        Object resolved = request.getAttribute(USER_ATTRIBUTE);
+        if (resolved instanceof User) {
+            return (User) resolved;
+        }
+        String value = getCookieValue(request);
+        if (value == null) {
+            return null;
+        }
+        User user = isTokenMode() ? getCodec().decode(value, System.currentTimeMillis()) : getStore().get(value);
+        if (user != null) {
+            request.setAttribute(USER_ATTRIBUTE, user);
+        }
+        return user;
+    }
+
+    public static void logout(HttpServletRequest request, HttpServletResponse response) {
+        String value = getCookieValue(request);
+        if (value != null) {
+            if (!isTokenMode()) {
+                getStore().remove(value);
+            }
+            request.removeAttribute(USER_ATTRIBUTE);
+            response.addCookie(createCookie(request, "", 0));
+        }
+    }
+
+    @Nullable
+    private static String getCookieValue(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE_NAME.equals(cookie.getName()) && StringUtils.isNotEmpty(cookie.getValue())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static Cookie createCookie(HttpServletRequest request, String value, int maxAgeSeconds) {
+        Cookie cookie = new Cookie(COOKIE_NAME, value);
+        cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+        cookie.setMaxAge(maxAgeSeconds);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(secureCookie);
+        return cookie;
+    }
+}
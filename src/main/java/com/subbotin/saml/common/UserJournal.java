@@ -0,0 +1,204 @@
+package com.subbotin.saml.common;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of user updates, {@code users-<generation>.journal}. A record is
+ * {@code payload length | CRC32 of payload | last login | email length | email | name}, snapshots use the
+ * same records. Appends only copy the record into a buffer; {@link #flush(boolean)} swaps the buffer for an
+ * empty one and writes it with one {@code write} and at most one {@code fsync}, so every login appended
+ * since the previous flush is committed together. A record torn by a crash fails its length or CRC check
+ * and ends the replay of its file.
+ */
+class UserJournal {
+    static final String PREFIX = "users-";
+    static final String SUFFIX = ".journal";
+    static final int MAX_RECORD = 1024;
+    static final int RECORD_HEADER = 2 * Integer.BYTES;
+    static final int MIN_PAYLOAD = Long.BYTES + Short.BYTES;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    static Logger logger = LoggerFactory.getLogger(UserJournal.class);
+
+    private final Path directory;
+    private final Object appendLock = new Object();
+    private final Object writeLock = new Object();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CRC32 crc = new CRC32();
+    private final LongAdder records = new LongAdder();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel channel;
+    private long generation;
+    private volatile long size;
+
+    UserJournal(Path directory, long generation) throws IOException {
+        this.directory = directory;
+        this.generation = generation;
+        this.channel = open(directory, generation);
+    }
+
+    static Path getPath(Path directory, long generation) {
+        return directory.resolve(PREFIX + generation + SUFFIX);
+    }
+
+    private static FileChannel open(Path directory, long generation) throws IOException {
+        return FileChannel.open(getPath(directory, generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Adds the user to the buffer, a full buffer is written by the caller without an {@code fsync}. A
+     * problem with the file is logged and does not fail the login.
+     */
+    void append(User user, long lastLoginMillis) {
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        if (email.length > MAX_RECORD - MIN_PAYLOAD) {
+            throw new IllegalArgumentException("Email of " + email.length + " bytes does not fit into a journal record");
+        }
+        while (true) {
+            synchronized (appendLock) {
+                if (buffer.remaining() >= RECORD_HEADER + MAX_RECORD) {
+                    write(buffer, encoder, crc, email, user.getName(), lastLoginMillis);
+                    records.increment();
+                    return;
+                }
+            }
+            try {
+                flush(false);
+            } catch (IOException e) {
+                logger.error("Problem writing user journal in " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the appended records, with {@code force} they are also synced to the disk. A buffer that
+     * could not be written is dropped, its records are in the registry and in the next snapshot.
+     */
+    void flush(boolean force) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer full;
+            synchronized (appendLock) {
+                full = buffer;
+                buffer = spare;
+            }
+            spare = full;
+            try {
+                full.flip();
+                while (full.hasRemaining()) {
+                    size += channel.write(full);
+                }
+            } finally {
+                full.clear();
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Commits the current file and continues in a new one, records appended from now on go there. Returns
+     * the generation of the new file.
+     */
+    long rotate() throws IOException {
+        synchronized (writeLock) {
+            flush(true);
+            channel.close();
+            channel = open(directory, generation + 1);
+            generation++;
+            size = 0;
+            return generation;
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (writeLock) {
+            try {
+                flush(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * Writes one record to {@code target}, which has room for {@link #MAX_RECORD} bytes after the header.
+     * A name that does not fit is cut.
+     */
+    static void write(ByteBuffer target, CharsetEncoder encoder, CRC32 crc, byte[] email, String name, long lastLoginMillis) {
+        int start = target.position();
+        int payload = start + RECORD_HEADER;
+        int limit = target.limit();
+        target.position(payload);
+        target.putLong(lastLoginMillis).putShort((short) email.length).put(email);
+        target.limit(payload + MAX_RECORD);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(StringUtils.defaultString(name)), target, true);
+        target.limit(limit);
+        int end = target.position();
+
+        ByteBuffer view = target.duplicate();
+        view.position(payload).limit(end);
+        crc.reset();
+        crc.update(view);
+        target.putInt(start, end - payload);
+        target.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * Passes the records of {@code data} from its position to {@code consumer} and returns their number. The
+     * replay ends at the end of the data or at the first torn record, the position is left after the last
+     * whole record.
+     */
+    static long replay(ByteBuffer data, ObjLongConsumer<User> consumer) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = data.duplicate();
+        long count = 0;
+        while (data.remaining() >= RECORD_HEADER) {
+            int payload = data.position() + RECORD_HEADER;
+            int length = data.getInt(data.position());
+            if (length < MIN_PAYLOAD || length > MAX_RECORD || length > data.limit() - payload) {
+                break;
+            }
+            view.limit(payload + length).position(payload);
+            crc.reset();
+            crc.update(view);
+            int emailLength = data.getShort(payload + Long.BYTES);
+            if ((int) crc.getValue() != data.getInt(data.position() + Integer.BYTES) || emailLength < 0 || emailLength > length - MIN_PAYLOAD) {
+                break;
+            }
+            byte[] bytes = new byte[length - MIN_PAYLOAD];
+            view.position(payload + MIN_PAYLOAD);
+            view.get(bytes);
+            consumer.accept(new User(new String(bytes, 0, emailLength, StandardCharsets.UTF_8),
+                    new String(bytes, emailLength, bytes.length - emailLength, StandardCharsets.UTF_8)), data.getLong(payload));
+            data.position(payload + length);
+            count++;
+        }
+        return count;
+    }
+}
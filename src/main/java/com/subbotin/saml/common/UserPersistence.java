@@ -0,0 +1,312 @@
+package com.subbotin.saml.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a {@link BoundedUserRegistry} in {@code userJournal.directory} across restarts. Updates of users go
+ * to the {@link UserJournal}, which is written and synced every {@code userJournal.fsyncIntervalMillis}, so
+ * a crash loses at most that interval of logins. Every {@code userJournal.snapshotIntervalMinutes}, when the
+ * journal grows over {@code userJournal.maxJournalMB} and on shutdown the whole registry is written to
+ * {@code users.snapshot} and the journals it covers are deleted.
+ * <p>
+ * A snapshot is {@code magic | journal generation | user count} and the records of the users. Before
+ * writing it the journal moves to a new generation, so a login is either seen by the snapshot or in a
+ * journal of its generation or later. Recovery maps the snapshot and then those journals in order.
+ */
+public class UserPersistence {
+    public static final String DIRECTORY = "userJournal.directory";
+    public static final String FSYNC_INTERVAL_MILLIS = "userJournal.fsyncIntervalMillis";
+    public static final String SNAPSHOT_INTERVAL_MINUTES = "userJournal.snapshotIntervalMinutes";
+    public static final String MAX_JOURNAL_MB = "userJournal.maxJournalMB";
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MINUTES = 10;
+    public static final long DEFAULT_MAX_JOURNAL_MB = 64;
+
+    static final String SNAPSHOT = "users.snapshot";
+    private static final long MAGIC = 0x5341_4d4c_5553_5231L;
+    private static final int SNAPSHOT_HEADER = 3 * Long.BYTES;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    static Logger logger = LoggerFactory.getLogger(UserPersistence.class);
+
+    private final Path directory;
+    private final BoundedUserRegistry registry;
+    private final UserJournal journal;
+    private final long maxJournalBytes;
+    private final long recoveryMillis;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+
+    private UserPersistence(Path directory, BoundedUserRegistry registry, UserJournal journal, long fsyncIntervalMillis,
+                            long snapshotIntervalMillis, long maxJournalBytes, long recoveryMillis) {
+        this.directory = directory;
+        this.registry = registry;
+        this.journal = journal;
+        this.maxJournalBytes = maxJournalBytes;
+        this.recoveryMillis = recoveryMillis;
+        this.executor = new ScheduledThreadPoolExecutor(2, runnable -> {
+            Thread thread = new Thread(runnable, "user-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long fsyncInterval = Math.max(1, fsyncIntervalMillis);
+        executor.scheduleWithFixedDelay(this::flushQuietly, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        long snapshotInterval = Math.max(1, snapshotIntervalMillis);
+        executor.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recovers the users of {@code directory} into {@code registry}, creating the directory if needed, and
+     * journals the updates of the registry from now on.
+     */
+    public static UserPersistence open(Path directory, BoundedUserRegistry registry, long fsyncIntervalMillis,
+                                       long snapshotIntervalMillis, long maxJournalBytes) throws IOException {
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        long generation = recover(directory, registry);
+        long recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        logger.info("Recovered {} users from {} in {} ms", registry.getSize(), directory, recoveryMillis);
+
+        UserJournal journal = new UserJournal(directory, generation);
+        UserPersistence persistence = new UserPersistence(directory, registry, journal, fsyncIntervalMillis,
+                snapshotIntervalMillis, maxJournalBytes, recoveryMillis);
+        registry.setListener(journal::append);
+        return persistence;
+    }
+
+    /**
+     * Returns {@code null} when the directory can not be used, the registry is then kept in memory only.
+     */
+    public static UserPersistence openOrFallBack(Path directory, BoundedUserRegistry registry, long fsyncIntervalMillis,
+                                                 long snapshotIntervalMillis, long maxJournalBytes) {
+        try {
+            return open(directory, registry, fsyncIntervalMillis, snapshotIntervalMillis, maxJournalBytes);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Problem recovering users from " + directory + ", users are kept in memory only", e);
+            return null;
+        }
+    }
+
+    /**
+     * Puts the users of the snapshot and of the journals after it into {@code registry}, and returns the
+     * generation of the next journal. Journals that the snapshot covers are deleted, nothing else is changed.
+     */
+    public static long recover(Path directory, BoundedUserRegistry registry) throws IOException {
+        long generation = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            MappedByteBuffer data = map(snapshot);
+            if (data.limit() < SNAPSHOT_HEADER || data.getLong(0) != MAGIC) {
+                logger.error("User snapshot {} has another format, it is skipped", snapshot);
+            } else {
+                generation = data.getLong(Long.BYTES);
+                long expected = data.getLong(2 * Long.BYTES);
+                data.position(SNAPSHOT_HEADER);
+                long count = UserJournal.replay(data, registry::restore);
+                if (count != expected) {
+                    logger.error("User snapshot {} has {} of {} users, it is damaged", snapshot, count, expected);
+                }
+            }
+        }
+
+        long next = generation;
+        for (long journalGeneration : listJournals(directory)) {
+            Path journal = UserJournal.getPath(directory, journalGeneration);
+            if (journalGeneration < generation) {
+                Files.deleteIfExists(journal);
+                continue;
+            }
+            MappedByteBuffer data = map(journal);
+            UserJournal.replay(data, registry::restore);
+            if (data.hasRemaining()) {
+                logger.warn("User journal {} ends with {} bytes of a torn record, they are skipped", journal, data.remaining());
+            }
+            next = journalGeneration + 1;
+        }
+        return next;
+    }
+
+    /**
+     * Writes the registry to a new snapshot and deletes the journals it covers.
+     */
+    public synchronized void snapshot() throws IOException {
+        long generation = journal.rotate();
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        long count;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotWriter writer = new SnapshotWriter(channel);
+            writer.buffer.putLong(MAGIC).putLong(generation).putLong(0);
+            try {
+                registry.forEachUser(writer);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.drain();
+            count = writer.count;
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, count);
+            channel.write(header, 2 * Long.BYTES);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (long journalGeneration : listJournals(directory)) {
+            if (journalGeneration < generation) {
+                Files.deleteIfExists(UserJournal.getPath(directory, journalGeneration));
+            }
+        }
+        logger.info("Wrote snapshot of {} users to {}", count, directory);
+    }
+
+    /**
+     * Writes and syncs the journal.
+     */
+    public void flush() throws IOException {
+        journal.flush(true);
+    }
+
+    /**
+     * Stops journaling and writes the last snapshot, so the next start only maps it.
+     */
+    public void close() {
+        registry.setListener(null);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            snapshot();
+            journal.close();
+        } catch (IOException e) {
+            logger.error("Problem writing the last user snapshot to " + directory, e);
+        }
+    }
+
+    public long getJournalRecords() {
+        return journal.getRecords();
+    }
+
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    private void flushQuietly() {
+        try {
+            journal.flush(true);
+        } catch (IOException e) {
+            logger.error("Problem writing user journal in " + directory, e);
+        }
+        if (journal.getSize() > maxJournalBytes && snapshotPending.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                snapshotQuietly();
+                snapshotPending.set(false);
+            });
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Problem writing user snapshot to " + directory, e);
+        }
+    }
+
+    /**
+     * Makes the rename of the snapshot durable where the file system allows to sync a directory.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Directory {} can not be synced", directory);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("User file " + file + " is larger than 2 GB");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static List<Long> listJournals(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, UserJournal.PREFIX + "*" + UserJournal.SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(UserJournal.PREFIX.length(), name.length() - UserJournal.SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("File {} is not a user journal, it is skipped", file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static final class SnapshotWriter implements ObjLongConsumer<User> {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        final CRC32 crc = new CRC32();
+        long count;
+
+        SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void accept(User user, long lastLoginMillis) {
+            byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+            if (email.length > UserJournal.MAX_RECORD - UserJournal.MIN_PAYLOAD) {
+                return;
+            }
+            if (buffer.remaining() < UserJournal.RECORD_HEADER + UserJournal.MAX_RECORD) {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            UserJournal.write(buffer, encoder, crc, email, user.getName(), lastLoginMillis);
+            count++;
+        }
+
+        void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
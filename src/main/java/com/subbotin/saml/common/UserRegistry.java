@@ -0,0 +1,26 @@
+package com.subbotin.saml.common;
+
+import javax.annotation.Nullable;
+
+public interface UserRegistry {
+    @Nullable
+    User getUser(String email);
+
+    User addUser(User user);
+
+    /**
+     * Registers the user on the first login, refreshes the name and the last login time afterwards.
+     */
+    User login(String email, String name);
+
+    /**
+     * Approximate number of registered users, it is not synchronized with concurrent logins.
+     */
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+}
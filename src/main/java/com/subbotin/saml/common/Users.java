@@ -1,25 +1,83 @@
 package com.subbotin.saml.common;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nullable;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 public class Users {
-    private static ConcurrentMap<String, User> onlineUsers = new ConcurrentHashMap<>();
+    private static volatile UserRegistry userRegistry;
+    private static volatile UserPersistence userPersistence;
+    private static volatile boolean persistenceFailed;
+
+    /**
+     * Creates the registry on the first call. With {@code userJournal.directory} set the users known before
+     * the restart are recovered from it first.
+     */
+    public static UserRegistry getRegistry() {
+        UserRegistry registry = userRegistry;
+        if (registry == null) {
+            synchronized (Users.class) {
+                registry = userRegistry;
+                if (registry == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    BoundedUserRegistry boundedRegistry = new BoundedUserRegistry(
+                            settings.getInt(BoundedUserRegistry.MAX_SIZE, BoundedUserRegistry.DEFAULT_MAX_SIZE),
+                            TimeUnit.MINUTES.toMillis(settings.getLong(BoundedUserRegistry.EXPIRE_AFTER_MINUTES, BoundedUserRegistry.DEFAULT_EXPIRE_AFTER_MINUTES)));
+                    String directory = settings.getString(UserPersistence.DIRECTORY, StringUtils.EMPTY);
+                    if (StringUtils.isNotBlank(directory)) {
+                        userPersistence = UserPersistence.openOrFallBack(Paths.get(directory.trim()), boundedRegistry,
+                                settings.getLong(UserPersistence.FSYNC_INTERVAL_MILLIS, UserPersistence.DEFAULT_FSYNC_INTERVAL_MILLIS),
+                                TimeUnit.MINUTES.toMillis(settings.getLong(UserPersistence.SNAPSHOT_INTERVAL_MINUTES, UserPersistence.DEFAULT_SNAPSHOT_INTERVAL_MINUTES)),
+                                settings.getLong(UserPersistence.MAX_JOURNAL_MB, UserPersistence.DEFAULT_MAX_JOURNAL_MB) << 20);
+                        persistenceFailed = userPersistence == null;
+                    }
+                    registry = boundedRegistry;
+                    userRegistry = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    @Nullable
+    public static UserPersistence getPersistence() {
+        getRegistry();
+        return userPersistence;
+    }
 
-    static {
-        addUser(new User("user1@example.com", "user №1"));
-        addUser(new User("user2@example.com", "user №2"));
+    /**
+     * Returns true when {@code userJournal.directory} is set but can not be used, the users are then kept
+     * in memory only and lost on restart.
+     */
+    public static boolean isPersistenceFailed() {
+        getRegistry();
+        return persistenceFailed;
+    }
+
+    public static void closePersistence() {
+        UserPersistence persistence = userPersistence;
+        if (persistence != null) {
+            persistence.close();
+        }
     }
 
     public static User getUser(String email) {
-        return onlineUsers.get(email);
+        return getRegistry().getUser(email);
     }
 
     public static User addUser(User user) {
-        return onlineUsers.put(user.getEmail(), user);
+        return getRegistry().addUser(user);
+    }
+
+    public static User login(String email, String name) {
+        return getRegistry().login(email, name);
     }
 
     public static int getSize() {
-        return onlineUsers.size();
+        return getRegistry().getSize();
     }
 }
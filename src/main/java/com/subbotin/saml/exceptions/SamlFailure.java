@@ -0,0 +1,67 @@
+package com.subbotin.saml.exceptions;
+
+import com.subbotin.saml.utils.SamlExceptionText;
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+
+import javax.xml.namespace.QName;
+
+/**
+ * A rejected SAML response with a fixed reason of {@link SamlExceptionText}. There is one shared instance
+ * per reason, without a stack trace and without a cause, so rejecting a forged or broken response costs
+ * no more than accepting it. The exception that led to a failure is handed to
+ * {@link com.subbotin.saml.utils.FailureLog} where it is caught; nothing must be attached to a shared
+ * instance.
+ */
+public final class SamlFailure extends SAMLException {
+    public static final SamlFailure XMLOBJECT_NOT_CAST_TO_RESPONSE = new SamlFailure(SamlExceptionText.XMLOBJECT_NOT_CAST_TO_RESPONSE);
+    public static final SamlFailure INVALID_SCHEMA_RESPONSE = new SamlFailure(SamlExceptionText.INVALID_SCHEMA_RESPONSE);
+    public static final SamlFailure STATUSCODE_WAS_NOT_SUCCESS = new SamlFailure(SamlExceptionText.STATUSCODE_WAS_NOT_SUCCESS);
+    public static final SamlFailure NO_ASSERTIONS_FOUND = new SamlFailure(SamlExceptionText.NO_ASSERTIONS_FOUND);
+    public static final SamlFailure MORE_THAN_ONE_ASSERTION_WAS_FOUND = new SamlFailure(SamlExceptionText.MORE_THAN_ONE_ASSERTION_WAS_FOUND);
+    public static final SamlFailure CONDITIONS_ARE_NOT_YET_ACTIVE = new SamlFailure(SamlExceptionText.CONDITIONS_ARE_NOT_YET_ACTIVE);
+    public static final SamlFailure CONDITIONS_HAVE_EXPIRED = new SamlFailure(SamlExceptionText.CONDITIONS_HAVE_EXPIRED);
+    public static final SamlFailure STRING_CERTIFICATE_IS_INCORRECT = new SamlFailure(SamlExceptionText.STRING_CERTIFICATE_IS_INCORRECT);
+    public static final SamlFailure PROBLEM_PARSING_XML_OF_THE_RESPONSE = new SamlFailure(SamlExceptionText.PROBLEM_PARSING_XML_OF_THE_RESPONSE);
+    public static final SamlFailure PROBLEM_DECODE_RESPONSE_FROM_BASE64 = new SamlFailure(SamlExceptionText.PROBLEM_DECODE_RESPONSE_FROM_BASE64);
+    public static final SamlFailure RESPONSE_IS_TOO_LARGE = new SamlFailure(SamlExceptionText.RESPONSE_IS_TOO_LARGE);
+    public static final SamlFailure RESPONSE_DOES_NOT_HAVE_SIGNATURE = masked(SamlExceptionText.MASK_DOES_NOT_HAVE_SIGNATURE, Response.DEFAULT_ELEMENT_NAME);
+    public static final SamlFailure ASSERTION_DOES_NOT_HAVE_SIGNATURE = masked(SamlExceptionText.MASK_DOES_NOT_HAVE_SIGNATURE, Assertion.DEFAULT_ELEMENT_NAME);
+    public static final SamlFailure RESPONSE_HAS_INVALID_SIGNATURE = masked(SamlExceptionText.MASK_HAS_INVALID_SIGNATURE, Response.DEFAULT_ELEMENT_NAME);
+    public static final SamlFailure ASSERTION_HAS_INVALID_SIGNATURE = masked(SamlExceptionText.MASK_HAS_INVALID_SIGNATURE, Assertion.DEFAULT_ELEMENT_NAME);
+    public static final SamlFailure RESPONSE_WAS_ALREADY_USED = masked(SamlExceptionText.MASK_WAS_ALREADY_USED, Response.class.getSimpleName());
+    public static final SamlFailure ASSERTION_WAS_ALREADY_USED = masked(SamlExceptionText.MASK_WAS_ALREADY_USED, Assertion.class.getSimpleName());
+    public static final SamlFailure REPLAY_CACHE_IS_FULL = new SamlFailure(SamlExceptionText.REPLAY_CACHE_IS_FULL);
+
+    private SamlFailure(String message) {
+        super(message);
+    }
+
+    private static SamlFailure masked(String mask, Object value) {
+        return new SamlFailure(String.format(mask, value));
+    }
+
+    public static SamlFailure doesNotHaveSignature(QName elementName) {
+        if (Response.DEFAULT_ELEMENT_NAME.equals(elementName)) {
+            return RESPONSE_DOES_NOT_HAVE_SIGNATURE;
+        } else if (Assertion.DEFAULT_ELEMENT_NAME.equals(elementName)) {
+            return ASSERTION_DOES_NOT_HAVE_SIGNATURE;
+        }
+        return masked(SamlExceptionText.MASK_DOES_NOT_HAVE_SIGNATURE, elementName);
+    }
+
+    public static SamlFailure hasInvalidSignature(QName elementName) {
+        if (Response.DEFAULT_ELEMENT_NAME.equals(elementName)) {
+            return RESPONSE_HAS_INVALID_SIGNATURE;
+        } else if (Assertion.DEFAULT_ELEMENT_NAME.equals(elementName)) {
+            return ASSERTION_HAS_INVALID_SIGNATURE;
+        }
+        return masked(SamlExceptionText.MASK_HAS_INVALID_SIGNATURE, elementName);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -2,6 +2,6 @@ package com.subbotin.saml.exceptions;
 
 public class SamlResponseIsNotCorrectException extends RuntimeException {
     public SamlResponseIsNotCorrectException(Throwable e) {
-        super(e);
+        super(e.toString(), e, false, false);
     }
 }
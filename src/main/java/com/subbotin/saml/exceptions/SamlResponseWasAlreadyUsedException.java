@@ -0,0 +1,7 @@
+package com.subbotin.saml.exceptions;
+
+public class SamlResponseWasAlreadyUsedException extends RuntimeException {
+    public SamlResponseWasAlreadyUsedException(Throwable e) {
+        super(e.toString(), e, false, false);
+    }
+}
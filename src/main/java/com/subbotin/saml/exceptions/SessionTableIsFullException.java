@@ -0,0 +1,11 @@
+package com.subbotin.saml.exceptions;
+
+/**
+ * A login refused because the session table has no room for a new session, answered with 503 and
+ * {@code Retry-After}. It is thrown for every refused login, so it has no stack trace.
+ */
+public class SessionTableIsFullException extends RuntimeException {
+    public SessionTableIsFullException(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,18 @@
+package com.subbotin.saml.exceptions;
+
+/**
+ * A request of a tenant over its rate or concurrency limit, answered with 429 and {@code Retry-After}. It is
+ * thrown for every rejected request, so it has no stack trace.
+ */
+public class TenantLimitExceededException extends RuntimeException {
+    private final long retryAfterSeconds;
+
+    public TenantLimitExceededException(String message, long retryAfterSeconds) {
+        super(message, null, false, false);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
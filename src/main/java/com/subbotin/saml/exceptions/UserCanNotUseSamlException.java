@@ -2,6 +2,6 @@ package com.subbotin.saml.exceptions;
 
 public class UserCanNotUseSamlException extends RuntimeException {
     public UserCanNotUseSamlException(String email) {
-        super(String.format("User %s can not use SAML", email));
+        super(String.format("User %s can not use SAML", email), null, false, false);
     }
 }
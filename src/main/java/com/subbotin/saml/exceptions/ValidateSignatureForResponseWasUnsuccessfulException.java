@@ -2,6 +2,6 @@ package com.subbotin.saml.exceptions;
 
 public class ValidateSignatureForResponseWasUnsuccessfulException extends RuntimeException {
     public ValidateSignatureForResponseWasUnsuccessfulException(Throwable e) {
-        super(e);
+        super(e.toString(), e, false, false);
     }
 }
@@ -0,0 +1,80 @@
+package com.subbotin.saml.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Application-wide stage latencies by tenant and failure counters by reason. Recording is lock-free; a
+ * histogram or a counter is created on the first observation of its labels. The number of distinct
+ * failure reasons of a pipeline is capped, the rest is counted as {@value #OTHER_REASON}.
+ */
+public class Metrics {
+    public static final String UNKNOWN_TENANT = "unknown";
+    public static final String OTHER_REASON = "other";
+    static final Stage[] STAGES = Stage.values();
+    private static final int MAX_REASONS = 64;
+    private static final Metrics instance = new Metrics();
+
+    private final ConcurrentMap<String, LatencyHistogram>[] histograms;
+    private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> failures = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public Metrics() {
+        histograms = new ConcurrentMap[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            histograms[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public StageTimer startTimer() {
+        return new StageTimer(this);
+    }
+
+    public void record(Stage stage, String tenant, long nanos) {
+        ConcurrentMap<String, LatencyHistogram> byTenant = histograms[stage.ordinal()];
+        LatencyHistogram histogram = byTenant.get(tenant);
+        if (histogram == null) {
+            histogram = byTenant.computeIfAbsent(tenant, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    public void countFailure(String pipeline, String reason) {
+        ConcurrentMap<String, LongAdder> byReason = failures.computeIfAbsent(pipeline, key -> new ConcurrentHashMap<>());
+        LongAdder counter = byReason.get(reason);
+        if (counter == null) {
+            counter = byReason.computeIfAbsent(byReason.size() < MAX_REASONS ? reason : OTHER_REASON, key -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Returns the histograms of the stage by tenant, sorted for a stable output.
+     */
+    public Map<String, LatencyHistogram> getHistograms(Stage stage) {
+        return Collections.unmodifiableMap(new TreeMap<>(histograms[stage.ordinal()]));
+    }
+
+    /**
+     * Returns failure counts by pipeline and reason, sorted for a stable output.
+     */
+    public Map<String, Map<String, Long>> getFailures() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, LongAdder>> pipeline : failures.entrySet()) {
+            Map<String, Long> byReason = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> reason : pipeline.getValue().entrySet()) {
+                byReason.put(reason.getKey(), reason.getValue().sum());
+            }
+            result.put(pipeline.getKey(), byReason);
+        }
+        return result;
+    }
+}
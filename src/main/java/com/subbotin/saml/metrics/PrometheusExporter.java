@@ -0,0 +1,148 @@
+package com.subbotin.saml.metrics;
+
+import com.subbotin.saml.common.Sessions;
+import com.subbotin.saml.common.UserPersistence;
+import com.subbotin.saml.common.UserRegistry;
+import com.subbotin.saml.common.Users;
+import com.subbotin.saml.security.PooledSignatureValidator;
+import com.subbotin.saml.security.ReplayCache;
+import com.subbotin.saml.security.SignatureValidatorCache;
+import com.subbotin.saml.security.TenantLimiter;
+import com.subbotin.saml.servlets.SamlWorkerPool;
+import com.subbotin.saml.utils.FailureLog;
+import com.subbotin.saml.xml.XmlParserPool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes {@link Metrics} and the state of the shared caches and pools in the Prometheus text format 0.0.4.
+ */
+public class PrometheusExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double NANOS_IN_SECOND = 1e9;
+
+    private final Metrics metrics;
+
+    public PrometheusExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void write(Writer writer) throws IOException {
+        writeStages(writer);
+        writeFailures(writer);
+        writeTenantRejections(writer);
+        writeComponents(writer);
+    }
+
+    private void writeStages(Writer writer) throws IOException {
+        writeHeader(writer, "saml_stage_duration_seconds", "histogram", "Duration of the stages of the login and ACS pipelines.");
+        for (Stage stage : Metrics.STAGES) {
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms(stage).entrySet()) {
+                String labels = "pipeline=\"" + stage.getPipeline() + "\",stage=\"" + stage.getLabel() + "\",tenant=\"" + escape(entry.getKey()) + "\"";
+                long[] counts = entry.getValue().getCumulativeCounts();
+                for (int i = 0; i < counts.length; i++) {
+                    String bound = i < LatencyHistogram.BUCKET_BOUNDS_NANOS.length ? Double.toString(LatencyHistogram.BUCKET_BOUNDS_NANOS[i] / NANOS_IN_SECOND) : "+Inf";
+                    writeSample(writer, "saml_stage_duration_seconds_bucket", labels + ",le=\"" + bound + "\"", Long.toString(counts[i]));
+                }
+                writeSample(writer, "saml_stage_duration_seconds_sum", labels, Double.toString(entry.getValue().getSumNanos() / NANOS_IN_SECOND));
+                writeSample(writer, "saml_stage_duration_seconds_count", labels, Long.toString(counts[counts.length - 1]));
+            }
+        }
+    }
+
+    private void writeFailures(Writer writer) throws IOException {
+        writeHeader(writer, "saml_failures_total", "counter", "Rejected login and ACS requests by reason.");
+        for (Map.Entry<String, Map<String, Long>> pipeline : metrics.getFailures().entrySet()) {
+            for (Map.Entry<String, Long> reason : pipeline.getValue().entrySet()) {
+                writeSample(writer, "saml_failures_total", "pipeline=\"" + pipeline.getKey() + "\",reason=\"" + escape(reason.getKey()) + "\"",
+                        Long.toString(reason.getValue()));
+            }
+        }
+    }
+
+    private static void writeTenantRejections(Writer writer) throws IOException {
+        writeHeader(writer, "saml_tenant_rejections_total", "counter", "Login and ACS requests rejected by the limits of their tenant.");
+        for (Map.Entry<String, Map<String, Long>> tenant : TenantLimiter.getInstance().getRejections().entrySet()) {
+            for (Map.Entry<String, Long> limit : tenant.getValue().entrySet()) {
+                writeSample(writer, "saml_tenant_rejections_total", "tenant=\"" + escape(tenant.getKey()) + "\",limit=\"" + limit.getKey() + "\"",
+                        Long.toString(limit.getValue()));
+            }
+        }
+    }
+
+    private void writeComponents(Writer writer) throws IOException {
+        XmlParserPool xmlParserPool = XmlParserPool.getInstance();
+        writeValue(writer, "saml_xml_parser_pool_size", "gauge", "Parsers in the pool.", xmlParserPool.getSize());
+        writeValue(writer, "saml_xml_parser_pool_in_use", "gauge", "Parsers in use.", xmlParserPool.getInUse());
+        writeValue(writer, "saml_xml_parser_pool_peak_in_use", "gauge", "Most parsers in use at once.", xmlParserPool.getPeakInUse());
+        writeValue(writer, "saml_xml_parser_pool_waiting", "gauge", "Requests waiting for a parser.", xmlParserPool.getWaiting());
+        writeValue(writer, "saml_xml_parser_pool_rejected_total", "counter", "Parses rejected because the pool was exhausted.", xmlParserPool.getRejected());
+
+        SamlWorkerPool samlWorkerPool = SamlWorkerPool.getInstance();
+        writeValue(writer, "saml_worker_pool_active", "gauge", "Login and ACS requests being processed.", samlWorkerPool.getActiveCount());
+        writeValue(writer, "saml_worker_pool_queued", "gauge", "Login and ACS requests waiting for a worker.", samlWorkerPool.getQueueSize());
+        writeValue(writer, "saml_worker_pool_rejected_total", "counter", "Requests answered with 503 because the queue was full or timed out.", samlWorkerPool.getRejected());
+
+        SignatureValidatorCache signatureValidatorCache = SignatureValidatorCache.getInstance();
+        writeValue(writer, "saml_signature_validator_cache_hits_total", "counter", "Signature validators served from the cache.", signatureValidatorCache.getHits());
+        writeValue(writer, "saml_signature_validator_cache_misses_total", "counter", "Signature validators built from a certificate.", signatureValidatorCache.getMisses());
+        writeValue(writer, "saml_signature_fallbacks_total", "counter", "Signatures outside of the pooled profile verified by OpenSAML.", PooledSignatureValidator.getFallbacks());
+
+        ReplayCache replayCache = ReplayCache.getInstance();
+        writeValue(writer, "saml_replay_cache_replays_total", "counter", "Replayed assertions and responses.", replayCache.getReplays());
+        writeValue(writer, "saml_replay_cache_overflows_total", "counter", "Responses refused because the bucket of their ID was full of unexpired IDs.", replayCache.getOverflows());
+
+        FailureLog failureLog = FailureLog.getInstance();
+        writeValue(writer, "saml_failure_log_written_total", "counter", "Failures written to the log.", failureLog.getWritten());
+        writeValue(writer, "saml_failure_log_suppressed_total", "counter", "Failures not logged because their reason was over its rate.", failureLog.getSuppressed());
+        writeValue(writer, "saml_failure_log_dropped_total", "counter", "Failures not logged because the log queue was full.", failureLog.getDropped());
+
+        if (Sessions.isTokenMode()) {
+            writeValue(writer, "saml_session_tokens_rejected_total", "counter", "Session tokens that were malformed, forged, expired or of an unknown key.",
+                    Sessions.getCodec().getRejected());
+        } else {
+            writeValue(writer, "saml_session_store_rejections_total", "counter", "Logins refused because the buckets of the session table they may use were full of live sessions.", Sessions.getStore().getRejections());
+        }
+
+        UserRegistry userRegistry = Users.getRegistry();
+        writeValue(writer, "saml_users", "gauge", "Users in the registry.", userRegistry.getSize());
+        writeValue(writer, "saml_user_registry_hits_total", "counter", "Logins of known users.", userRegistry.getHits());
+        writeValue(writer, "saml_user_registry_misses_total", "counter", "Logins of new or expired users.", userRegistry.getMisses());
+        writeValue(writer, "saml_user_registry_evictions_total", "counter", "Users removed by size or expiration.", userRegistry.getEvictions());
+
+        UserPersistence userPersistence = Users.getPersistence();
+        if (userPersistence != null) {
+            writeValue(writer, "saml_user_journal_records_total", "counter", "User updates appended to the journal.", userPersistence.getJournalRecords());
+            writeValue(writer, "saml_user_recovery_milliseconds", "gauge", "Time spent recovering users from the snapshot and the journal on start.",
+                    userPersistence.getRecoveryMillis());
+        }
+    }
+
+    private static void writeValue(Writer writer, String name, String type, String help, long value) throws IOException {
+        writeHeader(writer, name, type, help);
+        writer.write(name);
+        writer.write(' ');
+        writer.write(Long.toString(value));
+        writer.write('\n');
+    }
+
+    private static void writeHeader(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void writeSample(Writer writer, String name, String labels, String value) throws IOException {
+        writer.write(name);
+        writer.write('{');
+        writer.write(labels);
+        writer.write("} ");
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
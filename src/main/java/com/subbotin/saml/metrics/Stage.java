@@ -0,0 +1,38 @@
+package com.subbotin.saml.metrics;
+
+public enum Stage {
+    LOGIN_RENDER(Stage.LOGIN, "render"),
+    LOGIN_SIGN(Stage.LOGIN, "sign"),
+    LOGIN_URI(Stage.LOGIN, "uri"),
+    ACS_DECODE(Stage.ACS, "decode"),
+    ACS_PREFILTER(Stage.ACS, "prefilter"),
+    ACS_PARSE(Stage.ACS, "parse"),
+    ACS_SCHEMA(Stage.ACS, "schema"),
+    ACS_STATUS(Stage.ACS, "status"),
+    ACS_ASSERTION(Stage.ACS, "assertion"),
+    ACS_CONDITIONS(Stage.ACS, "conditions"),
+    ACS_ATTRIBUTES(Stage.ACS, "attributes"),
+    ACS_VALIDATOR(Stage.ACS, "validator"),
+    ACS_RESPONSE_SIGNATURE(Stage.ACS, "response_signature"),
+    ACS_ASSERTION_SIGNATURE(Stage.ACS, "assertion_signature"),
+    ACS_REPLAY(Stage.ACS, "replay");
+
+    public static final String LOGIN = "login";
+    public static final String ACS = "acs";
+
+    private final String pipeline;
+    private final String label;
+
+    Stage(String pipeline, String label) {
+        this.pipeline = pipeline;
+        this.label = label;
+    }
+
+    public String getPipeline() {
+        return pipeline;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
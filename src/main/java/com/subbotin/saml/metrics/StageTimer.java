@@ -0,0 +1,39 @@
+package com.subbotin.saml.metrics;
+
+/**
+ * Measures consecutive stages of one request. Durations are kept in the timer until the tenant is known
+ * and recorded all at once by {@link #finish(String)} or {@link #fail(String, String, String)}.
+ */
+public class StageTimer {
+    private static final int STAGES = Stage.values().length;
+
+    private final Metrics metrics;
+    private final long[] nanos = new long[STAGES];
+    private long completed;
+    private long last;
+
+    StageTimer(Metrics metrics) {
+        this.metrics = metrics;
+        this.last = System.nanoTime();
+    }
+
+    public void stage(Stage stage) {
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - last;
+        completed |= 1L << stage.ordinal();
+        last = now;
+    }
+
+    public void finish(String tenant) {
+        for (int i = 0; i < STAGES; i++) {
+            if ((completed & (1L << i)) != 0) {
+                metrics.record(Metrics.STAGES[i], tenant, nanos[i]);
+            }
+        }
+    }
+
+    public void fail(String pipeline, String reason, String tenant) {
+        finish(tenant);
+        metrics.countFailure(pipeline, reason);
+    }
+}
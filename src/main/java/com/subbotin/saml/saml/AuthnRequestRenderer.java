@@ -0,0 +1,12 @@
+package com.subbotin.saml.saml;
+
+public enum AuthnRequestRenderer {
+    TEMPLATE,
+    OBJECT_TREE;
+
+    public static final String SETTING = "authnRequest.renderer";
+
+    public static AuthnRequestRenderer fromSetting(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,43 @@
+package com.subbotin.saml.saml;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Properties;
+
+public class CommonSettings {
+    public static final String ACS_URL = "acsUrl";
+
+    private final Properties properties;
+
+    public CommonSettings(Properties properties) {
+        this.properties = properties;
+    }
+
+    public String getAcsUrl() {
+        return properties.getProperty(ACS_URL);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,199 @@
+package com.subbotin.saml.saml;
+
+import javax.annotation.Nullable;
+
+/**
+ * Maps an email or a bare domain to the value of the longest registered domain it ends with, so
+ * {@code user@EU.Mail.Example.com} finds {@code eu.mail.example.com}, then {@code mail.example.com}, then
+ * {@code example.com}. Suffixes only match at label boundaries: {@code notexample.com} is not a subdomain
+ * of {@code example.com}.
+ * <p>
+ * The lookup walks the input from the end, folds case on the fly and keeps a running hash of the suffix,
+ * probing an open-addressing table at every dot whose suffix has the length of some registered domain.
+ * It never allocates and costs at most one probe per label, whatever the number of registered domains.
+ */
+public final class DomainResolver<V> {
+    private static final DomainResolver<?> EMPTY = new Builder<>().build();
+
+    private final String[] domains;
+    private final int[] hashes;
+    private final Object[] values;
+    private final long lengths;
+    private final int mask;
+    private final int size;
+
+    private DomainResolver(String[] domains, int[] hashes, Object[] values, long lengths, int size) {
+        this.domains = domains;
+        this.hashes = hashes;
+        this.values = values;
+        this.lengths = lengths;
+        this.mask = domains.length - 1;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> DomainResolver<V> empty() {
+        return (DomainResolver<V>) EMPTY;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(String emailOrDomain) {
+        int slot = find(emailOrDomain);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /**
+     * Returns the registered domain that {@link #get} would use, in lower case.
+     */
+    @Nullable
+    public String getDomain(String emailOrDomain) {
+        int slot = find(emailOrDomain);
+        return slot < 0 ? null : domains[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int find(String emailOrDomain) {
+        int end = emailOrDomain.length();
+        int found = -1;
+        int hash = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = emailOrDomain.charAt(i);
+            if (c == '@') {
+                break;
+            }
+            hash = 31 * hash + toLowerCase(c);
+            char previous = i == 0 ? '@' : emailOrDomain.charAt(i - 1);
+            if ((previous == '.' || previous == '@') && (lengths & lengthBit(end - i)) != 0) {
+                int slot = probe(hash, emailOrDomain, i, end - i);
+                if (slot >= 0) {
+                    found = slot;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int probe(int hash, String emailOrDomain, int offset, int length) {
+        for (int slot = spread(hash) & mask; domains[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(domains[slot], emailOrDomain, offset, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(String domain, String emailOrDomain, int offset, int length) {
+        if (domain.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (domain.charAt(i) != toLowerCase(emailOrDomain.charAt(offset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c < 128 ? c : Character.toLowerCase(c);
+    }
+
+    private static String toLowerCase(String domain) {
+        char[] chars = new char[domain.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = toLowerCase(domain.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Hash of the domain read from the last character to the first, the order in which lookups see it.
+     */
+    private static int hash(String domain) {
+        int hash = 0;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            hash = 31 * hash + domain.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * One bit per domain length, lengths from 63 on share the last bit.
+     */
+    private static long lengthBit(int length) {
+        return 1L << Math.min(length, 63);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    public static class Builder<V> {
+        private String[] domains = new String[16];
+        private int[] hashes = new int[16];
+        private Object[] values = new Object[16];
+        private long lengths;
+        private int size;
+
+        /**
+         * Registers {@code domain} in any case, returns false and keeps the first value when it is already registered.
+         */
+        public boolean putIfAbsent(String domain, V value) {
+            String key = toLowerCase(domain.trim());
+            if (key.isEmpty()) {
+                return false;
+            }
+            if ((size + 1) * 2 > domains.length) {
+                resize();
+            }
+            if (!insert(domains, hashes, values, key, hash(key), value)) {
+                return false;
+            }
+            lengths |= lengthBit(key.length());
+            size++;
+            return true;
+        }
+
+        /**
+         * Hands the table over to the resolver, the builder must not be used afterwards.
+         */
+        public DomainResolver<V> build() {
+            return new DomainResolver<>(domains, hashes, values, lengths, size);
+        }
+
+        private void resize() {
+            String[] newDomains = new String[domains.length * 2];
+            int[] newHashes = new int[newDomains.length];
+            Object[] newValues = new Object[newDomains.length];
+            for (int i = 0; i < domains.length; i++) {
+                if (domains[i] != null) {
+                    insert(newDomains, newHashes, newValues, domains[i], hashes[i], values[i]);
+                }
+            }
+            domains = newDomains;
+            hashes = newHashes;
+            values = newValues;
+        }
+
+        private static boolean insert(String[] domains, int[] hashes, Object[] values, String domain, int hash, Object value) {
+            int mask = domains.length - 1;
+            int slot = spread(hash) & mask;
+            for (; domains[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && domains[slot].equals(domain)) {
+                    return false;
+                }
+            }
+            domains[slot] = domain;
+            hashes[slot] = hash;
+            values[slot] = value;
+            return true;
+        }
+    }
+}
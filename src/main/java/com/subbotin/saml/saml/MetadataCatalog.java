@@ -0,0 +1,137 @@
+package com.subbotin.saml.saml;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * IdPs read from SAML metadata, indexed by entityID and by the {@code shibmd:Scope} domains they declare, a
+ * domain also serves its subdomains through {@link DomainResolver}. A domain declared by two IdPs belongs to
+ * neither, so an IdP of an aggregate can not take over the users of another one. A response is trusted by
+ * the IdP of its Issuer, {@link #isInScope} tells whether the domain of its NameID is one of that IdP's.
+ * Entries share the certificate strings of IdPs with the same key, so a federation aggregate of tens of
+ * thousands of IdPs costs its distinct certificates once.
+ */
+public class MetadataCatalog {
+    public static final MetadataCatalog EMPTY = new MetadataCatalog(Collections.emptyMap(), DomainResolver.empty());
+
+    private final Map<String, Entry> byEntityId;
+    private final DomainResolver<Entry> byDomain;
+
+    private MetadataCatalog(Map<String, Entry> byEntityId, DomainResolver<Entry> byDomain) {
+        this.byEntityId = byEntityId;
+        this.byDomain = byDomain;
+    }
+
+    @Nullable
+    public SamlSettings getByEntityId(String entityId) {
+        Entry entry = byEntityId.get(entityId);
+        return entry == null ? null : entry.samlSettings;
+    }
+
+    /**
+     * Returns the IdP to send a user of the domain to. It must not be used to trust a response, see
+     * {@link #isInScope}.
+     */
+    @Nullable
+    public SamlSettings getByDomain(String emailOrDomain) {
+        Entry entry = byDomain.get(emailOrDomain);
+        return entry == null ? null : entry.samlSettings;
+    }
+
+    /**
+     * Tells whether the domain of the email is a scope of the IdP {@code entityId}, the only IdP that may
+     * assert its users.
+     */
+    public boolean isInScope(String entityId, String emailOrDomain) {
+        Entry entry = byEntityId.get(entityId);
+        return entry != null && byDomain.get(emailOrDomain) == entry;
+    }
+
+    @Nullable
+    public String getDomain(String emailOrDomain) {
+        return byDomain.getDomain(emailOrDomain);
+    }
+
+    public int size() {
+        return byEntityId.size();
+    }
+
+    public int getDomainCount() {
+        return byDomain.size();
+    }
+
+    public List<SamlSettings> getAll() {
+        List<SamlSettings> all = new ArrayList<>(byEntityId.size());
+        for (Entry entry : byEntityId.values()) {
+            all.add(entry.samlSettings);
+        }
+        return all;
+    }
+
+    private static final class Entry {
+        final SamlSettings samlSettings;
+
+        Entry(SamlSettings samlSettings) {
+            this.samlSettings = samlSettings;
+        }
+    }
+
+    /**
+     * Collects IdPs of one or more metadata files. The first IdP that declares an entityID keeps it; a
+     * domain declared by more than one IdP is left out. Both are counted as conflicts.
+     */
+    public static class Builder {
+        private final Map<String, Entry> byEntityId = new HashMap<>();
+        private final Map<String, Entry> scopes = new HashMap<>();
+        private final Set<String> contestedScopes = new HashSet<>();
+        private final Map<String, String> certificates = new HashMap<>();
+        private final Map<String, String> samlEndpoints = new HashMap<>();
+        private int conflicts;
+
+        public void add(String entityId, String samlEndpoint, String certificate, boolean signAuthnRequest, Collection<String> domains) {
+            if (byEntityId.containsKey(entityId)) {
+                conflicts++;
+                return;
+            }
+            Entry entry = new Entry(new SamlSettings(samlEndpoints.computeIfAbsent(samlEndpoint, key -> key),
+                    certificates.computeIfAbsent(certificate, key -> key), signAuthnRequest));
+            byEntityId.put(entityId, entry);
+            for (String domain : domains) {
+                String scope = domain.trim().toLowerCase(Locale.ROOT);
+                if (scope.isEmpty()) {
+                    continue;
+                }
+                Entry owner = scopes.putIfAbsent(scope, entry);
+                if (owner != null && owner != entry) {
+                    contestedScopes.add(scope);
+                    conflicts++;
+                }
+            }
+        }
+
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        /**
+         * Hands the indexes over to the catalog, the builder must not be used afterwards.
+         */
+        public MetadataCatalog build() {
+            DomainResolver.Builder<Entry> byDomain = new DomainResolver.Builder<>();
+            for (Map.Entry<String, Entry> scope : scopes.entrySet()) {
+                if (!contestedScopes.contains(scope.getKey())) {
+                    byDomain.putIfAbsent(scope.getKey(), scope.getValue());
+                }
+            }
+            return new MetadataCatalog(byEntityId, byDomain.build());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.subbotin.saml.saml;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.xml.XMLObject;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of the attributes of an assertion. Values of an attribute are extracted only when the
+ * attribute is asked for, so an assertion with thousands of group values costs nothing unless somebody
+ * reads the groups. Attributes outside of a non-empty allow-list are not visible at all. The view belongs
+ * to one request and is not thread-safe.
+ */
+public class SamlAttributes extends AbstractMap<String, List<String>> {
+    public static final String ALLOW_LIST = "attributes.allowList";
+
+    private final Assertion assertion;
+    private final Set<String> allowList;
+    private Map<String, Attribute> attributes;
+    private final Map<String, Object> values = new HashMap<>();
+    private Set<Entry<String, List<String>>> entrySet;
+
+    public SamlAttributes(Assertion assertion, Set<String> allowList) {
+        this.assertion = assertion;
+        this.allowList = allowList;
+    }
+
+    /**
+     * Returns the first value of the attribute without building the list of its values.
+     */
+    @Nullable
+    public String getFirstValue(String name) {
+        Object value = getValue(name);
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            return list.isEmpty() ? null : (String) list.get(0);
+        }
+        return (String) value;
+    }
+
+    @Override
+    @Nullable
+    public List<String> get(Object name) {
+        return toList(getValue(name));
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return getAttributes().containsKey(name);
+    }
+
+    @Override
+    public int size() {
+        return getAttributes().size();
+    }
+
+    @Override
+    public Set<Entry<String, List<String>>> entrySet() {
+        if (entrySet == null) {
+            Set<Entry<String, List<String>>> entries = new LinkedHashSet<>();
+            for (String name : getAttributes().keySet()) {
+                entries.add(new SimpleImmutableEntry<>(name, get(name)));
+            }
+            entrySet = Collections.unmodifiableSet(entries);
+        }
+        return entrySet;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static List<String> toList(@Nullable Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof List ? (List<String>) value : Collections.singletonList((String) value);
+    }
+
+    @Nullable
+    private Object getValue(Object name) {
+        Object value = values.get(name);
+        if (value == null) {
+            Attribute attribute = getAttributes().get(name);
+            if (attribute == null) {
+                return null;
+            }
+            value = extractValues(attribute);
+            values.put((String) name, value);
+        }
+        return value;
+    }
+
+    private static Object extractValues(Attribute attribute) {
+        List<XMLObject> attributeValues = attribute.getAttributeValues();
+        if (attributeValues.size() == 1) {
+            return getText(attributeValues.get(0));
+        }
+        List<String> list = new ArrayList<>(attributeValues.size());
+        for (XMLObject attributeValue : attributeValues) {
+            list.add(getText(attributeValue));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static String getText(XMLObject attributeValue) {
+        return attributeValue.getDOM().getTextContent();
+    }
+
+    private Map<String, Attribute> getAttributes() {
+        if (attributes == null) {
+            Map<String, Attribute> index = new HashMap<>();
+            for (AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
+                for (Attribute attribute : attributeStatement.getAttributes()) {
+                    String name = attribute.getName();
+                    if (name != null && (allowList.isEmpty() || allowList.contains(name))) {
+                        index.put(name, attribute);
+                    }
+                }
+            }
+            attributes = index;
+        }
+        return attributes;
+    }
+}
@@ -2,19 +2,36 @@ package com.subbotin.saml.saml;
 
 import org.opensaml.saml2.core.AuthnRequest;
 
+import javax.annotation.Nullable;
+
 public class SamlRequest {
     private AuthnRequest authnRequest;
+    private String requestId;
     private String requestBase64;
 
     public SamlRequest(AuthnRequest authnRequest, String requestBase64) {
         this.authnRequest = authnRequest;
+        this.requestId = authnRequest.getID();
+        this.requestBase64 = requestBase64;
+    }
+
+    public SamlRequest(String requestId, String requestBase64) {
+        this.requestId = requestId;
         this.requestBase64 = requestBase64;
     }
 
+    /**
+     * Is null when the request was rendered from a template without building the OpenSAML object tree.
+     */
+    @Nullable
     public AuthnRequest getAuthnRequest() {
         return authnRequest;
     }
 
+    public String getRequestId() {
+        return requestId;
+    }
+
     public String getRequestBase64() {
         return requestBase64;
     }
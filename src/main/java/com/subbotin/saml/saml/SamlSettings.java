@@ -1,12 +1,30 @@
 package com.subbotin.saml.saml;
 
+import com.subbotin.saml.utils.RedirectEncoder;
+
+import javax.annotation.Nullable;
+import java.net.URISyntaxException;
+
 public class SamlSettings {
     private String samlEndpoint;
     private String x509Certificate;
+    private boolean signAuthnRequest;
+    private TenantLimits limits;
+    private volatile String redirectPrefix;
 
     public SamlSettings(String samlEndpoint, String x509Certificate) {
+        this(samlEndpoint, x509Certificate, false);
+    }
+
+    public SamlSettings(String samlEndpoint, String x509Certificate, boolean signAuthnRequest) {
+        this(samlEndpoint, x509Certificate, signAuthnRequest, null);
+    }
+
+    public SamlSettings(String samlEndpoint, String x509Certificate, boolean signAuthnRequest, @Nullable TenantLimits limits) {
         this.samlEndpoint = samlEndpoint;
         this.x509Certificate = x509Certificate;
+        this.signAuthnRequest = signAuthnRequest;
+        this.limits = limits;
     }
 
     public String getSamlEndpoint() {
@@ -16,4 +34,32 @@ public class SamlSettings {
     public String getX509Certificate() {
         return x509Certificate;
     }
+
+    /**
+     * Returns {@link RedirectEncoder#getPrefix} of the endpoint. It is built on first use and kept with the
+     * settings, so every tenant has one and a reload that replaces the settings drops it.
+     */
+    public String getRedirectPrefix() throws URISyntaxException {
+        String prefix = redirectPrefix;
+        if (prefix == null) {
+            prefix = RedirectEncoder.getPrefix(samlEndpoint);
+            redirectPrefix = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * The IdP only accepts AuthnRequests signed with the SP key in the HTTP-Redirect binding.
+     */
+    public boolean isSignAuthnRequest() {
+        return signAuthnRequest;
+    }
+
+    /**
+     * Limits of the tenant, {@code null} when the defaults of {@code common.properties} apply.
+     */
+    @Nullable
+    public TenantLimits getLimits() {
+        return limits;
+    }
 }
@@ -0,0 +1,92 @@
+package com.subbotin.saml.saml;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Properties;
+
+/**
+ * Admission limits of a tenant: logins and ACS responses per second with a burst, and signature
+ * verifications running at once. A limit of 0 means no limit. A tenant file may set any of them, the rest
+ * come from {@code common.properties}.
+ */
+public final class TenantLimits {
+    public static final String RATE_LIMIT_PER_SECOND = "rateLimit.perSecond";
+    public static final String RATE_LIMIT_BURST = "rateLimit.burst";
+    public static final String MAX_CONCURRENT_VERIFICATIONS = "maxConcurrentVerifications";
+    public static final TenantLimits UNLIMITED = new TenantLimits(0, 0, 0);
+
+    private final double perSecond;
+    private final double burst;
+    private final int maxConcurrentVerifications;
+
+    public TenantLimits(double perSecond, double burst, int maxConcurrentVerifications) {
+        this.perSecond = Math.max(0, perSecond);
+        this.burst = perSecond <= 0 ? 0 : Math.max(1, burst > 0 ? burst : perSecond);
+        this.maxConcurrentVerifications = Math.max(0, maxConcurrentVerifications);
+    }
+
+    public static TenantLimits fromSettings(CommonSettings settings) {
+        return new TenantLimits(
+                settings.getDouble(RATE_LIMIT_PER_SECOND, 0),
+                settings.getDouble(RATE_LIMIT_BURST, 0),
+                settings.getInt(MAX_CONCURRENT_VERIFICATIONS, 0));
+    }
+
+    /**
+     * Limits of a tenant file, the limits it does not set are taken from {@code defaults}. A tenant that
+     * sets its own rate without a burst gets a burst of one second.
+     */
+    public static TenantLimits fromProperties(Properties properties, TenantLimits defaults) {
+        String perSecond = StringUtils.trim(properties.getProperty(RATE_LIMIT_PER_SECOND));
+        String burst = StringUtils.trim(properties.getProperty(RATE_LIMIT_BURST));
+        String maxConcurrentVerifications = StringUtils.trim(properties.getProperty(MAX_CONCURRENT_VERIFICATIONS));
+        if (StringUtils.isEmpty(perSecond) && StringUtils.isEmpty(burst) && StringUtils.isEmpty(maxConcurrentVerifications)) {
+            return defaults;
+        }
+        return new TenantLimits(
+                StringUtils.isEmpty(perSecond) ? defaults.perSecond : Double.parseDouble(perSecond),
+                StringUtils.isNotEmpty(burst) ? Double.parseDouble(burst) : StringUtils.isEmpty(perSecond) ? defaults.burst : 0,
+                StringUtils.isEmpty(maxConcurrentVerifications) ? defaults.maxConcurrentVerifications : Integer.parseInt(maxConcurrentVerifications));
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    /**
+     * Requests that may pass at once after a quiet period, at least one; {@code perSecond} when not set.
+     */
+    public double getBurst() {
+        return burst;
+    }
+
+    public int getMaxConcurrentVerifications() {
+        return maxConcurrentVerifications;
+    }
+
+    public boolean isRateLimited() {
+        return perSecond > 0;
+    }
+
+    public boolean isConcurrencyLimited() {
+        return maxConcurrentVerifications > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TenantLimits)) {
+            return false;
+        }
+        TenantLimits that = (TenantLimits) o;
+        return perSecond == that.perSecond && burst == that.burst && maxConcurrentVerifications == that.maxConcurrentVerifications;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(perSecond) * 31 + Double.doubleToLongBits(burst);
+        return (int) (bits ^ (bits >>> 32)) * 31 + maxConcurrentVerifications;
+    }
+}
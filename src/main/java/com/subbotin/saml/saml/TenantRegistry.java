@@ -0,0 +1,370 @@
+package com.subbotin.saml.saml;
+
+import com.subbotin.saml.utils.FileUtils;
+import com.subbotin.saml.xml.MetadataReader;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the settings of every tenant (one {@code <domain>.properties} file per email domain) and
+ * {@code common.properties} in memory. Lookups are served from an immutable snapshot, which is replaced
+ * as a whole when the settings directory changes, so a request never sees a half-loaded configuration
+ * and never touches the disk. Unknown domains are simply absent from the snapshot, so misses are cached
+ * as well. Domains are matched by {@link DomainResolver}: case-insensitively and by the longest registered
+ * suffix, so a tenant also serves its subdomains.
+ * <p>
+ * IdPs can also come from the SAML metadata files listed in {@code metadata.files}, which are read into a
+ * {@link MetadataCatalog}; a {@code .properties} tenant wins over metadata for the same domain. Metadata is
+ * parsed again only when one of the files changed.
+ */
+public class TenantRegistry {
+    public static final String SETTINGS_DIRECTORY_PROPERTY = "saml.settings.dir";
+    public static final String DEFAULT_SETTINGS_DIRECTORY = "src/main/resources";
+    public static final String COMMON_PROPERTIES = "common.properties";
+    public static final String SAML_ENDPOINT = "samlEndpoint";
+    public static final String X509_CERTIFICATE = "x509Certificate";
+    public static final String SIGN_AUTHN_REQUEST = "signAuthnRequest";
+    public static final String METADATA_FILES = "metadata.files";
+    private static final String PROPERTIES_EXTENSION = ".properties";
+    private static final String METADATA_EXTENSION = ".xml";
+    private static final int METADATA_BUFFER_SIZE = 64 * 1024;
+
+    static Logger logger = LoggerFactory.getLogger(TenantRegistry.class);
+    private static volatile TenantRegistry instance;
+
+    private final Path directory;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watchService;
+    private Thread watcher;
+
+    public TenantRegistry(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the application-wide registry, loading it and starting the directory watcher on first use.
+     */
+    public static TenantRegistry getInstance() {
+        TenantRegistry registry = instance;
+        if (registry == null) {
+            synchronized (TenantRegistry.class) {
+                registry = instance;
+                if (registry == null) {
+                    registry = new TenantRegistry(Paths.get(System.getProperty(SETTINGS_DIRECTORY_PROPERTY, DEFAULT_SETTINGS_DIRECTORY)));
+                    registry.reload();
+                    registry.startWatching();
+                    instance = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Looks up the tenant of an email or a domain, {@code .properties} tenants are searched before metadata.
+     */
+    @Nullable
+    public SamlSettings getSamlSettings(String emailOrDomain) {
+        Snapshot current = snapshot.get();
+        SamlSettings samlSettings = current.domainResolver.get(emailOrDomain);
+        return samlSettings != null ? samlSettings : current.metadataCatalog.getByDomain(emailOrDomain);
+    }
+
+    /**
+     * Returns the registered domain that {@link #getSamlSettings} matches, in lower case.
+     */
+    @Nullable
+    public String getTenantDomain(String emailOrDomain) {
+        Snapshot current = snapshot.get();
+        String domain = current.domainResolver.getDomain(emailOrDomain);
+        return domain != null ? domain : current.metadataCatalog.getDomain(emailOrDomain);
+    }
+
+    @Nullable
+    public SamlSettings getSamlSettingsByEntityId(String entityId) {
+        return snapshot.get().metadataCatalog.getByEntityId(entityId);
+    }
+
+    /**
+     * Returns the settings whose certificate may sign a response of {@code issuer} about {@code email}: those
+     * of the {@code .properties} tenant of its domain, or those of the metadata IdP {@code issuer} when the
+     * domain is one of its scopes. The domain alone never selects a metadata IdP, the NameID is not
+     * verified yet.
+     */
+    @Nullable
+    public SamlSettings getTrustedSamlSettings(@Nullable String issuer, String email) {
+        Snapshot current = snapshot.get();
+        SamlSettings samlSettings = current.domainResolver.get(email);
+        if (samlSettings != null) {
+            return samlSettings;
+        }
+        return issuer != null && current.metadataCatalog.isInScope(issuer, email) ? current.metadataCatalog.getByEntityId(issuer) : null;
+    }
+
+    public CommonSettings getCommonSettings() {
+        return snapshot.get().commonSettings;
+    }
+
+    /**
+     * Returns the limits of the tenant of an email or a domain, the defaults of {@code common.properties}
+     * for an IdP of metadata or an unknown domain.
+     */
+    public TenantLimits getLimits(String emailOrDomain) {
+        SamlSettings samlSettings = getSamlSettings(emailOrDomain);
+        return samlSettings != null && samlSettings.getLimits() != null ? samlSettings.getLimits() : snapshot.get().defaultLimits;
+    }
+
+    /**
+     * Tenants of the {@code .properties} files, IdPs of metadata are in {@link #getMetadataCatalog()}.
+     */
+    public Map<String, SamlSettings> getTenants() {
+        return snapshot.get().tenants;
+    }
+
+    public MetadataCatalog getMetadataCatalog() {
+        return snapshot.get().metadataCatalog;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Re-reads the settings directory and atomically publishes the result. A file that can not be read or
+     * lacks {@code samlEndpoint} or {@code x509Certificate} keeps its previous settings, so a half-written
+     * file never drops a tenant; a tenant is removed by deleting its file.
+     */
+    public synchronized void reload() {
+        Snapshot previous = snapshot.get();
+        Map<String, SamlSettings> tenants = new HashMap<>();
+        CommonSettings commonSettings = loadCommonSettings(previous.commonSettings);
+        TenantLimits defaultLimits = TenantLimits.fromSettings(commonSettings);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PROPERTIES_EXTENSION)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (COMMON_PROPERTIES.equals(fileName)) {
+                    continue;
+                }
+                String domain = StringUtils.removeEnd(fileName, PROPERTIES_EXTENSION);
+                boolean loaded;
+                try {
+                    loaded = putTenant(tenants, domain, FileUtils.loadProperties(file), defaultLimits);
+                } catch (IOException e) {
+                    logger.error("Problem reading settings file " + file, e);
+                    loaded = false;
+                }
+                SamlSettings previousSettings = previous.tenants.get(domain);
+                if (!loaded && previousSettings != null) {
+                    logger.warn("Previous settings of domain {} are kept", domain);
+                    tenants.put(domain, previousSettings);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Problem listing settings directory " + directory + ", keeping previous settings", e);
+            return;
+        }
+
+        Snapshot current = loadMetadata(Collections.unmodifiableMap(tenants), commonSettings, previous);
+        snapshot.set(current);
+        logger.info("Loaded settings for {} tenants from {}", tenants.size(), directory);
+        if (listeners.isEmpty()) {
+            return;
+        }
+        List<SamlSettings> all = new ArrayList<>(current.tenants.values());
+        all.addAll(current.metadataCatalog.getAll());
+        for (Listener listener : listeners) {
+            listener.onReload(all);
+        }
+    }
+
+    /**
+     * Common settings are read before the tenants, whose limits default to them.
+     */
+    private CommonSettings loadCommonSettings(CommonSettings previous) {
+        Path file = directory.resolve(COMMON_PROPERTIES);
+        if (!Files.exists(file)) {
+            return previous;
+        }
+        try {
+            return new CommonSettings(FileUtils.loadProperties(file));
+        } catch (IOException e) {
+            logger.error("Problem reading settings file " + file, e);
+            return previous;
+        }
+    }
+
+    /**
+     * Keeps the previous catalog when the files did not change or one of them can not be read.
+     */
+    private Snapshot loadMetadata(Map<String, SamlSettings> tenants, CommonSettings commonSettings, Snapshot previous) {
+        List<Path> files = new ArrayList<>();
+        StringBuilder stamp = new StringBuilder();
+        for (String file : StringUtils.split(commonSettings.getString(METADATA_FILES, ""), ',')) {
+            if (StringUtils.isNotBlank(file)) {
+                Path path = directory.resolve(file.trim());
+                files.add(path);
+                stamp.append(path).append(':').append(path.toFile().lastModified()).append(':').append(path.toFile().length()).append(';');
+            }
+        }
+        if (stamp.toString().equals(previous.metadataStamp)) {
+            return new Snapshot(tenants, commonSettings, previous.metadataCatalog, previous.metadataStamp);
+        }
+
+        long start = System.nanoTime();
+        MetadataReader metadataReader = new MetadataReader();
+        MetadataCatalog.Builder builder = new MetadataCatalog.Builder();
+        for (Path file : files) {
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(file), METADATA_BUFFER_SIZE)) {
+                metadataReader.read(input, builder);
+            } catch (IOException | XMLStreamException e) {
+                logger.error("Problem reading metadata file " + file + ", keeping previous metadata", e);
+                return new Snapshot(tenants, commonSettings, previous.metadataCatalog, previous.metadataStamp);
+            }
+        }
+        MetadataCatalog metadataCatalog = builder.build();
+        if (!files.isEmpty()) {
+            logger.info("Loaded {} IdPs for {} domains from {} metadata files in {} ms, {} duplicate entityIDs or domains were skipped",
+                    metadataCatalog.size(), metadataCatalog.getDomainCount(), files.size(), (System.nanoTime() - start) / 1000000, builder.getConflicts());
+        }
+        return new Snapshot(tenants, commonSettings, metadataCatalog, stamp.toString());
+    }
+
+    private boolean putTenant(Map<String, SamlSettings> tenants, String domain, Properties properties, TenantLimits defaultLimits) {
+        String samlEndpoint = properties.getProperty(SAML_ENDPOINT);
+        String x509Certificate = properties.getProperty(X509_CERTIFICATE);
+        if (StringUtils.isAnyBlank(samlEndpoint, x509Certificate)) {
+            logger.warn("Settings of domain {} do not have {} or {}, domain is skipped", domain, SAML_ENDPOINT, X509_CERTIFICATE);
+            return false;
+        }
+        boolean signAuthnRequest = Boolean.parseBoolean(StringUtils.trim(properties.getProperty(SIGN_AUTHN_REQUEST)));
+        TenantLimits limits = defaultLimits;
+        try {
+            limits = TenantLimits.fromProperties(properties, defaultLimits);
+        } catch (NumberFormatException e) {
+            logger.warn("Limits of domain {} are not numbers, default limits are used: {}", domain, e.getMessage());
+        }
+        tenants.put(domain, new SamlSettings(samlEndpoint, x509Certificate, signAuthnRequest, limits));
+        return true;
+    }
+
+    public synchronized void startWatching() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.error("Problem watching settings directory " + directory + ", settings will not be reloaded", e);
+            return;
+        }
+        watcher = new Thread(this::watch, "tenant-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Problem closing settings directory watcher", e);
+        }
+        watcher.interrupt();
+        watcher = null;
+    }
+
+    private void watch() {
+        WatchService service = watchService;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                // Editors usually produce a burst of events for one save, drain it before reloading once.
+                do {
+                    changed |= isSettingsChanged(key);
+                    if (!key.reset()) {
+                        logger.error("Settings directory {} is no longer accessible, settings will not be reloaded", directory);
+                        return;
+                    }
+                } while ((key = service.poll()) != null);
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isSettingsChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            String fileName = event.context().toString();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.endsWith(PROPERTIES_EXTENSION) || fileName.endsWith(METADATA_EXTENSION)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    public interface Listener {
+        void onReload(Collection<SamlSettings> tenants);
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), new CommonSettings(new Properties()), MetadataCatalog.EMPTY, "");
+
+        final Map<String, SamlSettings> tenants;
+        final DomainResolver<SamlSettings> domainResolver;
+        final CommonSettings commonSettings;
+        final TenantLimits defaultLimits;
+        final MetadataCatalog metadataCatalog;
+        final String metadataStamp;
+
+        Snapshot(Map<String, SamlSettings> tenants, CommonSettings commonSettings, MetadataCatalog metadataCatalog, String metadataStamp) {
+            this.tenants = tenants;
+            DomainResolver.Builder<SamlSettings> builder = new DomainResolver.Builder<>();
+            for (Map.Entry<String, SamlSettings> tenant : tenants.entrySet()) {
+                builder.putIfAbsent(tenant.getKey(), tenant.getValue());
+            }
+            this.domainResolver = builder.build();
+            this.commonSettings = commonSettings;
+            this.defaultLimits = TenantLimits.fromSettings(commonSettings);
+            this.metadataCatalog = metadataCatalog;
+            this.metadataStamp = metadataStamp;
+        }
+    }
+}
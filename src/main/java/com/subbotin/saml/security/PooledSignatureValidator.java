@@ -0,0 +1,377 @@
+package com.subbotin.saml.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.xml.security.c14n.CanonicalizationException;
+import org.apache.xml.security.c14n.implementations.Canonicalizer20010315ExclOmitComments;
+import org.apache.xml.security.c14n.implementations.Canonicalizer20010315OmitComments;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.validation.ValidationException;
+import org.opensaml.xml.validation.Validator;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies enveloped SAML signatures of one public key with JCA {@link java.security.Signature} and
+ * {@link MessageDigest} engines kept per thread and algorithm, and canonicalizers that stream straight
+ * into them. The single reference must point to the element that holds the signature. Anything outside
+ * of the common SAML profile (several references, other transforms, comments, unknown algorithms) is
+ * handed to OpenSAML's {@link SignatureValidator}, so nothing that was accepted before is rejected.
+ */
+public class PooledSignatureValidator implements Validator<Signature> {
+    private static final String DSIG_NS = XMLConstants.XMLSIG_NS;
+    private static final String EXCLUSIVE_C14N_NS = SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS;
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<>();
+    private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<>();
+    private static final ThreadLocal<Engines> engines = ThreadLocal.withInitial(Engines::new);
+    private static final LongAdder fallbacks = new LongAdder();
+
+    static {
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1, "SHA1withRSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA384, "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512, "SHA512withRSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1, "SHA1withECDSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, "SHA256withECDSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA384, "SHA384withECDSA");
+        SIGNATURE_ALGORITHMS.put(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA512, "SHA512withECDSA");
+        DIGEST_ALGORITHMS.put(SignatureConstants.ALGO_ID_DIGEST_SHA1, "SHA-1");
+        DIGEST_ALGORITHMS.put(SignatureConstants.ALGO_ID_DIGEST_SHA256, "SHA-256");
+        DIGEST_ALGORITHMS.put(SignatureConstants.ALGO_ID_DIGEST_SHA384, "SHA-384");
+        DIGEST_ALGORITHMS.put(SignatureConstants.ALGO_ID_DIGEST_SHA512, "SHA-512");
+    }
+
+    private final PublicKey publicKey;
+    private final Validator<Signature> fallback;
+
+    public PooledSignatureValidator(PublicKey publicKey) {
+        this.publicKey = publicKey;
+        BasicCredential credential = new BasicCredential();
+        credential.setPublicKey(publicKey);
+        this.fallback = new SignatureValidator(credential);
+    }
+
+    /**
+     * Returns how many signatures were verified by OpenSAML because they are outside of the supported profile.
+     */
+    public static long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    @Override
+    public void validate(Signature signature) throws ValidationException {
+        Element signatureElement = signature.getDOM();
+        SignedInfo signedInfo = signatureElement == null ? null : SignedInfo.parse(signatureElement);
+        if (signedInfo == null) {
+            fallbacks.increment();
+            fallback.validate(signature);
+            return;
+        }
+
+        Element signedElement = (Element) signatureElement.getParentNode();
+        if (!signedInfo.referenceUri.isEmpty()
+                ? !signedInfo.referenceUri.substring(1).equals(signedElement.getAttributeNS(null, "ID"))
+                : signedElement != signedElement.getOwnerDocument().getDocumentElement()) {
+            throw new ValidationException("Signature reference does not point to the signed element");
+        }
+
+        Engines threadEngines = engines.get();
+        try {
+            MessageDigest digest = threadEngines.getDigest(signedInfo.digestAlgorithm);
+            threadEngines.digestOutput.target = digest;
+            threadEngines.canonicalize(signedInfo.referenceExclusive, signedElement, signedInfo.referencePrefixes, signatureElement,
+                    threadEngines.digestOutput);
+            if (!MessageDigest.isEqual(digest.digest(), signedInfo.digestValue)) {
+                throw new ValidationException("Digest of the signed element does not match");
+            }
+
+            java.security.Signature verifier = threadEngines.getSignature(signedInfo.signatureAlgorithm);
+            verifier.initVerify(publicKey);
+            threadEngines.signatureOutput.target = verifier;
+            threadEngines.canonicalize(signedInfo.signedInfoExclusive, signedInfo.element, signedInfo.signedInfoPrefixes, null,
+                    threadEngines.signatureOutput);
+            byte[] signatureValue = signedInfo.signatureAlgorithm.endsWith("ECDSA") ? toDer(signedInfo.signatureValue) : signedInfo.signatureValue;
+            if (!verifier.verify(signatureValue)) {
+                throw new ValidationException("Signature value does not match");
+            }
+        } catch (GeneralSecurityException | CanonicalizationException e) {
+            throw new ValidationException("Problem verifying signature", e);
+        } finally {
+            threadEngines.digestOutput.target = null;
+            threadEngines.signatureOutput.target = null;
+        }
+    }
+
+    /**
+     * XML-DSig carries an ECDSA signature as the concatenation of r and s, JCA expects an ASN.1 sequence.
+     */
+    static byte[] toDer(byte[] concatenated) throws SignatureException {
+        if (concatenated.length == 0 || concatenated.length % 2 != 0) {
+            throw new SignatureException("ECDSA signature value has an odd length");
+        }
+        int half = concatenated.length / 2;
+        byte[] r = toDerInteger(concatenated, 0, half);
+        byte[] s = toDerInteger(concatenated, half, half);
+        int contentLength = r.length + s.length;
+        int headerLength = contentLength < 0x80 ? 2 : 3;
+        byte[] der = new byte[headerLength + contentLength];
+        der[0] = 0x30;
+        if (headerLength == 2) {
+            der[1] = (byte) contentLength;
+        } else {
+            der[1] = (byte) 0x81;
+            der[2] = (byte) contentLength;
+        }
+        System.arraycopy(r, 0, der, headerLength, r.length);
+        System.arraycopy(s, 0, der, headerLength + r.length, s.length);
+        return der;
+    }
+
+    private static byte[] toDerInteger(byte[] source, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        while (start < end - 1 && source[start] == 0) {
+            start++;
+        }
+        boolean padding = (source[start] & 0x80) != 0;
+        int valueLength = end - start + (padding ? 1 : 0);
+        byte[] integer = new byte[2 + valueLength];
+        integer[0] = 0x02;
+        integer[1] = (byte) valueLength;
+        System.arraycopy(source, start, integer, padding ? 3 : 2, end - start);
+        return integer;
+    }
+
+    /**
+     * The parts of {@code ds:SignedInfo} the pooled path needs, or nothing when the signature is outside of it.
+     */
+    private static final class SignedInfo {
+        private Element element;
+        private boolean signedInfoExclusive;
+        private String signedInfoPrefixes;
+        private String signatureAlgorithm;
+        private String referenceUri;
+        private boolean referenceExclusive;
+        private String referencePrefixes;
+        private String digestAlgorithm;
+        private byte[] digestValue;
+        private byte[] signatureValue;
+
+        static SignedInfo parse(Element signatureElement) {
+            SignedInfo signedInfo = new SignedInfo();
+            signedInfo.element = child(signatureElement, DSIG_NS, "SignedInfo");
+            Element signatureValue = child(signatureElement, DSIG_NS, "SignatureValue");
+            if (signedInfo.element == null || signatureValue == null || !(signatureElement.getParentNode() instanceof Element)) {
+                return null;
+            }
+            signedInfo.signatureValue = Base64.decodeBase64(signatureValue.getTextContent());
+
+            Element canonicalizationMethod = child(signedInfo.element, DSIG_NS, "CanonicalizationMethod");
+            Element signatureMethod = child(signedInfo.element, DSIG_NS, "SignatureMethod");
+            Element reference = child(signedInfo.element, DSIG_NS, "Reference");
+            if (canonicalizationMethod == null || signatureMethod == null || reference == null
+                    || next(reference, DSIG_NS, "Reference") != null) {
+                return null;
+            }
+            String canonicalization = canonicalizationMethod.getAttributeNS(null, "Algorithm");
+            if (SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS.equals(canonicalization)) {
+                signedInfo.signedInfoExclusive = true;
+                signedInfo.signedInfoPrefixes = getPrefixList(canonicalizationMethod);
+            } else if (!SignatureConstants.ALGO_ID_C14N_OMIT_COMMENTS.equals(canonicalization)) {
+                return null;
+            }
+            signedInfo.signatureAlgorithm = SIGNATURE_ALGORITHMS.get(signatureMethod.getAttributeNS(null, "Algorithm"));
+
+            signedInfo.referenceUri = reference.getAttributeNS(null, "URI");
+            if (signedInfo.signatureAlgorithm == null || !(signedInfo.referenceUri.isEmpty() || signedInfo.referenceUri.startsWith("#"))
+                    || !parseTransforms(signedInfo, child(reference, DSIG_NS, "Transforms"))) {
+                return null;
+            }
+            Element digestMethod = child(reference, DSIG_NS, "DigestMethod");
+            Element digestValue = child(reference, DSIG_NS, "DigestValue");
+            signedInfo.digestAlgorithm = digestMethod == null ? null : DIGEST_ALGORITHMS.get(digestMethod.getAttributeNS(null, "Algorithm"));
+            if (signedInfo.digestAlgorithm == null || digestValue == null) {
+                return null;
+            }
+            signedInfo.digestValue = Base64.decodeBase64(digestValue.getTextContent());
+            return signedInfo;
+        }
+
+        /**
+         * Accepts the enveloped signature transform, optionally followed by one comment-free canonicalization.
+         */
+        private static boolean parseTransforms(SignedInfo signedInfo, Element transforms) {
+            Element transform = transforms == null ? null : child(transforms, DSIG_NS, "Transform");
+            if (transform == null || !SignatureConstants.TRANSFORM_ENVELOPED_SIGNATURE.equals(transform.getAttributeNS(null, "Algorithm"))) {
+                return false;
+            }
+            Element canonicalization = next(transform, DSIG_NS, "Transform");
+            if (canonicalization == null) {
+                return true;
+            }
+            String algorithm = canonicalization.getAttributeNS(null, "Algorithm");
+            if (SignatureConstants.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(algorithm)) {
+                signedInfo.referenceExclusive = true;
+                signedInfo.referencePrefixes = getPrefixList(canonicalization);
+            } else if (!SignatureConstants.TRANSFORM_C14N_OMIT_COMMENTS.equals(algorithm)) {
+                return false;
+            }
+            return next(canonicalization, DSIG_NS, "Transform") == null;
+        }
+
+        private static String getPrefixList(Element method) {
+            Element inclusiveNamespaces = child(method, EXCLUSIVE_C14N_NS, "InclusiveNamespaces");
+            return inclusiveNamespaces == null ? null : inclusiveNamespaces.getAttributeNS(null, "PrefixList");
+        }
+
+        private static Element child(Element parent, String namespace, String localName) {
+            return find(parent.getFirstChild(), namespace, localName);
+        }
+
+        private static Element next(Element sibling, String namespace, String localName) {
+            return find(sibling.getNextSibling(), namespace, localName);
+        }
+
+        private static Element find(Node node, String namespace, String localName) {
+            for (; node != null; node = node.getNextSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE && localName.equals(node.getLocalName()) && namespace.equals(node.getNamespaceURI())) {
+                    return (Element) node;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * JCA engines and canonicalizers of one thread. Canonicalizers write into a reused output that feeds
+     * the digest or the signature, the canonical form is never materialized.
+     */
+    private static final class Engines {
+        private final Map<String, MessageDigest> digests = new HashMap<>();
+        private final Map<String, java.security.Signature> signatures = new HashMap<>();
+        private final Canonicalizer20010315ExclOmitComments exclusive = new Canonicalizer20010315ExclOmitComments();
+        private final InclusiveCanonicalizer inclusive = new InclusiveCanonicalizer();
+        private final DigestOutput digestOutput = new DigestOutput();
+        private final SignatureOutput signatureOutput = new SignatureOutput();
+
+        MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+            MessageDigest digest = digests.get(algorithm);
+            if (digest == null) {
+                digest = MessageDigest.getInstance(algorithm);
+                digests.put(algorithm, digest);
+            }
+            digest.reset();
+            return digest;
+        }
+
+        java.security.Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+            java.security.Signature signature = signatures.get(algorithm);
+            if (signature == null) {
+                signature = java.security.Signature.getInstance(algorithm);
+                signatures.put(algorithm, signature);
+            }
+            return signature;
+        }
+
+        void canonicalize(boolean exclusiveCanonicalization, Element element, String prefixes, Element excluded, UpdatingOutput output)
+                throws CanonicalizationException, SignatureException {
+            if (exclusiveCanonicalization) {
+                exclusive.setWriter(output);
+                exclusive.engineCanonicalizeSubTree(element, prefixes, excluded);
+            } else {
+                inclusive.setWriter(output);
+                inclusive.canonicalizeSubTree(element, excluded);
+            }
+            try {
+                output.flush();
+            } catch (IOException e) {
+                throw new SignatureException(e);
+            }
+        }
+    }
+
+    /**
+     * Opens the inclusive canonicalization of a subtree without one node, which is protected in xmlsec.
+     */
+    private static final class InclusiveCanonicalizer extends Canonicalizer20010315OmitComments {
+        void canonicalizeSubTree(Node root, Node excluded) throws CanonicalizationException {
+            engineCanonicalizeSubTree(root, excluded);
+        }
+    }
+
+    /**
+     * Buffers the byte-at-a-time writes of the canonicalizer before they reach the engine.
+     */
+    private abstract static class UpdatingOutput extends OutputStream {
+        private final byte[] buffer = new byte[4096];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flush();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - size) {
+                flush();
+                if (length > buffer.length) {
+                    update(bytes, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            int length = size;
+            size = 0;
+            if (length > 0) {
+                update(buffer, 0, length);
+            }
+        }
+
+        abstract void update(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private static final class DigestOutput extends UpdatingOutput {
+        private MessageDigest target;
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            target.update(bytes, offset, length);
+        }
+    }
+
+    private static final class SignatureOutput extends UpdatingOutput {
+        private java.security.Signature target;
+
+        @Override
+        void update(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                target.update(bytes, offset, length);
+            } catch (SignatureException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.utils.RedirectEncoder;
+import com.subbotin.saml.utils.SamlExceptionText;
+import org.apache.commons.lang3.StringUtils;
+import org.opensaml.common.SAMLException;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Signs AuthnRequests for the HTTP-Redirect binding: the signature covers the octets of
+ * {@code SAMLRequest=...&RelayState=...&SigAlg=...} exactly as they are sent to the IdP. The SP key is
+ * read once, every thread keeps its own {@link Signature} initialized with it, so a login only pays for
+ * the private key operation.
+ */
+public class RedirectSigner {
+    public static final String PRIVATE_KEY_FILE = "sp.privateKeyFile";
+    public static final String SIGNATURE_ALGORITHM = "sp.signatureAlgorithm";
+
+    static Logger logger = LoggerFactory.getLogger(RedirectSigner.class);
+    private static volatile RedirectSigner instance;
+
+    @Nullable
+    private final PrivateKey privateKey;
+    private final Algorithm algorithm;
+    private final String sigAlgParameter;
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> signedOctets = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    public RedirectSigner(@Nullable PrivateKey privateKey, Algorithm algorithm) {
+        this.privateKey = privateKey;
+        this.algorithm = algorithm;
+        try {
+            this.sigAlgParameter = "&SigAlg=" + URLEncoder.encode(algorithm.getUri(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the signer with the key of {@code sp.privateKeyFile}, a relative path is resolved against
+     * the settings directory. Without a readable key the signer is not configured and refuses to sign.
+     */
+    public static RedirectSigner getInstance() {
+        RedirectSigner signer = instance;
+        if (signer == null) {
+            synchronized (RedirectSigner.class) {
+                signer = instance;
+                if (signer == null) {
+                    TenantRegistry tenantRegistry = TenantRegistry.getInstance();
+                    CommonSettings settings = tenantRegistry.getCommonSettings();
+                    Algorithm algorithm = Algorithm.fromSetting(settings.getString(SIGNATURE_ALGORITHM, Algorithm.RSA_SHA256.name()));
+                    signer = new RedirectSigner(loadPrivateKey(tenantRegistry.getDirectory(), settings.getString(PRIVATE_KEY_FILE, "")), algorithm);
+                    instance = signer;
+                }
+            }
+        }
+        return signer;
+    }
+
+    @Nullable
+    private static PrivateKey loadPrivateKey(Path directory, String file) {
+        if (StringUtils.isBlank(file)) {
+            return null;
+        }
+        Path path = directory.resolve(file.trim());
+        try {
+            PrivateKey privateKey = CertificateUtils.getPrivateKey(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII));
+            logger.info("Loaded SP private key from {}", path);
+            return privateKey;
+        } catch (IOException | GeneralSecurityException e) {
+            logger.error("Problem reading SP private key " + path + ", AuthnRequests will not be signed", e);
+            return null;
+        }
+    }
+
+    public boolean isConfigured() {
+        return privateKey != null;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the signed query string, {@code samlRequest} is the Base64 of the deflated AuthnRequest.
+     */
+    public String sign(String samlRequest, @Nullable String relayState) throws SAMLException {
+        StringBuilder query = new StringBuilder(samlRequest.length() + 512);
+        query.append(RedirectEncoder.SAML_REQUEST).append('=');
+        RedirectEncoder.appendBase64(samlRequest, query);
+        if (relayState != null) {
+            try {
+                query.append("&RelayState=").append(URLEncoder.encode(relayState, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new SAMLException(SamlExceptionText.PROBLEM_SIGN_AUTHN_REQUEST, e);
+            }
+        }
+        appendSignature(query, 0);
+        return query.toString();
+    }
+
+    /**
+     * Appends {@code SigAlg} to {@code url} and then the {@code Signature} of everything from
+     * {@code queryStart}, which must point at {@code SAMLRequest=}. The signed octets are copied into a
+     * buffer of the thread, the URL itself is not copied.
+     */
+    public void appendSignature(StringBuilder url, int queryStart) throws SAMLException {
+        if (privateKey == null) {
+            throw new SAMLException(SamlExceptionText.SP_PRIVATE_KEY_IS_NOT_CONFIGURED);
+        }
+        url.append(sigAlgParameter);
+        int length = url.length() - queryStart;
+        byte[] octets = signedOctets.get();
+        if (octets.length < length) {
+            octets = new byte[Math.max(length, octets.length * 2)];
+            signedOctets.set(octets);
+        }
+        for (int i = 0; i < length; i++) {
+            octets[i] = (byte) url.charAt(queryStart + i);
+        }
+        try {
+            Signature signature = getSignature(privateKey);
+            signature.update(octets, 0, length);
+            byte[] value = signature.sign();
+            url.append("&Signature=");
+            RedirectEncoder.appendBase64(value, 0, value.length, url);
+        } catch (GeneralSecurityException e) {
+            signatures.remove();
+            logger.error(e.getMessage(), e);
+            throw new SAMLException(SamlExceptionText.PROBLEM_SIGN_AUTHN_REQUEST, e);
+        }
+    }
+
+    /**
+     * {@link Signature#sign()} resets the engine to the state right after {@code initSign}, so one instance
+     * per thread serves every request of that thread.
+     */
+    private Signature getSignature(PrivateKey privateKey) throws GeneralSecurityException {
+        Signature signature = signatures.get();
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm.getJcaName());
+            signature.initSign(privateKey);
+            signatures.set(signature);
+        }
+        return signature;
+    }
+
+    public enum Algorithm {
+        RSA_SHA1(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1, "SHA1withRSA"),
+        RSA_SHA256(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, "SHA256withRSA"),
+        RSA_SHA512(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512, "SHA512withRSA");
+
+        private final String uri;
+        private final String jcaName;
+
+        Algorithm(String uri, String jcaName) {
+            this.uri = uri;
+            this.jcaName = jcaName;
+        }
+
+        public static Algorithm fromSetting(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public String getJcaName() {
+            return jcaName;
+        }
+    }
+}
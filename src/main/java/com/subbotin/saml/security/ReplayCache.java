@@ -0,0 +1,202 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the IDs of accepted messages until they expire, so the same signed assertion can not be used
+ * twice. IDs are kept as 128-bit SHA-256 prefixes in a fixed-size table outside of the Java heap: every ID
+ * maps to a bucket of {@value #BUCKET_SIZE} slots, a slot holds the hash and the expiry time. Expired slots
+ * are reused. An ID is never forgotten before it expires: when its bucket is full of live IDs the new one
+ * is refused, so the cache fails closed and {@code replayCache.slots} must fit the IDs of the assertion
+ * lifetime. Buckets are guarded by a fixed set of
+ * striped locks. With {@code replayCache.file} set the table is memory-mapped from that file and survives
+ * restarts.
+ */
+public class ReplayCache {
+    public static final String SLOTS = "replayCache.slots";
+    public static final String STRIPES = "replayCache.stripes";
+    public static final String FILE = "replayCache.file";
+    public static final int DEFAULT_SLOTS = 1 << 18;
+    public static final int DEFAULT_STRIPES = 64;
+
+    static final int BUCKET_SIZE = 8;
+    private static final int SLOT_SIZE = 24;
+    private static final int HEADER_SIZE = 16;
+    private static final long MAGIC = 0x5341_4d4c_5250_4c31L;
+
+    static Logger logger = LoggerFactory.getLogger(ReplayCache.class);
+    private static volatile ReplayCache instance;
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ByteBuffer table;
+    private final boolean mapped;
+    private final int buckets;
+    private final Object[] locks;
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public enum Mark {
+        ACCEPTED,
+        REPLAYED,
+        /**
+         * The bucket of the ID has no free slot, the ID can not be remembered and must not be accepted.
+         */
+        FULL
+    }
+
+    public ReplayCache(int slots, int stripes) {
+        this(ByteBuffer.allocateDirect(HEADER_SIZE + getBuckets(slots) * BUCKET_SIZE * SLOT_SIZE), false, slots, stripes);
+    }
+
+    private ReplayCache(ByteBuffer table, boolean mapped, int slots, int stripes) {
+        this.table = table;
+        this.mapped = mapped;
+        this.buckets = getBuckets(slots);
+        this.locks = new Object[Math.max(1, stripes)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Maps the table from {@code file}. A file of another size or format is cleared.
+     */
+    public static ReplayCache open(Path file, int slots, int stripes) throws IOException {
+        int buckets = getBuckets(slots);
+        long size = HEADER_SIZE + (long) buckets * BUCKET_SIZE * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean compatible = channel.size() == size;
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!compatible || table.getLong(0) != MAGIC || table.getInt(8) != buckets) {
+                logger.warn("Replay cache file {} has another format, it is cleared", file);
+                for (int position = 0; position < size; position += Long.BYTES) {
+                    table.putLong(position, 0);
+                }
+                table.putLong(0, MAGIC);
+                table.putInt(8, buckets);
+            }
+            return new ReplayCache(table, true, slots, stripes);
+        }
+    }
+
+    public static ReplayCache getInstance() {
+        ReplayCache cache = instance;
+        if (cache == null) {
+            synchronized (ReplayCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    int slots = settings.getInt(SLOTS, DEFAULT_SLOTS);
+                    int stripes = settings.getInt(STRIPES, DEFAULT_STRIPES);
+                    String file = settings.getString(FILE, StringUtils.EMPTY);
+                    cache = StringUtils.isBlank(file) ? new ReplayCache(slots, stripes) : openOrFallBack(Paths.get(file.trim()), slots, stripes);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    private static ReplayCache openOrFallBack(Path file, int slots, int stripes) {
+        try {
+            return open(file, slots, stripes);
+        } catch (IOException e) {
+            logger.error("Problem mapping replay cache file " + file + ", IDs are kept in memory only", e);
+            return new ReplayCache(slots, stripes);
+        }
+    }
+
+    /**
+     * Records {@code id} until {@code expiresAtMillis}, unless it is already recorded and not yet expired or
+     * there is no room for it.
+     */
+    public Mark markUsed(String id, long expiresAtMillis, long nowMillis) {
+        byte[] hash = digest.get().digest(id.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer hashBuffer = ByteBuffer.wrap(hash);
+        long high = hashBuffer.getLong(0);
+        long low = hashBuffer.getLong(Long.BYTES);
+        int bucket = (int) Math.floorMod(high, (long) buckets);
+        int first = HEADER_SIZE + bucket * BUCKET_SIZE * SLOT_SIZE;
+
+        synchronized (locks[bucket % locks.length]) {
+            int free = -1;
+            for (int position = first; position < first + BUCKET_SIZE * SLOT_SIZE; position += SLOT_SIZE) {
+                long expiresAt = table.getLong(position + 2 * Long.BYTES);
+                if (expiresAt <= nowMillis) {
+                    if (free < 0) {
+                        free = position;
+                    }
+                } else if (table.getLong(position) == high && table.getLong(position + Long.BYTES) == low) {
+                    replays.increment();
+                    return Mark.REPLAYED;
+                }
+            }
+            if (free < 0) {
+                overflows.increment();
+                return Mark.FULL;
+            }
+            table.putLong(free, high);
+            table.putLong(free + Long.BYTES, low);
+            table.putLong(free + 2 * Long.BYTES, Math.max(expiresAtMillis, nowMillis + 1));
+            return Mark.ACCEPTED;
+        }
+    }
+
+    public int getCapacity() {
+        return buckets * BUCKET_SIZE;
+    }
+
+    public long getReplays() {
+        return replays.sum();
+    }
+
+    /**
+     * IDs refused because their bucket was full of unexpired IDs.
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Writes a memory-mapped table to its file; does nothing for the in-memory one. A direct buffer is a
+     * {@link MappedByteBuffer} too, so the type of the table can not tell them apart.
+     */
+    public void flush() {
+        if (mapped) {
+            ((MappedByteBuffer) table).force();
+        }
+    }
+
+    public static void flushInstance() {
+        ReplayCache cache = instance;
+        if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    private static int getBuckets(int slots) {
+        return Math.max(1, (slots + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    }
+}
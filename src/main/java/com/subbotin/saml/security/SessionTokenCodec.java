@@ -0,0 +1,203 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.common.User;
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.utils.FileUtils;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session tokens that carry the user themselves: the email, the name and the expiry time encrypted and
+ * authenticated with AES-GCM, so a node validates a session without any state of its own. A token is
+ * {@code version | key ID | nonce | ciphertext | tag} in URL-safe Base64, the version and the key ID are
+ * authenticated as well.
+ * <p>
+ * Keys are read once from {@code sessionToken.keyFile}, one {@code <id>=<Base64 AES key>} line per key with
+ * IDs from 0 to 255. New tokens are encrypted with {@code sessionToken.activeKeyId}, or the highest ID;
+ * tokens of the other keys of the file are still accepted, so a key is rotated by adding a new one, making
+ * it active and removing the old one after the session lifetime. A key is never made up: without a readable
+ * file of valid keys the codec is not created and the application does not start, since a key of its own
+ * would make every node reject the tokens of the others. Every thread keeps its own {@link Cipher}.
+ */
+public class SessionTokenCodec {
+    public static final String KEY_FILE = "sessionToken.keyFile";
+    public static final String ACTIVE_KEY_ID = "sessionToken.activeKeyId";
+    static final int MAX_PLAINTEXT = 512;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 2;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int MIN_TOKEN_SIZE = HEADER_SIZE + NONCE_SIZE + Long.BYTES + Short.BYTES + TAG_SIZE;
+    private static final int MAX_TOKEN_LENGTH = (HEADER_SIZE + NONCE_SIZE + MAX_PLAINTEXT + TAG_SIZE) * 4 / 3 + 4;
+    private static final int MAX_KEYS = 256;
+
+    static Logger logger = LoggerFactory.getLogger(SessionTokenCodec.class);
+    private static volatile SessionTokenCodec instance;
+
+    private final SecretKey[] keys = new SecretKey[MAX_KEYS];
+    private final int activeKeyId;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final LongAdder rejected = new LongAdder();
+
+    public SessionTokenCodec(Map<Integer, SecretKey> keys, int activeKeyId) {
+        for (Map.Entry<Integer, SecretKey> key : keys.entrySet()) {
+            if (key.getKey() < 0 || key.getKey() >= MAX_KEYS) {
+                throw new IllegalArgumentException("Session token key ID " + key.getKey() + " is not in 0..255");
+            }
+            this.keys[key.getKey()] = key.getValue();
+        }
+        if (activeKeyId < 0 || activeKeyId >= MAX_KEYS || this.keys[activeKeyId] == null) {
+            throw new IllegalArgumentException("Session token key " + activeKeyId + " is not in the keyring");
+        }
+        this.activeKeyId = activeKeyId;
+    }
+
+    /**
+     * Returns the codec with the keys of {@code sessionToken.keyFile}, a relative path is resolved against
+     * the settings directory.
+     *
+     * @throws IllegalStateException if the file is not set, can not be read or has an invalid key
+     */
+    public static SessionTokenCodec getInstance() {
+        SessionTokenCodec codec = instance;
+        if (codec == null) {
+            synchronized (SessionTokenCodec.class) {
+                codec = instance;
+                if (codec == null) {
+                    TenantRegistry tenantRegistry = TenantRegistry.getInstance();
+                    CommonSettings settings = tenantRegistry.getCommonSettings();
+                    TreeMap<Integer, SecretKey> keys = loadKeys(tenantRegistry.getDirectory(), settings.getString(KEY_FILE, ""));
+                    int activeKeyId = settings.getInt(ACTIVE_KEY_ID, keys.lastKey());
+                    codec = new SessionTokenCodec(keys, activeKeyId);
+                    instance = codec;
+                }
+            }
+        }
+        return codec;
+    }
+
+    static TreeMap<Integer, SecretKey> loadKeys(Path directory, String file) {
+        if (StringUtils.isBlank(file)) {
+            throw new IllegalStateException("Session tokens need keys, " + KEY_FILE + " is not set");
+        }
+        Path path = directory.resolve(file.trim());
+        TreeMap<Integer, SecretKey> keys = new TreeMap<>();
+        try {
+            Properties properties = FileUtils.loadProperties(path);
+            for (String id : properties.stringPropertyNames()) {
+                byte[] key = Base64.decodeBase64(properties.getProperty(id).trim());
+                if (key.length != 16 && key.length != 32) {
+                    throw new IllegalStateException("Session token key " + id + " of " + path + " is not a 128 or 256 bit AES key");
+                }
+                keys.put(Integer.parseInt(id.trim()), new SecretKeySpec(key, "AES"));
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new IllegalStateException("Problem reading session token keys " + path, e);
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalStateException("Session token key file " + path + " has no keys");
+        }
+        logger.info("Loaded {} session token keys from {}", keys.size(), path);
+        return keys;
+    }
+
+    /**
+     * A name that does not fit into the token is cut.
+     */
+    public String encode(User user, long expiresAtMillis) {
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        if (email.length > MAX_PLAINTEXT - Long.BYTES - Short.BYTES) {
+            throw new IllegalArgumentException("Email of " + email.length + " bytes does not fit into a session token");
+        }
+        ByteBuffer plaintext = ByteBuffer.allocate(MAX_PLAINTEXT);
+        plaintext.putLong(expiresAtMillis).putShort((short) email.length).put(email);
+        StandardCharsets.UTF_8.newEncoder().encode(CharBuffer.wrap(StringUtils.defaultString(user.getName())), plaintext, true);
+
+        byte[] token = new byte[HEADER_SIZE + NONCE_SIZE + plaintext.position() + TAG_SIZE];
+        token[0] = VERSION;
+        token[1] = (byte) activeKeyId;
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, token, HEADER_SIZE, NONCE_SIZE);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, keys[activeKeyId], new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            cipher.updateAAD(token, 0, HEADER_SIZE);
+            cipher.doFinal(plaintext.array(), 0, plaintext.position(), token, HEADER_SIZE + NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Problem encrypting session token", e);
+        }
+        return Base64.encodeBase64URLSafeString(token);
+    }
+
+    /**
+     * Returns the user of the token, or {@code null} when the token is malformed, of an unknown key,
+     * forged or expired.
+     */
+    @Nullable
+    public User decode(String encodedToken, long nowMillis) {
+        if (encodedToken.length() > MAX_TOKEN_LENGTH) {
+            rejected.increment();
+            return null;
+        }
+        byte[] token = Base64.decodeBase64(encodedToken);
+        if (token.length < MIN_TOKEN_SIZE || token[0] != VERSION || keys[token[1] & 0xff] == null) {
+            rejected.increment();
+            return null;
+        }
+        byte[] plaintext;
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, keys[token[1] & 0xff], new GCMParameterSpec(TAG_SIZE * 8, token, HEADER_SIZE, NONCE_SIZE));
+            cipher.updateAAD(token, 0, HEADER_SIZE);
+            plaintext = cipher.doFinal(token, HEADER_SIZE + NONCE_SIZE, token.length - HEADER_SIZE - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            rejected.increment();
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+        long expiresAt = buffer.getLong();
+        int emailLength = buffer.getShort();
+        if (expiresAt <= nowMillis || emailLength < 0 || emailLength > buffer.remaining()) {
+            rejected.increment();
+            return null;
+        }
+        int emailStart = buffer.position();
+        return new User(new String(plaintext, emailStart, emailLength, StandardCharsets.UTF_8),
+                new String(plaintext, emailStart + emailLength, plaintext.length - emailStart - emailLength, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tokens that were malformed, of an unknown key, forged or expired.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,33 @@
+package com.subbotin.saml.security;
+
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.validation.Validator;
+
+import java.security.PublicKey;
+
+public enum SignatureEngine {
+    POOLED {
+        @Override
+        public Validator<Signature> createValidator(PublicKey publicKey) {
+            return new PooledSignatureValidator(publicKey);
+        }
+    },
+    OPENSAML {
+        @Override
+        public Validator<Signature> createValidator(PublicKey publicKey) {
+            BasicCredential credential = new BasicCredential();
+            credential.setPublicKey(publicKey);
+            return new SignatureValidator(credential);
+        }
+    };
+
+    public static final String SETTING = "signature.engine";
+
+    public abstract Validator<Signature> createValidator(PublicKey publicKey);
+
+    public static SignatureEngine fromSetting(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
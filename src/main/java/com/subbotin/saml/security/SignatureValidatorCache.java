@@ -0,0 +1,156 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import org.apache.commons.codec.binary.Hex;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.validation.Validator;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ready-to-use signature validators keyed by the SHA-256 fingerprint of the tenant certificate.
+ * A certificate is parsed once per distinct {@code x509Certificate} value, entries of values that
+ * disappear from the tenant registry are dropped on reload. Validators are created by the configured
+ * {@link SignatureEngine}.
+ */
+public class SignatureValidatorCache implements TenantRegistry.Listener {
+    private static volatile SignatureValidatorCache instance;
+
+    private final SignatureEngine signatureEngine;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Validator<Signature>> validators = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public SignatureValidatorCache() {
+        this(SignatureEngine.POOLED);
+    }
+
+    public SignatureValidatorCache(SignatureEngine signatureEngine) {
+        this.signatureEngine = signatureEngine;
+    }
+
+    /**
+     * Returns the application-wide cache, which follows the reloads of {@link TenantRegistry#getInstance()}.
+     */
+    public static SignatureValidatorCache getInstance() {
+        SignatureValidatorCache cache = instance;
+        if (cache == null) {
+            synchronized (SignatureValidatorCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    TenantRegistry tenantRegistry = TenantRegistry.getInstance();
+                    String engine = tenantRegistry.getCommonSettings().getString(SignatureEngine.SETTING, SignatureEngine.POOLED.name());
+                    cache = new SignatureValidatorCache(SignatureEngine.fromSetting(engine));
+                    tenantRegistry.addListener(cache);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    public Validator<Signature> getValidator(String certificate) throws CertificateException {
+        Entry entry = entries.get(certificate);
+        if (entry != null && entry.validator != null) {
+            hits.increment();
+            return entry.validator;
+        }
+        misses.increment();
+        if (entry == null) {
+            entry = entries.computeIfAbsent(certificate, Entry::new);
+        }
+        try {
+            return entry.resolve();
+        } catch (CertificateException e) {
+            entries.remove(certificate, entry);
+            throw e;
+        }
+    }
+
+    @Override
+    public void onReload(Collection<SamlSettings> tenants) {
+        Set<String> certificates = new HashSet<>();
+        for (SamlSettings samlSettings : tenants) {
+            certificates.add(samlSettings.getX509Certificate());
+        }
+        entries.keySet().retainAll(certificates);
+
+        Set<String> fingerprints = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            fingerprints.add(entry.fingerprint);
+        }
+        validators.keySet().retainAll(fingerprints);
+    }
+
+    /**
+     * Drops the entry of a certificate that is not a tenant's, its validator goes unless another
+     * certificate value has the same key.
+     */
+    public void remove(String certificate) {
+        Entry removed = entries.remove(certificate);
+        if (removed == null || removed.fingerprint == null) {
+            return;
+        }
+        for (Entry entry : entries.values()) {
+            if (removed.fingerprint.equals(entry.fingerprint)) {
+                return;
+            }
+        }
+        validators.remove(removed.fingerprint);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return validators.size();
+    }
+
+    public void clear() {
+        entries.clear();
+        validators.clear();
+    }
+
+    private static String getFingerprint(Certificate certificate) throws CertificateException {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+    }
+
+    private final class Entry {
+        private final String certificate;
+        private volatile String fingerprint;
+        private volatile Validator<Signature> validator;
+
+        Entry(String certificate) {
+            this.certificate = certificate;
+        }
+
+        synchronized Validator<Signature> resolve() throws CertificateException {
+            if (validator == null) {
+                Certificate cert = CertificateUtils.getCertificate(certificate);
+                fingerprint = getFingerprint(cert);
+                validator = validators.computeIfAbsent(fingerprint, key -> signatureEngine.createValidator(cert.getPublicKey()));
+            }
+            return validator;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.saml.TenantLimits;
+import com.subbotin.saml.saml.TenantRegistry;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps one tenant from taking the login and ACS endpoints from the others. Every tenant (a registered
+ * email domain) has a token bucket of {@link TenantLimits#getPerSecond()} requests a second and a bulkhead
+ * of {@link TenantLimits#getMaxConcurrentVerifications()} signature verifications running at once. The
+ * states of tenants are kept in a fixed set of striped maps, a bucket is refilled and taken from under the
+ * lock of its stripe and a bulkhead is a single counter, so admitting a request takes neither a global
+ * lock nor an allocation. A reload of the settings drops the states whose limits changed.
+ */
+public class TenantLimiter implements TenantRegistry.Listener {
+    public static final String STRIPES = "tenantLimiter.stripes";
+    public static final int DEFAULT_STRIPES = 64;
+    public static final String RATE = "rate";
+    public static final String CONCURRENCY = "concurrency";
+    public static final Permit NO_PERMIT = () -> {
+    };
+    private static final long NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile TenantLimiter instance;
+
+    private final Function<String, TenantLimits> limitsSource;
+    private final Stripe[] stripes;
+    private final Map<String, Rejections> rejections = new HashMap<>();
+
+    public TenantLimiter(Function<String, TenantLimits> limitsSource, int stripes) {
+        this.limitsSource = limitsSource;
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public static TenantLimiter getInstance() {
+        TenantLimiter limiter = instance;
+        if (limiter == null) {
+            synchronized (TenantLimiter.class) {
+                limiter = instance;
+                if (limiter == null) {
+                    TenantRegistry registry = TenantRegistry.getInstance();
+                    CommonSettings settings = registry.getCommonSettings();
+                    limiter = new TenantLimiter(registry::getLimits, settings.getInt(STRIPES, DEFAULT_STRIPES));
+                    registry.addListener(limiter);
+                    instance = limiter;
+                }
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Takes a token of the bucket of {@code tenant}. Returns 0 when the request is admitted, otherwise the
+     * number of seconds until the bucket has a token again.
+     */
+    public long tryAcquire(String tenant) {
+        Stripe stripe = getStripe(tenant);
+        State state;
+        long waitNanos;
+        synchronized (stripe) {
+            state = stripe.getState(tenant);
+            if (!state.limits.isRateLimited()) {
+                return 0;
+            }
+            waitNanos = state.take(System.nanoTime());
+        }
+        if (waitNanos == 0) {
+            return 0;
+        }
+        state.rejections.rate.increment();
+        return Math.max(1, (waitNanos + NANOS_IN_SECOND - 1) / NANOS_IN_SECOND);
+    }
+
+    /**
+     * Enters the bulkhead of {@code tenant}. Returns the permit to release when the verification is done,
+     * or {@code null} when the tenant already runs as many verifications as it may.
+     */
+    @Nullable
+    public Permit tryEnterVerification(String tenant) {
+        Stripe stripe = getStripe(tenant);
+        State state;
+        synchronized (stripe) {
+            state = stripe.getState(tenant);
+        }
+        int limit = state.limits.getMaxConcurrentVerifications();
+        if (limit <= 0) {
+            return NO_PERMIT;
+        }
+        while (true) {
+            int running = state.running.get();
+            if (running >= limit) {
+                state.rejections.concurrency.increment();
+                return null;
+            }
+            if (state.running.compareAndSet(running, running + 1)) {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * Returns the rejected requests of every tenant by {@link #RATE} and {@link #CONCURRENCY}, sorted by
+     * tenant for a stable output.
+     */
+    public Map<String, Map<String, Long>> getRejections() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        synchronized (rejections) {
+            for (Map.Entry<String, Rejections> entry : rejections.entrySet()) {
+                Map<String, Long> byLimit = new TreeMap<>();
+                byLimit.put(RATE, entry.getValue().rate.sum());
+                byLimit.put(CONCURRENCY, entry.getValue().concurrency.sum());
+                result.put(entry.getKey(), byLimit);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onReload(Collection<SamlSettings> tenants) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.states.entrySet().removeIf(entry -> !entry.getValue().limits.equals(limitsSource.apply(entry.getKey())));
+            }
+        }
+    }
+
+    /**
+     * Rejections outlive the states, so the exported counters do not go back to zero on a reload.
+     */
+    private Rejections getRejections(String tenant) {
+        synchronized (rejections) {
+            return rejections.computeIfAbsent(tenant, key -> new Rejections());
+        }
+    }
+
+    private Stripe getStripe(String tenant) {
+        int hash = tenant.hashCode();
+        return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * A place in the bulkhead of a tenant, released once.
+     */
+    public interface Permit {
+        void release();
+    }
+
+    private final class Stripe {
+        final Map<String, State> states = new HashMap<>();
+
+        /**
+         * Must be called under the lock of the stripe.
+         */
+        State getState(String tenant) {
+            State state = states.get(tenant);
+            if (state == null) {
+                state = new State(limitsSource.apply(tenant), getRejections(tenant), System.nanoTime());
+                states.put(tenant, state);
+            }
+            return state;
+        }
+    }
+
+    private static final class Rejections {
+        final LongAdder rate = new LongAdder();
+        final LongAdder concurrency = new LongAdder();
+    }
+
+    /**
+     * Token bucket and bulkhead of a tenant. The bucket is guarded by the lock of the stripe of the tenant.
+     */
+    private static final class State implements Permit {
+        final TenantLimits limits;
+        final Rejections rejections;
+        final AtomicInteger running = new AtomicInteger();
+        final double nanosPerToken;
+        double tokens;
+        long refilledAt;
+
+        State(TenantLimits limits, Rejections rejections, long now) {
+            this.limits = limits;
+            this.rejections = rejections;
+            this.nanosPerToken = limits.isRateLimited() ? NANOS_IN_SECOND / limits.getPerSecond() : 0;
+            this.tokens = limits.getBurst();
+            this.refilledAt = now;
+        }
+
+        /**
+         * Returns 0 when a token was taken, otherwise the nanoseconds until the next token.
+         */
+        long take(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(limits.getBurst(), tokens + (now - refilledAt) / nanosPerToken);
+                refilledAt = now;
+            }
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * nanosPerToken);
+        }
+
+        @Override
+        public void release() {
+            running.decrementAndGet();
+        }
+    }
+}
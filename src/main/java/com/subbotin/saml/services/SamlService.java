@@ -5,19 +5,42 @@ import com.subbotin.saml.saml.SamlResponse;
 import com.subbotin.saml.saml.SamlSettings;
 
 import javax.annotation.Nullable;
+import java.io.InputStream;
 import java.net.URI;
 
 public interface SamlService {
-    SamlRequest createSamlRequest(String acsUrl);
+    /**
+     * The login methods label their metrics with the tenant of {@code email}, or as unknown when it is
+     * {@code null} or not of a tenant.
+     */
+    SamlRequest createSamlRequest(String acsUrl, @Nullable String email);
 
-    URI getUriRequest(String samlEndpoint, String authRequest);
+    /**
+     * Renders a new AuthnRequest and returns the HTTP-Redirect URL to the IdP of the tenant, signed when the tenant requires it.
+     */
+    String getRedirectUrl(SamlSettings samlSettings, String acsUrl, @Nullable String email);
+
+    URI getUriRequest(String samlEndpoint, String authRequest, @Nullable String email);
+
+    URI getSignedUriRequest(String samlEndpoint, String authRequest, @Nullable String relayState, @Nullable String email);
 
     SamlResponse createSamlResponse(String samlResponse);
 
+    SamlResponse createSamlResponse(InputStream samlResponseBase64);
+
     void checkSignature(SamlResponse samlResponse, String certificate);
 
+    void checkReplay(SamlResponse samlResponse);
+
     String getUserName(SamlResponse samlResponse);
 
     @Nullable
     SamlSettings getSamlSettings(String email);
+
+    /**
+     * Returns the settings to verify the response with, chosen by its Issuer and checked against the domain
+     * of its NameID, or {@code null} when no IdP may assert this user.
+     */
+    @Nullable
+    SamlSettings getTrustedSamlSettings(SamlResponse samlResponse);
 }
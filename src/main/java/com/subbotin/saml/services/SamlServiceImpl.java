@@ -1,22 +1,36 @@
 package com.subbotin.saml.services;
 
 import com.subbotin.saml.exceptions.SamlAuthRedirectWasUnsuccessfulException;
+import com.subbotin.saml.exceptions.SamlFailure;
 import com.subbotin.saml.exceptions.SamlResponseIsNotCorrectException;
+import com.subbotin.saml.exceptions.SamlResponseWasAlreadyUsedException;
+import com.subbotin.saml.exceptions.TenantLimitExceededException;
 import com.subbotin.saml.exceptions.ValidateSignatureForResponseWasUnsuccessfulException;
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.metrics.Stage;
+import com.subbotin.saml.metrics.StageTimer;
+import com.subbotin.saml.saml.AuthnRequestRenderer;
+import com.subbotin.saml.saml.SamlAttributes;
 import com.subbotin.saml.saml.SamlRequest;
 import com.subbotin.saml.saml.SamlResponse;
 import com.subbotin.saml.saml.SamlSettings;
-import com.subbotin.saml.utils.FileUtils;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.RedirectSigner;
+import com.subbotin.saml.security.TenantLimiter;
+import com.subbotin.saml.utils.BoundedInputStream;
+import com.subbotin.saml.utils.FailureLog;
+import com.subbotin.saml.utils.RedirectEncoder;
 import com.subbotin.saml.utils.SamlExceptionText;
 import com.subbotin.saml.utils.SamlSystemUtils;
+import com.subbotin.saml.xml.AuthnRequestTemplate;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.cxf.common.util.CompressionUtils;
-import org.apache.http.client.utils.URIBuilder;
 import org.joda.time.DateTime;
 import org.opensaml.common.SAMLException;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.signature.Signature;
@@ -25,71 +39,335 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 public class SamlServiceImpl implements SamlService {
     static Logger logger = LoggerFactory.getLogger(SamlServiceImpl.class);
     static SamlSystemService samlSystemService = new SamlSystemServiceImpl();
+    static AuthnRequestRenderer authnRequestRenderer;
+    static RedirectSigner redirectSigner;
+    static long samlResponseMaxBytes;
+    public static final String SAML_RESPONSE_MAX_BYTES = "samlResponse.maxBytes";
+    public static final long DEFAULT_SAML_RESPONSE_MAX_BYTES = 1024 * 1024;
+    private static final String SAML_REQUEST_PARAMETER = RedirectEncoder.SAML_REQUEST + "=";
+    private static final int INITIAL_REDIRECT_URL_BUFFER = 2048;
+    private static final int MAX_REDIRECT_URL_BUFFER = 64 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+    private static volatile AuthnRequestTemplate authnRequestTemplate;
+    private static final ThreadLocal<byte[]> authnRequestBuffer = ThreadLocal.withInitial(() -> new byte[2048]);
+    private static final ThreadLocal<StringBuilder> redirectUrlBuffer = ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_REDIRECT_URL_BUFFER));
+
+    private final Metrics metrics;
+
+    public SamlServiceImpl() {
+        this(Metrics.getInstance());
+    }
+
+    /**
+     * The service records its stages into {@code metrics}, the warm-up passes metrics of its own.
+     */
+    public SamlServiceImpl(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public SamlRequest createSamlRequest(String acsUrl, @Nullable String email) {
+        String tenant = getTenant(email);
+        StageTimer timer = metrics.startTimer();
+        try {
+            SamlRequest samlRequest;
+            if (getAuthnRequestRenderer() == AuthnRequestRenderer.TEMPLATE) {
+                samlRequest = createSamlRequestFromTemplate(acsUrl);
+            } else {
+                AuthnRequest authnRequest = samlSystemService.createAuthnRequest(acsUrl, SamlSystemUtils.generateId(), DateTime.now(), SamlSystemUtils.ISSUER_NAME);
+                byte[] request = getBytesWithCatch(samlSystemService.convertXmlObjectToString(authnRequest), SamlExceptionText.PROBLEM_DEFLATE_AND_ENCODE_REQUEST_TO_BASE64);
+                samlRequest = new SamlRequest(authnRequest, Base64.encodeBase64String(RedirectEncoder.deflate(request, request.length)));
+            }
+            timer.stage(Stage.LOGIN_RENDER);
+            timer.finish(tenant);
+            return samlRequest;
+        } catch (SAMLException e) {
+            timer.fail(Stage.LOGIN, e.getMessage(), tenant);
+            throw new SamlAuthRedirectWasUnsuccessfulException(e);
+        }
+    }
+
+    private SamlRequest createSamlRequestFromTemplate(String acsUrl) throws SAMLException {
+        String requestId = SamlSystemUtils.generateId();
+        int written = renderAuthnRequest(acsUrl, requestId);
+        return new SamlRequest(requestId, Base64.encodeBase64String(RedirectEncoder.deflate(authnRequestBuffer.get(), written)));
+    }
+
+    /**
+     * Renders the AuthnRequest into the buffer of the thread and returns its length.
+     */
+    private int renderAuthnRequest(String acsUrl, String requestId) throws SAMLException {
+        AuthnRequestTemplate authnRequestTemplate = getAuthnRequestTemplate(acsUrl);
+        byte[] buffer = authnRequestBuffer.get();
+        int length = authnRequestTemplate.getLength(requestId);
+        if (buffer.length < length) {
+            buffer = new byte[length];
+            authnRequestBuffer.set(buffer);
+        }
+        return authnRequestTemplate.render(requestId, System.currentTimeMillis(), buffer);
+    }
+
+    /**
+     * The application has one ACS URL, so one template is kept; a request for another URL compiles its own
+     * template and replaces it.
+     */
+    private AuthnRequestTemplate getAuthnRequestTemplate(String acsUrl) throws SAMLException {
+        AuthnRequestTemplate template = authnRequestTemplate;
+        if (template == null || !template.getAssertionConsumerServiceUrl().equals(acsUrl)) {
+            template = AuthnRequestTemplate.compile(samlSystemService, acsUrl, SamlSystemUtils.ISSUER_NAME);
+            authnRequestTemplate = template;
+        }
+        return template;
+    }
+
+    private static AuthnRequestRenderer getAuthnRequestRenderer() {
+        AuthnRequestRenderer renderer = authnRequestRenderer;
+        if (renderer == null) {
+            String setting = TenantRegistry.getInstance().getCommonSettings().getString(AuthnRequestRenderer.SETTING, AuthnRequestRenderer.TEMPLATE.name());
+            renderer = AuthnRequestRenderer.fromSetting(setting);
+            authnRequestRenderer = renderer;
+        }
+        return renderer;
+    }
 
     @Override
-    public SamlRequest createSamlRequest(String acsUrl) {
+    public String getRedirectUrl(SamlSettings samlSettings, String acsUrl, @Nullable String email) {
+        String tenant = getTenant(email);
+        StageTimer timer = metrics.startTimer();
         try {
-            AuthnRequest authnRequest = samlSystemService.createAuthnRequest(acsUrl, SamlSystemUtils.generateId(), DateTime.now(), SamlSystemUtils.ISSUER_NAME);
-            String request = samlSystemService.convertXmlObjectToString(authnRequest);
-            String requestBase64 = Base64.encodeBase64String(CompressionUtils.deflate(getBytesWithCatch(request, SamlExceptionText.PROBLEM_DEFLATE_AND_ENCODE_REQUEST_TO_BASE64)));
-            return new SamlRequest(authnRequest, requestBase64);
+            StringBuilder url = startRedirectUrl(samlSettings.getRedirectPrefix());
+            int queryStart = url.length() - SAML_REQUEST_PARAMETER.length();
+            if (getAuthnRequestRenderer() == AuthnRequestRenderer.TEMPLATE) {
+                int written = renderAuthnRequest(acsUrl, SamlSystemUtils.generateId());
+                RedirectEncoder.appendDeflated(authnRequestBuffer.get(), written, url);
+            } else {
+                AuthnRequest authnRequest = samlSystemService.createAuthnRequest(acsUrl, SamlSystemUtils.generateId(), DateTime.now(), SamlSystemUtils.ISSUER_NAME);
+                byte[] request = getBytesWithCatch(samlSystemService.convertXmlObjectToString(authnRequest), SamlExceptionText.PROBLEM_DEFLATE_AND_ENCODE_REQUEST_TO_BASE64);
+                RedirectEncoder.appendDeflated(request, request.length, url);
+            }
+            timer.stage(Stage.LOGIN_RENDER);
+            if (samlSettings.isSignAuthnRequest()) {
+                getRedirectSigner().appendSignature(url, queryStart);
+                timer.stage(Stage.LOGIN_SIGN);
+            }
+            String redirectUrl = url.toString();
+            timer.stage(Stage.LOGIN_URI);
+            timer.finish(tenant);
+            return redirectUrl;
         } catch (SAMLException e) {
+            timer.fail(Stage.LOGIN, e.getMessage(), tenant);
             throw new SamlAuthRedirectWasUnsuccessfulException(e);
+        } catch (URISyntaxException e) {
+            timer.fail(Stage.LOGIN, e.getClass().getSimpleName(), tenant);
+            throw new SamlAuthRedirectWasUnsuccessfulException(e);
+        }
+    }
+
+    /**
+     * Returns the builder of the thread holding the {@code <endpoint>?SAMLRequest=} prefix.
+     */
+    private static StringBuilder startRedirectUrl(String prefix) {
+        StringBuilder url = redirectUrlBuffer.get();
+        if (url.capacity() > MAX_REDIRECT_URL_BUFFER) {
+            url = new StringBuilder(INITIAL_REDIRECT_URL_BUFFER);
+            redirectUrlBuffer.set(url);
         }
+        url.setLength(0);
+        return url.append(prefix);
     }
 
     @Override
-    public URI getUriRequest(String samlEndpoint, String authRequest) {
+    public URI getUriRequest(String samlEndpoint, String authRequest, @Nullable String email) {
+        String tenant = getTenant(email);
+        StageTimer timer = metrics.startTimer();
         try {
-            URIBuilder uriBuilder = new URIBuilder(samlEndpoint);
-            uriBuilder.setCharset(StandardCharsets.UTF_8);
-            uriBuilder.addParameter("SAMLRequest", authRequest);
-            return uriBuilder.build();
+            StringBuilder url = startRedirectUrl(RedirectEncoder.getPrefix(samlEndpoint));
+            RedirectEncoder.appendBase64(authRequest, url);
+            URI uri = new URI(url.toString());
+            timer.stage(Stage.LOGIN_URI);
+            timer.finish(tenant);
+            return uri;
         } catch (URISyntaxException e) {
+            timer.fail(Stage.LOGIN, e.getClass().getSimpleName(), tenant);
+            throw new SamlAuthRedirectWasUnsuccessfulException(e);
+        }
+    }
+
+    @Override
+    public URI getSignedUriRequest(String samlEndpoint, String authRequest, @Nullable String relayState, @Nullable String email) {
+        String tenant = getTenant(email);
+        StageTimer timer = metrics.startTimer();
+        try {
+            StringBuilder url = startRedirectUrl(RedirectEncoder.getPrefix(samlEndpoint));
+            int queryStart = url.length() - SAML_REQUEST_PARAMETER.length();
+            RedirectEncoder.appendBase64(authRequest, url);
+            if (relayState != null) {
+                url.append("&RelayState=").append(URLEncoder.encode(relayState, "UTF-8"));
+            }
+            getRedirectSigner().appendSignature(url, queryStart);
+            timer.stage(Stage.LOGIN_SIGN);
+            URI uri = new URI(url.toString());
+            timer.stage(Stage.LOGIN_URI);
+            timer.finish(tenant);
+            return uri;
+        } catch (SAMLException e) {
+            timer.fail(Stage.LOGIN, e.getMessage(), tenant);
+            throw new SamlAuthRedirectWasUnsuccessfulException(e);
+        } catch (URISyntaxException | UnsupportedEncodingException e) {
+            timer.fail(Stage.LOGIN, e.getClass().getSimpleName(), tenant);
             throw new SamlAuthRedirectWasUnsuccessfulException(e);
         }
     }
 
+    private static RedirectSigner getRedirectSigner() {
+        RedirectSigner signer = redirectSigner;
+        if (signer == null) {
+            signer = RedirectSigner.getInstance();
+            redirectSigner = signer;
+        }
+        return signer;
+    }
+
     @Override
     public SamlResponse createSamlResponse(String samlResponse) {
+        return createSamlResponse(new ByteArrayInputStream(samlResponse.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Override
+    public SamlResponse createSamlResponse(InputStream samlResponseBase64) {
+        StageTimer timer = metrics.startTimer();
         try {
-            String xml = new String(Base64.decodeBase64(getBytesWithCatch(samlResponse, SamlExceptionText.PROBLEM_DECODE_RESPONSE_FROM_BASE64)));
-            XMLObject xmlObject = samlSystemService.convertStringToXmlObject(xml);
+            DecodedResponse xml = readSamlResponse(samlResponseBase64);
+            timer.stage(Stage.ACS_DECODE);
+            samlSystemService.prefilterResponse(xml.buffer, 0, xml.length);
+            timer.stage(Stage.ACS_PREFILTER);
+            XMLObject xmlObject = samlSystemService.convertStreamToXmlObject(new ByteArrayInputStream(xml.buffer, 0, xml.length));
+            timer.stage(Stage.ACS_PARSE);
             Response response = samlSystemService.getResponseAndValidateSchema(xmlObject);
+            timer.stage(Stage.ACS_SCHEMA);
             samlSystemService.checkStatusCode(response);
+            timer.stage(Stage.ACS_STATUS);
 
             Assertion assertion = samlSystemService.getCheckedAssertion(response);
+            timer.stage(Stage.ACS_ASSERTION);
             samlSystemService.checkConditions(assertion);
+            timer.stage(Stage.ACS_CONDITIONS);
 
             String subjectNameId = samlSystemService.getSubjectNameId(assertion);
             Map<String, List<String>> attributeValues = samlSystemService.getAttributeValues(assertion);
+            timer.stage(Stage.ACS_ATTRIBUTES);
 
+            timer.finish(getTenant(subjectNameId));
             return new SamlResponse(response, assertion, attributeValues, subjectNameId);
         } catch (SAMLException e) {
+            timer.fail(Stage.ACS, e.getMessage(), Metrics.UNKNOWN_TENANT);
             throw new SamlResponseIsNotCorrectException(e);
         }
     }
 
+    /**
+     * Decodes the response into a buffer that is only copied when it grows, the XML is its first
+     * {@code length} bytes.
+     */
+    private static DecodedResponse readSamlResponse(InputStream samlResponseBase64) throws SAMLException {
+        long maxBytes = getSamlResponseMaxBytes();
+        InputStream xml = new BoundedInputStream(new Base64InputStream(new BoundedInputStream(samlResponseBase64, maxBytes * 2)), maxBytes);
+        byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+        int length = 0;
+        try {
+            int read;
+            while ((read = xml.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+        } catch (BoundedInputStream.LimitExceededException e) {
+            throw SamlFailure.RESPONSE_IS_TOO_LARGE;
+        } catch (IOException e) {
+            FailureLog.getInstance().error(logger, SamlFailure.PROBLEM_DECODE_RESPONSE_FROM_BASE64.getMessage(), e);
+            throw SamlFailure.PROBLEM_DECODE_RESPONSE_FROM_BASE64;
+        }
+        return new DecodedResponse(buffer, length);
+    }
+
+    private static long getSamlResponseMaxBytes() {
+        long maxBytes = samlResponseMaxBytes;
+        if (maxBytes <= 0) {
+            maxBytes = TenantRegistry.getInstance().getCommonSettings().getLong(SAML_RESPONSE_MAX_BYTES, DEFAULT_SAML_RESPONSE_MAX_BYTES);
+            samlResponseMaxBytes = maxBytes;
+        }
+        return maxBytes;
+    }
+
     @Override
     public void checkSignature(SamlResponse samlResponse, String certificate) {
+        StageTimer timer = metrics.startTimer();
+        String tenant = getTenant(samlResponse.getSubjectNameId());
+        TenantLimiter.Permit permit = enterVerification(tenant, timer);
         try {
             Validator<Signature> signatureValidator = samlSystemService.getValidator(certificate);
+            timer.stage(Stage.ACS_VALIDATOR);
             samlSystemService.validateOptionalSignature(signatureValidator, samlResponse.getResponse());
+            timer.stage(Stage.ACS_RESPONSE_SIGNATURE);
             samlSystemService.validateMandatorySignature(signatureValidator, samlResponse.getAssertion());
+            timer.stage(Stage.ACS_ASSERTION_SIGNATURE);
+            timer.finish(tenant);
         } catch (SAMLException e) {
+            timer.fail(Stage.ACS, e.getMessage(), tenant);
             throw new ValidateSignatureForResponseWasUnsuccessfulException(e);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Admits the response to the rate of its tenant and to the bulkhead of its signature verifications.
+     */
+    private static TenantLimiter.Permit enterVerification(String tenant, StageTimer timer) {
+        if (Metrics.UNKNOWN_TENANT.equals(tenant)) {
+            return TenantLimiter.NO_PERMIT;
+        }
+        TenantLimiter tenantLimiter = TenantLimiter.getInstance();
+        long retryAfterSeconds = tenantLimiter.tryAcquire(tenant);
+        if (retryAfterSeconds > 0) {
+            timer.fail(Stage.ACS, SamlExceptionText.TENANT_IS_OVER_RATE_LIMIT, tenant);
+            throw new TenantLimitExceededException(SamlExceptionText.TENANT_IS_OVER_RATE_LIMIT, retryAfterSeconds);
+        }
+        TenantLimiter.Permit permit = tenantLimiter.tryEnterVerification(tenant);
+        if (permit == null) {
+            timer.fail(Stage.ACS, SamlExceptionText.TENANT_IS_OVER_CONCURRENCY_LIMIT, tenant);
+            throw new TenantLimitExceededException(SamlExceptionText.TENANT_IS_OVER_CONCURRENCY_LIMIT, 1);
+        }
+        return permit;
+    }
+
+    @Override
+    public void checkReplay(SamlResponse samlResponse) {
+        StageTimer timer = metrics.startTimer();
+        String tenant = getTenant(samlResponse.getSubjectNameId());
+        try {
+            samlSystemService.checkReplay(samlResponse.getResponse(), samlResponse.getAssertion());
+            timer.stage(Stage.ACS_REPLAY);
+            timer.finish(tenant);
+        } catch (SAMLException e) {
+            timer.fail(Stage.ACS, e.getMessage(), tenant);
+            throw new SamlResponseWasAlreadyUsedException(e);
         }
     }
 
@@ -102,7 +380,11 @@ public class SamlServiceImpl implements SamlService {
     }
 
     private String getSingleValue(String attributeName, Map<String, List<String>> attributeValues) {
-        return attributeValues.getOrDefault(attributeName, Collections.emptyList()).stream().findFirst().orElse(StringUtils.EMPTY);
+        if (attributeValues instanceof SamlAttributes) {
+            return StringUtils.defaultString(((SamlAttributes) attributeValues).getFirstValue(attributeName));
+        }
+        List<String> values = attributeValues.get(attributeName);
+        return values == null || values.isEmpty() ? StringUtils.EMPTY : values.get(0);
     }
 
     private byte[] getBytesWithCatch(String value, String textError) throws SAMLException {
@@ -114,21 +396,44 @@ public class SamlServiceImpl implements SamlService {
         }
     }
 
-    private String getDomain(String email) {
-        return email.substring(email.lastIndexOf("@") + 1);
+    /**
+     * Labels metrics with the registered domain of the tenant, so neither a forged subject nor subdomains
+     * create new series.
+     */
+    private String getTenant(@Nullable String email) {
+        String domain = email == null ? null : TenantRegistry.getInstance().getTenantDomain(email);
+        return domain != null ? domain : Metrics.UNKNOWN_TENANT;
     }
 
     @Override
     @Nullable
     public SamlSettings getSamlSettings(String email) {
-        String domain = getDomain(email);
-        String propertiesFileName = "src/main/resources/" + domain + ".properties";
-        try {
-            String samlEndpoint = FileUtils.getProperty(propertiesFileName, "samlEndpoint");
-            String x509Certificate = FileUtils.getProperty(propertiesFileName, "x509Certificate");
-            return new SamlSettings(samlEndpoint, x509Certificate);
-        } catch (IOException e) {
+        return TenantRegistry.getInstance().getSamlSettings(email);
+    }
+
+    /**
+     * The Issuer of the assertion, which its signature covers, chooses the IdP; the Issuer of the response,
+     * when present, must be the same.
+     */
+    @Override
+    @Nullable
+    public SamlSettings getTrustedSamlSettings(SamlResponse samlResponse) {
+        Issuer assertionIssuer = samlResponse.getAssertion().getIssuer();
+        String issuer = assertionIssuer == null ? null : StringUtils.trimToNull(assertionIssuer.getValue());
+        Issuer responseIssuer = samlResponse.getResponse().getIssuer();
+        if (responseIssuer != null && !StringUtils.equals(StringUtils.trimToNull(responseIssuer.getValue()), issuer)) {
             return null;
         }
+        return TenantRegistry.getInstance().getTrustedSamlSettings(issuer, samlResponse.getSubjectNameId());
+    }
+
+    private static final class DecodedResponse {
+        final byte[] buffer;
+        final int length;
+
+        DecodedResponse(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
     }
 }
@@ -12,6 +12,7 @@ import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.validation.Validator;
 
 import javax.xml.namespace.QName;
+import java.io.InputStream;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.util.List;
@@ -32,6 +33,8 @@ public interface SamlSystemService {
 
     void checkConditions(Assertion assertion) throws SAMLException;
 
+    void checkReplay(Response response, Assertion assertion) throws SAMLException;
+
     String getSubjectNameId(Assertion assertion);
 
     Validator<Signature> getValidator(String certificate) throws SAMLException;
@@ -46,6 +49,10 @@ public interface SamlSystemService {
 
     XMLObject convertStringToXmlObject(String xmlObject) throws SAMLException;
 
+    XMLObject convertStreamToXmlObject(InputStream xmlObject) throws SAMLException;
+
+    void prefilterResponse(byte[] xml, int offset, int length) throws SAMLException;
+
     String convertXmlObjectToString(XMLObject xmlObject) throws SAMLException;
 }
 
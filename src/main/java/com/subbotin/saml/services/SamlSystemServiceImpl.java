@@ -1,7 +1,17 @@
 package com.subbotin.saml.services;
 
+import com.subbotin.saml.exceptions.SamlFailure;
+import com.subbotin.saml.saml.SamlAttributes;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.CertificateUtils;
+import com.subbotin.saml.security.ReplayCache;
+import com.subbotin.saml.security.SignatureValidatorCache;
+import com.subbotin.saml.utils.BoundedInputStream;
+import com.subbotin.saml.utils.FailureLog;
 import com.subbotin.saml.utils.SamlExceptionText;
 import com.subbotin.saml.utils.SamlSystemUtils;
+import com.subbotin.saml.xml.SamlResponsePrefilter;
+import com.subbotin.saml.xml.XmlParserPool;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.opensaml.Configuration;
@@ -10,8 +20,6 @@ import org.opensaml.common.SAMLObject;
 import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.Attribute;
-import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.saml2.core.AuthnContext;
 import org.opensaml.saml2.core.AuthnContextClassRef;
 import org.opensaml.saml2.core.AuthnContextComparisonTypeEnumeration;
@@ -27,13 +35,11 @@ import org.opensaml.saml2.core.validator.ResponseSchemaValidator;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallingException;
-import org.opensaml.xml.parse.BasicParserPool;
 import org.opensaml.xml.parse.XMLParserException;
-import org.opensaml.xml.security.credential.BasicCredential;
 import org.opensaml.xml.signature.SignableXMLObject;
 import org.opensaml.xml.signature.Signature;
-import org.opensaml.xml.signature.SignatureValidator;
 import org.opensaml.xml.util.XMLHelper;
 import org.opensaml.xml.validation.ValidationException;
 import org.opensaml.xml.validation.Validator;
@@ -42,19 +48,22 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
 import javax.xml.namespace.QName;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 public class SamlSystemServiceImpl implements SamlSystemService {
     public static Logger logger = LoggerFactory.getLogger(SamlSystemServiceImpl.class);
+    private static final String ASSERTION_ID_PREFIX = "assertion:";
+    private static final String RESPONSE_ID_PREFIX = "response:";
+    static Set<String> attributeAllowList;
 
     @Override
     public AuthnRequest createAuthnRequest(String assertionConsumerServiceUrl, String requestId, DateTime issueInstant, String issuerName) {
@@ -94,14 +103,13 @@ public class SamlSystemServiceImpl implements SamlSystemService {
     public Response getResponseAndValidateSchema(XMLObject response) throws SAMLException {
         try {
             if (!Response.class.isInstance(response)) {
-                throw new SAMLException(SamlExceptionText.XMLOBJECT_NOT_CAST_TO_RESPONSE);
+                throw SamlFailure.XMLOBJECT_NOT_CAST_TO_RESPONSE;
             }
             Response resultResponse = (Response) response;
             new ResponseSchemaValidator().validate(resultResponse);
             return resultResponse;
         } catch (ValidationException e) {
-            logger.error(e.getMessage(), e);
-            throw new SAMLException(SamlExceptionText.INVALID_SCHEMA_RESPONSE, e);
+            throw logged(SamlFailure.INVALID_SCHEMA_RESPONSE, e);
         }
     }
 
@@ -110,7 +118,7 @@ public class SamlSystemServiceImpl implements SamlSystemService {
     public void checkStatusCode(Response response) throws SAMLException {
         String statusCode = response.getStatus().getStatusCode().getValue();
         if (!StringUtils.equals(statusCode, StatusCode.SUCCESS_URI)) {
-            throw new SAMLException(SamlExceptionText.STATUSCODE_WAS_NOT_SUCCESS);
+            throw SamlFailure.STATUSCODE_WAS_NOT_SUCCESS;
         }
     }
 
@@ -118,9 +126,9 @@ public class SamlSystemServiceImpl implements SamlSystemService {
     public Assertion getCheckedAssertion(Response response) throws SAMLException {
         List<Assertion> assertionList = response.getAssertions();
         if (assertionList.isEmpty()) {
-            throw new SAMLException(SamlExceptionText.NO_ASSERTIONS_FOUND);
+            throw SamlFailure.NO_ASSERTIONS_FOUND;
         } else if (assertionList.size() > 1) {
-            throw new SAMLException(SamlExceptionText.MORE_THAN_ONE_ASSERTION_WAS_FOUND);
+            throw SamlFailure.MORE_THAN_ONE_ASSERTION_WAS_FOUND;
         }
         return assertionList.get(0);
     }
@@ -132,9 +140,28 @@ public class SamlSystemServiceImpl implements SamlSystemService {
         Date conditionNotBefore = conditions.getNotBefore().minusSeconds(SamlSystemUtils.BACKLASH_FOR_MESSAGE_IN_SECONDS).toDate();
         Date conditionNotOnOrAfter = conditions.getNotOnOrAfter().plusSeconds(SamlSystemUtils.BACKLASH_FOR_MESSAGE_IN_SECONDS).toDate();
         if (now.before(conditionNotBefore)) {
-            throw new SAMLException(SamlExceptionText.CONDITIONS_ARE_NOT_YET_ACTIVE);
+            throw SamlFailure.CONDITIONS_ARE_NOT_YET_ACTIVE;
         } else if (now.after(conditionNotOnOrAfter) || now.equals(conditionNotOnOrAfter)) {
-            throw new SAMLException(SamlExceptionText.CONDITIONS_HAVE_EXPIRED);
+            throw SamlFailure.CONDITIONS_HAVE_EXPIRED;
+        }
+    }
+
+    @Override
+    public void checkReplay(Response response, Assertion assertion) throws SAMLException {
+        long now = System.currentTimeMillis();
+        long expiresAt = assertion.getConditions().getNotOnOrAfter().plusSeconds(SamlSystemUtils.BACKLASH_FOR_MESSAGE_IN_SECONDS).getMillis();
+        ReplayCache replayCache = ReplayCache.getInstance();
+        checkMark(replayCache.markUsed(ASSERTION_ID_PREFIX + assertion.getID(), expiresAt, now), SamlFailure.ASSERTION_WAS_ALREADY_USED);
+        if (response.getID() != null) {
+            checkMark(replayCache.markUsed(RESPONSE_ID_PREFIX + response.getID(), expiresAt, now), SamlFailure.RESPONSE_WAS_ALREADY_USED);
+        }
+    }
+
+    private static void checkMark(ReplayCache.Mark mark, SamlFailure replayed) throws SamlFailure {
+        if (mark == ReplayCache.Mark.REPLAYED) {
+            throw replayed;
+        } else if (mark == ReplayCache.Mark.FULL) {
+            throw SamlFailure.REPLAY_CACHE_IS_FULL;
         }
     }
 
@@ -146,85 +173,110 @@ public class SamlSystemServiceImpl implements SamlSystemService {
     @Override
     public Validator<Signature> getValidator(String certificate) throws SAMLException {
         try {
-            Certificate cert = getCertificate(certificate);
-            BasicCredential credential = new BasicCredential();
-            credential.setPublicKey(cert.getPublicKey());
-            return new SignatureValidator(credential);
+            return SignatureValidatorCache.getInstance().getValidator(certificate);
         } catch (CertificateException e) {
-            logger.error(e.getMessage(), e);
-            throw new SAMLException(SamlExceptionText.STRING_CERTIFICATE_IS_INCORRECT, e);
+            throw logged(SamlFailure.STRING_CERTIFICATE_IS_INCORRECT, e);
         }
     }
 
     @Override
     public Certificate getCertificate(String certificate) throws CertificateException {
-        String beginHeader = "-----BEGIN CERTIFICATE-----";
-        String endHeader = "-----END CERTIFICATE-----";
-        StringBuilder stringBuilder = new StringBuilder();
-        if (!certificate.startsWith(beginHeader)) {
-            stringBuilder.append(beginHeader);
-            stringBuilder.append("\n");
-        }
-        stringBuilder.append(certificate);
-        if (!certificate.endsWith(endHeader)) {
-            stringBuilder.append("\n");
-            stringBuilder.append(endHeader);
-        }
-
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        return cf.generateCertificate(new ByteArrayInputStream(stringBuilder.toString().getBytes()));
+        return CertificateUtils.getCertificate(certificate);
     }
 
     @Override
     public void validateMandatorySignature(Validator<Signature> signatureValidator, SignableXMLObject signableXMLObject) throws SAMLException {
         if (!signableXMLObject.isSigned()) {
-            throw new SAMLException(String.format(SamlExceptionText.MASK_DOES_NOT_HAVE_SIGNATURE, signableXMLObject.getElementQName()));
+            throw SamlFailure.doesNotHaveSignature(signableXMLObject.getElementQName());
         }
 
-        validateSignature(signatureValidator, signableXMLObject.getSignature(), getErrorTextForValidateSignature(signableXMLObject));
+        validateSignature(signatureValidator, signableXMLObject);
     }
 
     @Override
     public void validateOptionalSignature(Validator<Signature> signatureValidator, SignableXMLObject signableXMLObject) throws SAMLException {
         if (signableXMLObject.isSigned()) {
-            validateSignature(signatureValidator, signableXMLObject.getSignature(), getErrorTextForValidateSignature(signableXMLObject));
+            validateSignature(signatureValidator, signableXMLObject);
         }
     }
 
-    private String getErrorTextForValidateSignature(XMLObject signableXMLObject) {
-        return String.format(SamlExceptionText.MASK_HAS_INVALID_SIGNATURE, signableXMLObject.getElementQName());
-    }
-
-    private void validateSignature(Validator<Signature> signatureValidator, Signature signature, String textError) throws SAMLException {
+    private void validateSignature(Validator<Signature> signatureValidator, SignableXMLObject signableXMLObject) throws SAMLException {
         try {
-            signatureValidator.validate(signature);
+            signatureValidator.validate(signableXMLObject.getSignature());
         } catch (ValidationException | RuntimeException e) {
-            logger.error(e.getMessage(), e);
-            throw new SAMLException(textError, e);
+            throw logged(SamlFailure.hasInvalidSignature(signableXMLObject.getElementQName()), e);
         }
     }
 
     @Override
     public Map<String, List<String>> getAttributeValues(Assertion assertion) {
-        Map<String, List<String>> attributes = new HashMap<>();
-        for (AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
-            for (Attribute attr : attributeStatement.getAttributes()) {
-                List<String> values = attr.getAttributeValues().stream().map(value -> value.getDOM().getTextContent()).collect(Collectors.toList());
-                attributes.put(attr.getName(), values);
+        return new SamlAttributes(assertion, getAttributeAllowList());
+    }
+
+    private static Set<String> getAttributeAllowList() {
+        Set<String> allowList = attributeAllowList;
+        if (allowList == null) {
+            String setting = TenantRegistry.getInstance().getCommonSettings().getString(SamlAttributes.ALLOW_LIST, StringUtils.EMPTY);
+            allowList = new HashSet<>();
+            for (String name : StringUtils.split(setting, ',')) {
+                if (StringUtils.isNotBlank(name)) {
+                    allowList.add(name.trim());
+                }
             }
+            attributeAllowList = allowList;
         }
-        return attributes;
+        return allowList;
     }
 
     @Override
     public XMLObject convertStringToXmlObject(String xmlObject) throws SAMLException {
         try {
-            Element root = new BasicParserPool().parse(new ByteArrayInputStream(xmlObject.getBytes())).getDocumentElement();
-            return Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+            return unmarshall(XmlParserPool.getInstance().parse(new StringReader(xmlObject)).getDocumentElement());
         } catch (XMLParserException | UnmarshallingException e) {
-            logger.error(e.getMessage(), e);
-            throw new SAMLException(SamlExceptionText.PROBLEM_PARSING_XML_OF_THE_RESPONSE, e);
+            throw logged(SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE, e);
+        }
+    }
+
+    @Override
+    public XMLObject convertStreamToXmlObject(InputStream xmlObject) throws SAMLException {
+        try {
+            return unmarshall(XmlParserPool.getInstance().parse(xmlObject).getDocumentElement());
+        } catch (XMLParserException | UnmarshallingException e) {
+            if (isCausedBy(e, BoundedInputStream.LimitExceededException.class)) {
+                throw SamlFailure.RESPONSE_IS_TOO_LARGE;
+            }
+            throw logged(SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE, e);
+        }
+    }
+
+    @Override
+    public void prefilterResponse(byte[] xml, int offset, int length) throws SAMLException {
+        SamlResponsePrefilter.getInstance().check(xml, offset, length);
+    }
+
+    private XMLObject unmarshall(Element root) throws UnmarshallingException {
+        Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+        if (unmarshaller == null) {
+            throw new UnmarshallingException("No unmarshaller for element " + root.getNamespaceURI() + ":" + root.getLocalName());
+        }
+        return unmarshaller.unmarshall(root);
+    }
+
+    /**
+     * Hands the exception behind a failure to {@link FailureLog} and returns the failure to throw.
+     */
+    private static SamlFailure logged(SamlFailure failure, Exception e) {
+        FailureLog.getInstance().error(logger, failure.getMessage(), e);
+        return failure;
+    }
+
+    private static boolean isCausedBy(Throwable throwable, Class<? extends Throwable> type) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
         }
+        return false;
     }
 
     @Override
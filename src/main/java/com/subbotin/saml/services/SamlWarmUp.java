@@ -0,0 +1,93 @@
+package com.subbotin.saml.services;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.RedirectSigner;
+import com.subbotin.saml.security.SignatureValidatorCache;
+import org.opensaml.common.SAMLException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares a fresh node for real logins: parses every tenant certificate and runs synthetic login cycles
+ * (AuthnRequest build, signing when a tenant requires it, and redirect, Response parse, validation and
+ * signature check) so that the JIT has compiled the hot paths before the first user arrives.
+ * <p>
+ * The cycles check the response of {@value #RESOURCE}, signed once by a throwaway key of the tests with
+ * conditions valid until 2100, so the node holds no IdP key and runs no IdP code. The service given to the
+ * warm-up should record into its own {@code Metrics}, and the certificate of that response leaves the
+ * validator cache afterwards, so neither shows up next to real logins.
+ */
+public class SamlWarmUp {
+    public static final String ITERATIONS = "warmup.iterations";
+    public static final int DEFAULT_ITERATIONS = 200;
+    static final String RESOURCE = "/warm-up/response.properties";
+    private static final String WARM_UP_ACS_URL = "http://localhost/sso/acs";
+    private static final String WARM_UP_SAML_ENDPOINT = "http://localhost/idp";
+
+    static Logger logger = LoggerFactory.getLogger(SamlWarmUp.class);
+
+    private final SamlService samlService;
+    private final TenantRegistry tenantRegistry;
+
+    public SamlWarmUp(SamlService samlService, TenantRegistry tenantRegistry) {
+        this.samlService = samlService;
+        this.tenantRegistry = tenantRegistry;
+    }
+
+    public void preloadCertificates() {
+        SignatureValidatorCache signatureValidatorCache = SignatureValidatorCache.getInstance();
+        for (Map.Entry<String, SamlSettings> tenant : tenantRegistry.getTenants().entrySet()) {
+            try {
+                signatureValidatorCache.getValidator(tenant.getValue().getX509Certificate());
+            } catch (CertificateException e) {
+                logger.error("Certificate of domain " + tenant.getKey() + " is incorrect", e);
+            }
+        }
+    }
+
+    public void run(int iterations) throws IOException, SAMLException {
+        if (iterations <= 0) {
+            return;
+        }
+        Properties resource = new Properties();
+        try (InputStream input = SamlWarmUp.class.getResourceAsStream(RESOURCE)) {
+            if (input == null) {
+                throw new IOException("Warm-up response " + RESOURCE + " is missing");
+            }
+            resource.load(input);
+        }
+        String certificate = resource.getProperty("certificate");
+        String encodedResponse = resource.getProperty("response");
+        long start = System.nanoTime();
+        String acsUrl = tenantRegistry.getCommonSettings().getString(CommonSettings.ACS_URL, WARM_UP_ACS_URL);
+        String samlEndpoint = tenantRegistry.getTenants().values().stream()
+                .map(SamlSettings::getSamlEndpoint).findFirst().orElse(WARM_UP_SAML_ENDPOINT);
+        boolean signAuthnRequest = RedirectSigner.getInstance().isConfigured()
+                && tenantRegistry.getTenants().values().stream().anyMatch(SamlSettings::isSignAuthnRequest);
+
+        SamlSettings redirectSettings = new SamlSettings(samlEndpoint, certificate, signAuthnRequest);
+
+        try {
+            for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+                samlService.getRedirectUrl(redirectSettings, acsUrl, null);
+
+                SamlResponse samlResponse = samlService.createSamlResponse(encodedResponse);
+                samlService.checkSignature(samlResponse, certificate);
+                samlService.getUserName(samlResponse);
+            }
+        } finally {
+            SignatureValidatorCache.getInstance().remove(certificate);
+        }
+        logger.info("Warm-up of {} login cycles took {} ms", iterations, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
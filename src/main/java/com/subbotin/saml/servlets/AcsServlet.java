@@ -1,13 +1,15 @@
 package com.subbotin.saml.servlets;
 
 import com.subbotin.saml.common.User;
+import com.subbotin.saml.common.Sessions;
 import com.subbotin.saml.common.Users;
 import com.subbotin.saml.exceptions.UserCanNotUseSamlException;
 import com.subbotin.saml.saml.SamlResponse;
 import com.subbotin.saml.saml.SamlSettings;
 import com.subbotin.saml.services.SamlService;
 import com.subbotin.saml.services.SamlServiceImpl;
-import com.subbotin.saml.utils.SamlSystemUtils;
+import com.subbotin.saml.utils.FormParameterInputStream;
+import org.apache.commons.lang3.StringUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -16,29 +18,37 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 public class AcsServlet extends HttpServlet {
+    private static final String SAML_RESPONSE = "SAMLResponse";
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
     private SamlService samlService = new SamlServiceImpl();
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        SamlResponse samlResponse = samlService.createSamlResponse(request.getParameter("SAMLResponse"));
+        SamlWorkerPool.getInstance().execute(request, response, this::processResponse);
+    }
+
+    private void processResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        SamlResponse samlResponse = createSamlResponse(request);
         String email = samlResponse.getSubjectNameId();
-        SamlSettings samlSettings = samlService.getSamlSettings(email);
+        SamlSettings samlSettings = samlService.getTrustedSamlSettings(samlResponse);
         if (samlSettings == null) {
             throw new UserCanNotUseSamlException(email);
         }
 
         samlService.checkSignature(samlResponse, samlSettings.getX509Certificate());
+        samlService.checkReplay(samlResponse);
 
         String userName = samlService.getUserName(samlResponse);
-        User user = Users.getUser(email);
-        if (user == null) {
-            user = new User(email, userName);
-            Users.addUser(user);
-        } else {
-            user.setName(userName);
-        }
+        User user = Users.login(email, userName);
 
-        request.getSession().setAttribute(SamlSystemUtils.SESSION_USER, user);
+        Sessions.login(request, response, user);
         response.sendRedirect("index.jsp");
     }
-}
\ No newline at end of file
+
+    private SamlResponse createSamlResponse(HttpServletRequest request) throws IOException {
+        if (StringUtils.startsWithIgnoreCase(request.getContentType(), FORM_CONTENT_TYPE)) {
+            return samlService.createSamlResponse(new FormParameterInputStream(request.getInputStream(), SAML_RESPONSE));
+        }
+        return samlService.createSamlResponse(StringUtils.defaultString(request.getParameter(SAML_RESPONSE)));
+    }
+}
@@ -0,0 +1,45 @@
+package com.subbotin.saml.servlets;
+
+import com.subbotin.saml.common.Sessions;
+import com.subbotin.saml.common.User;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Resolves the user of the session once per request and puts it into the
+ * {@value Sessions#USER_ATTRIBUTE} request attribute, without creating an {@code HttpSession}. With the
+ * {@code loginPage} init parameter a request without a user is redirected there, so the filter also
+ * protects the pages it is mapped to.
+ */
+public class AuthenticationFilter implements Filter {
+    public static final String LOGIN_PAGE = "loginPage";
+
+    private String loginPage;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        loginPage = filterConfig.getInitParameter(LOGIN_PAGE);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        User user = Sessions.getUser((HttpServletRequest) request);
+        if (user == null && loginPage != null) {
+            ((HttpServletResponse) response).sendRedirect(((HttpServletRequest) request).getContextPath() + "/" + loginPage);
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,270 @@
+package com.subbotin.saml.servlets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Response of an asynchronous request that is shared by a worker of {@link SamlWorkerPool} and the timeout of
+ * the container. Whichever of them moves it to {@link State#DONE} or {@link State#TIMED_OUT} first completes
+ * the request: after a timeout every change the worker makes is dropped, because the container may already
+ * recycle the response. Each change and each state change holds the same lock, so a change is either
+ * written whole before the timeout or not at all.
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+    enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        TIMED_OUT
+    }
+
+    private final Object lock = new Object();
+    private State state = State.QUEUED;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    GuardedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    boolean transition(State from, State to) {
+        synchronized (lock) {
+            if (state != from) {
+                return false;
+            }
+            state = to;
+            return true;
+        }
+    }
+
+    /**
+     * Moves {@code from} to {@code to} and runs {@code action} under the lock, returns false if the response
+     * is in another state.
+     */
+    boolean transition(State from, State to, Action action) throws IOException {
+        synchronized (lock) {
+            if (state != from) {
+                return false;
+            }
+            state = to;
+            action.run();
+            return true;
+        }
+    }
+
+    /**
+     * Moves a response that is not yet done to {@link State#TIMED_OUT} and runs {@code action} under the lock.
+     */
+    boolean timeOut(Action action) throws IOException {
+        synchronized (lock) {
+            if (state == State.DONE || state == State.TIMED_OUT) {
+                return false;
+            }
+            state = State.TIMED_OUT;
+            action.run();
+            return true;
+        }
+    }
+
+    private void guard(Action action) throws IOException {
+        synchronized (lock) {
+            if (state != State.TIMED_OUT) {
+                action.run();
+            }
+        }
+    }
+
+    private void guardQuietly(Runnable action) {
+        synchronized (lock) {
+            if (state != State.TIMED_OUT) {
+                action.run();
+            }
+        }
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        guardQuietly(() -> super.addCookie(cookie));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        guardQuietly(() -> super.setHeader(name, value));
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        guardQuietly(() -> super.addHeader(name, value));
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        guardQuietly(() -> super.setIntHeader(name, value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        guardQuietly(() -> super.addIntHeader(name, value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        guardQuietly(() -> super.setDateHeader(name, date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        guardQuietly(() -> super.addDateHeader(name, date));
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        guardQuietly(() -> super.setStatus(sc));
+    }
+
+    @Override
+    public void setContentType(String type) {
+        guardQuietly(() -> super.setContentType(type));
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        guardQuietly(() -> super.setCharacterEncoding(charset));
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        guardQuietly(() -> super.setContentLength(len));
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        guardQuietly(() -> super.setContentLengthLong(len));
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        guardQuietly(() -> super.setBufferSize(size));
+    }
+
+    @Override
+    public void reset() {
+        guardQuietly(super::reset);
+    }
+
+    @Override
+    public void resetBuffer() {
+        guardQuietly(super::resetBuffer);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        guard(super::flushBuffer);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        guard(() -> super.sendError(sc, msg));
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        guard(() -> super.sendError(sc));
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        guard(() -> super.sendRedirect(location));
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            if (outputStream == null) {
+                outputStream = new GuardedOutputStream(super.getOutputStream());
+            }
+            return outputStream;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        synchronized (lock) {
+            if (writer == null) {
+                writer = new PrintWriter(new GuardedWriter(super.getWriter()));
+            }
+            return writer;
+        }
+    }
+
+    interface Action {
+        void run() throws IOException;
+    }
+
+    private final class GuardedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        GuardedOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            guard(() -> out.write(b));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            guard(() -> out.write(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            guard(out::flush);
+        }
+
+        @Override
+        public void close() throws IOException {
+            guard(out::close);
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+
+    private final class GuardedWriter extends Writer {
+        private final Writer out;
+
+        GuardedWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            guard(() -> out.write(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            guard(out::flush);
+        }
+
+        @Override
+        public void close() throws IOException {
+            guard(out::close);
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package com.subbotin.saml.servlets;
 
-import com.subbotin.saml.utils.SamlSystemUtils;
+import com.subbotin.saml.common.Sessions;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -13,7 +13,7 @@ public class LogoutServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        request.getSession().removeAttribute(SamlSystemUtils.SESSION_USER);
+        Sessions.logout(request, response);
         response.sendRedirect("index.jsp");
     }
 }
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.subbotin.saml.servlets;
+
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.metrics.PrometheusExporter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class MetricsServlet extends HttpServlet {
+    private PrometheusExporter prometheusExporter = new PrometheusExporter(Metrics.getInstance());
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        StringWriter writer = new StringWriter();
+        prometheusExporter.write(writer);
+        response.setContentType(PrometheusExporter.CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(writer.toString());
+    }
+}
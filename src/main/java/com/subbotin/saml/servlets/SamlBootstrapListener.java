@@ -0,0 +1,88 @@
+package com.subbotin.saml.servlets;
+
+import com.subbotin.saml.common.Sessions;
+import com.subbotin.saml.common.Users;
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.RedirectSigner;
+import com.subbotin.saml.security.ReplayCache;
+import com.subbotin.saml.security.TenantLimiter;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.services.SamlWarmUp;
+import com.subbotin.saml.utils.FailureLog;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import com.subbotin.saml.xml.XmlParserPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Bootstraps OpenSAML once per application and warms the login pipeline up in the background.
+ * {@link ReadinessServlet} reports the node as not ready until the warm-up is over, and for good when it
+ * fails, since a pipeline that can not check the warm-up response can not check real ones either. A node
+ * whose {@code userJournal.directory} can not be used is not ready either, it would forget its users.
+ */
+public class SamlBootstrapListener implements ServletContextListener {
+    static Logger logger = LoggerFactory.getLogger(SamlBootstrapListener.class);
+    private static volatile boolean ready;
+
+    private Thread warmUpThread;
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        SamlSystemUtils.init();
+        if (!SamlSystemUtils.isInitialized()) {
+            logger.error("OpenSAML is not bootstrapped, the node stays not ready");
+            return;
+        }
+        TenantRegistry tenantRegistry = TenantRegistry.getInstance();
+        XmlParserPool.getInstance();
+        ReplayCache.getInstance();
+        SamlWorkerPool.getInstance();
+        RedirectSigner.getInstance();
+        FailureLog.getInstance();
+        TenantLimiter.getInstance();
+        Sessions.init();
+        if (Users.isPersistenceFailed()) {
+            logger.error("Users can not be kept across restarts, the node stays not ready");
+            return;
+        }
+
+        int iterations = tenantRegistry.getCommonSettings().getInt(SamlWarmUp.ITERATIONS, SamlWarmUp.DEFAULT_ITERATIONS);
+        warmUpThread = new Thread(() -> warmUp(tenantRegistry, iterations), "saml-warm-up");
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
+    private void warmUp(TenantRegistry tenantRegistry, int iterations) {
+        SamlWarmUp samlWarmUp = new SamlWarmUp(new SamlServiceImpl(new Metrics()), tenantRegistry);
+        samlWarmUp.preloadCertificates();
+        try {
+            samlWarmUp.run(iterations);
+        } catch (Exception e) {
+            logger.error("Problem while warming up, the node stays not ready", e);
+            return;
+        }
+        ready = !Thread.currentThread().isInterrupted();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ready = false;
+        if (warmUpThread != null) {
+            warmUpThread.interrupt();
+        }
+        TenantRegistry.getInstance().stopWatching();
+        SamlWorkerPool.shutdownInstance();
+        ReplayCache.flushInstance();
+        FailureLog.shutdownInstance();
+        Sessions.closeStore();
+        Users.closePersistence();
+    }
+}
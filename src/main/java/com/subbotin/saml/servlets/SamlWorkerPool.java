@@ -0,0 +1,214 @@
+package com.subbotin.saml.servlets;
+
+import com.subbotin.saml.exceptions.SessionTableIsFullException;
+import com.subbotin.saml.exceptions.TenantLimitExceededException;
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.utils.FailureLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the CPU-heavy part of login and ACS requests on a pool sized to the cores, so a burst of logins
+ * does not hold the container threads that serve pages. The request is released to the container with
+ * {@link AsyncContext}. When {@code queueCapacity} requests are already waiting, or a request waited
+ * longer than {@code timeoutMillis}, it is answered at once with 503 and {@code Retry-After}. A request that
+ * times out while its task runs is answered the same way unless the task has already committed the
+ * response, and the task then writes nothing more: the worker and the timeout share a
+ * {@link GuardedResponse} and only one of them completes the request. A request of a tenant over its
+ * limits is answered with 429, a login the session table has no room for with 503 and {@code Retry-After}.
+ */
+public class SamlWorkerPool {
+    public static final String THREADS = "samlWorkerPool.threads";
+    public static final String QUEUE_CAPACITY = "samlWorkerPool.queueCapacity";
+    public static final String TIMEOUT_MILLIS = "samlWorkerPool.timeoutMillis";
+    public static final String RETRY_AFTER_SECONDS = "samlWorkerPool.retryAfterSeconds";
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    static Logger logger = LoggerFactory.getLogger(SamlWorkerPool.class);
+    private static volatile SamlWorkerPool instance;
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final String retryAfterSeconds;
+    private final LongAdder rejected = new LongAdder();
+
+    public SamlWorkerPool(int threads, int queueCapacity, long timeoutMillis, int retryAfterSeconds) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "saml-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeoutMillis = timeoutMillis;
+        this.retryAfterSeconds = String.valueOf(retryAfterSeconds);
+    }
+
+    public static SamlWorkerPool getInstance() {
+        SamlWorkerPool pool = instance;
+        if (pool == null) {
+            synchronized (SamlWorkerPool.class) {
+                pool = instance;
+                if (pool == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    pool = new SamlWorkerPool(
+                            settings.getInt(THREADS, Runtime.getRuntime().availableProcessors()),
+                            settings.getInt(QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                            settings.getLong(TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS),
+                            settings.getInt(RETRY_AFTER_SECONDS, DEFAULT_RETRY_AFTER_SECONDS));
+                    instance = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    public static void shutdownInstance() {
+        SamlWorkerPool pool = instance;
+        if (pool != null) {
+            pool.executor.shutdownNow();
+        }
+    }
+
+    public void execute(HttpServletRequest request, HttpServletResponse response, Task task) throws IOException, ServletException {
+        if (!request.isAsyncSupported()) {
+            task.run(request, response);
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutMillis);
+        GuardedResponse guardedResponse = new GuardedResponse(response);
+        asyncContext.addListener(new TimeoutListener(guardedResponse));
+        try {
+            executor.execute(() -> run(asyncContext, guardedResponse, task));
+        } catch (RejectedExecutionException e) {
+            guardedResponse.transition(GuardedResponse.State.QUEUED, GuardedResponse.State.DONE, () -> {
+                rejected.increment();
+                sendServiceUnavailable(response);
+                asyncContext.complete();
+            });
+        }
+    }
+
+    private void run(AsyncContext asyncContext, GuardedResponse response, Task task) {
+        if (!response.transition(GuardedResponse.State.QUEUED, GuardedResponse.State.RUNNING)) {
+            return;
+        }
+        try {
+            task.run((HttpServletRequest) asyncContext.getRequest(), response);
+        } catch (TenantLimitExceededException e) {
+            try {
+                sendTooManyRequests(response, e.getRetryAfterSeconds());
+            } catch (IOException sendError) {
+                logger.warn("Problem sending error response", sendError);
+            }
+        } catch (SessionTableIsFullException e) {
+            FailureLog.getInstance().error(logger, e.getMessage(), null);
+            if (!response.isCommitted()) {
+                try {
+                    sendServiceUnavailable(response);
+                } catch (IOException sendError) {
+                    logger.warn("Problem sending error response", sendError);
+                }
+            }
+        } catch (Exception e) {
+            FailureLog.getInstance().error(logger, FailureLog.getReason(e), e);
+            if (!response.isCommitted()) {
+                try {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException sendError) {
+                    logger.warn("Problem sending error response", sendError);
+                }
+            }
+        } finally {
+            try {
+                if (!response.transition(GuardedResponse.State.RUNNING, GuardedResponse.State.DONE, asyncContext::complete)) {
+                    logger.warn("Request timed out while it was processed, the response of the task is dropped");
+                }
+            } catch (IOException | IllegalStateException e) {
+                logger.warn("Problem completing request", e);
+            }
+        }
+    }
+
+    private void sendServiceUnavailable(HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", retryAfterSeconds);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Answers a request of a tenant over its limits, the rejection is already counted by the limiter.
+     */
+    public static void sendTooManyRequests(HttpServletResponse response, long retryAfterSeconds) throws IOException {
+        if (!response.isCommitted()) {
+            response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+            response.sendError(SC_TOO_MANY_REQUESTS);
+        }
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public interface Task {
+        void run(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException;
+    }
+
+    private final class TimeoutListener implements AsyncListener {
+        private final GuardedResponse guardedResponse;
+
+        TimeoutListener(GuardedResponse guardedResponse) {
+            this.guardedResponse = guardedResponse;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            guardedResponse.timeOut(() -> {
+                rejected.increment();
+                HttpServletResponse response = (HttpServletResponse) guardedResponse.getResponse();
+                if (!response.isCommitted()) {
+                    response.reset();
+                    sendServiceUnavailable(response);
+                }
+                event.getAsyncContext().complete();
+            });
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
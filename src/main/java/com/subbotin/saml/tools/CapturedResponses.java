@@ -0,0 +1,173 @@
+package com.subbotin.saml.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads captured {@code SAMLResponse} values either from a directory (one Base64 value per file, the file
+ * name is the ID) or from a JSONL file (one flat object per line with {@code SAMLResponse} and an optional
+ * {@code id}).
+ */
+final class CapturedResponses {
+    static final String SAML_RESPONSE = "SAMLResponse";
+    static final String ID = "id";
+
+    private CapturedResponses() {}
+
+    static List<CapturedResponse> load(Path input) throws IOException {
+        return Files.isDirectory(input) ? loadDirectory(input) : loadJsonLines(input);
+    }
+
+    private static List<CapturedResponse> loadDirectory(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        List<CapturedResponse> responses = new ArrayList<>(files.size());
+        for (Path file : files) {
+            responses.add(new CapturedResponse(file.getFileName().toString(), new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim()));
+        }
+        return responses;
+    }
+
+    private static List<CapturedResponse> loadJsonLines(Path file) throws IOException {
+        List<CapturedResponse> responses = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, String> fields = parseObject(line, lineNumber);
+                String samlResponse = fields.get(SAML_RESPONSE);
+                if (samlResponse == null) {
+                    throw new IOException("Line " + lineNumber + " does not have " + SAML_RESPONSE);
+                }
+                responses.add(new CapturedResponse(fields.getOrDefault(ID, "line-" + lineNumber), samlResponse.trim()));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Parses a flat JSON object, values other than strings are kept as their literal text.
+     */
+    static Map<String, String> parseObject(String line, int lineNumber) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        int[] position = {skipWhitespace(line, 0)};
+        expect(line, position, '{', lineNumber);
+        if (peek(line, position) == '}') {
+            return fields;
+        }
+        while (true) {
+            String key = readString(line, position, lineNumber);
+            expect(line, position, ':', lineNumber);
+            String value = peek(line, position) == '"' ? readString(line, position, lineNumber) : readLiteral(line, position);
+            fields.put(key, value);
+            char next = peek(line, position);
+            position[0]++;
+            if (next == '}') {
+                return fields;
+            } else if (next != ',') {
+                throw new IOException("Line " + lineNumber + " is not a flat JSON object");
+            }
+        }
+    }
+
+    private static String readString(String line, int[] position, int lineNumber) throws IOException {
+        expect(line, position, '"', lineNumber);
+        StringBuilder value = new StringBuilder();
+        for (int i = position[0]; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                position[0] = skipWhitespace(line, i + 1);
+                return value.toString();
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        value.append(readUnicodeEscape(line, i + 1, lineNumber));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IOException("Line " + lineNumber + " has an unterminated string");
+    }
+
+    private static char readUnicodeEscape(String line, int start, int lineNumber) throws IOException {
+        int code = 0;
+        for (int i = start; i < start + 4; i++) {
+            char c = i < line.length() ? line.charAt(i) : ' ';
+            int digit = c < 0x80 ? Character.digit(c, 16) : -1;
+            if (digit < 0) {
+                throw new IOException("Line " + lineNumber + " has an invalid \\u escape at " + (start - 2));
+            }
+            code = code << 4 | digit;
+        }
+        return (char) code;
+    }
+
+    private static String readLiteral(String line, int[] position) {
+        int start = position[0];
+        int end = start;
+        while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '}') {
+            end++;
+        }
+        position[0] = end;
+        return line.substring(start, end).trim();
+    }
+
+    private static void expect(String line, int[] position, char expected, int lineNumber) throws IOException {
+        if (peek(line, position) != expected) {
+            throw new IOException("Line " + lineNumber + " is not a flat JSON object, expected '" + expected + "' at " + position[0]);
+        }
+        position[0] = skipWhitespace(line, position[0] + 1);
+    }
+
+    private static char peek(String line, int[] position) {
+        position[0] = skipWhitespace(line, position[0]);
+        return position[0] < line.length() ? line.charAt(position[0]) : 0;
+    }
+
+    private static int skipWhitespace(String line, int position) {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    static final class CapturedResponse {
+        final String id;
+        final String samlResponse;
+
+        CapturedResponse(String id, String samlResponse) {
+            this.id = id;
+            this.samlResponse = samlResponse;
+        }
+    }
+}
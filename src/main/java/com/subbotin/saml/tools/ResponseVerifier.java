@@ -0,0 +1,268 @@
+package com.subbotin.saml.tools;
+
+import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.services.SamlServiceImpl;
+import com.subbotin.saml.tools.CapturedResponses.CapturedResponse;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.opensaml.common.SAMLException;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Runs captured {@code SAMLResponse} values through the same decode, validation and signature checks as
+ * the ACS endpoint, in parallel on a fork-join pool, and reports the result of every response together
+ * with the throughput and the failure reasons. The replay check is skipped, captures are usually verified
+ * more than once.
+ * <p>
+ * Usage: {@code ResponseVerifier [--settings DIR] [--threads N] [--at ISO_INSTANT] [--out FILE] INPUT},
+ * where INPUT is a directory with one response per file or a JSONL file.
+ */
+public class ResponseVerifier {
+    static final String TENANT_IS_NOT_CONFIGURED = "Tenant is not configured";
+    private static final long NANOS_IN_MICROSECOND = 1000;
+
+    private final SamlService samlService;
+
+    public ResponseVerifier(SamlService samlService) {
+        this.samlService = samlService;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path input = null;
+        Path out = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--settings":
+                    System.setProperty(TenantRegistry.SETTINGS_DIRECTORY_PROPERTY, args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--at":
+                    DateTimeUtils.setCurrentMillisFixed(DateTime.parse(args[++i]).getMillis());
+                    break;
+                case "--out":
+                    out = Paths.get(args[++i]);
+                    break;
+                default:
+                    input = Paths.get(args[i]);
+            }
+        }
+        if (input == null) {
+            System.err.println("Usage: ResponseVerifier [--settings DIR] [--threads N] [--at ISO_INSTANT] [--out FILE] INPUT");
+            System.exit(2);
+        }
+
+        SamlSystemUtils.init();
+        List<CapturedResponse> responses = CapturedResponses.load(input);
+        Report report = new ResponseVerifier(new SamlServiceImpl()).verifyAll(responses, threads);
+        try (Writer writer = out == null
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            report.writeResults(writer);
+        }
+        PrintWriter summary = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+        report.writeSummary(summary);
+        summary.flush();
+        System.exit(report.getFailed() == 0 ? 0 : 1);
+    }
+
+    public Report verifyAll(List<CapturedResponse> responses, int threads) throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Result> results = pool.submit(() -> responses.parallelStream().map(this::verify).collect(Collectors.toList())).get();
+            return new Report(results, threads, System.nanoTime() - start);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public Result verify(CapturedResponse captured) {
+        long start = System.nanoTime();
+        String subject = null;
+        try {
+            SamlResponse samlResponse = samlService.createSamlResponse(captured.samlResponse);
+            subject = samlResponse.getSubjectNameId();
+            SamlSettings samlSettings = samlService.getTrustedSamlSettings(samlResponse);
+            if (samlSettings == null) {
+                return new Result(captured.id, subject, TENANT_IS_NOT_CONFIGURED, System.nanoTime() - start);
+            }
+            samlService.checkSignature(samlResponse, samlSettings.getX509Certificate());
+            return new Result(captured.id, subject, null, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            return new Result(captured.id, subject, getReason(e), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The services wrap {@link SAMLException} whose message is one of {@code SamlExceptionText}.
+     */
+    static String getReason(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SAMLException && cause.getMessage() != null) {
+                return cause.getMessage();
+            }
+        }
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    public static final class Result {
+        private final String id;
+        private final String subject;
+        private final String reason;
+        private final long nanos;
+
+        Result(String id, String subject, String reason, long nanos) {
+            this.id = id;
+            this.subject = subject;
+            this.reason = reason;
+            this.nanos = nanos;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public boolean isOk() {
+            return reason == null;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        void write(Writer writer) throws IOException {
+            writer.write("{\"id\":");
+            writeString(writer, id);
+            writer.write(",\"ok\":");
+            writer.write(Boolean.toString(isOk()));
+            writer.write(",\"subject\":");
+            writeString(writer, subject);
+            writer.write(",\"tenant\":");
+            writeString(writer, subject == null || subject.indexOf('@') < 0 ? null : subject.substring(subject.lastIndexOf('@') + 1));
+            writer.write(",\"reason\":");
+            writeString(writer, reason);
+            writer.write(",\"micros\":");
+            writer.write(Long.toString(nanos / NANOS_IN_MICROSECOND));
+            writer.write("}\n");
+        }
+
+        private static void writeString(Writer writer, String value) throws IOException {
+            if (value == null) {
+                writer.write("null");
+                return;
+            }
+            writer.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    writer.write('\\');
+                    writer.write(c);
+                } else if (c < ' ') {
+                    writer.write(String.format("\\u%04x", (int) c));
+                } else {
+                    writer.write(c);
+                }
+            }
+            writer.write('"');
+        }
+    }
+
+    public static final class Report {
+        private final List<Result> results;
+        private final int threads;
+        private final long elapsedNanos;
+
+        Report(List<Result> results, int threads, long elapsedNanos) {
+            this.results = results;
+            this.threads = threads;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<Result> getResults() {
+            return results;
+        }
+
+        public long getFailed() {
+            return results.stream().filter(result -> !result.isOk()).count();
+        }
+
+        /**
+         * Returns failure counts by reason, the most frequent first.
+         */
+        public Map<String, Long> getFailureReasons() {
+            Map<String, Long> counts = results.stream()
+                    .filter(result -> !result.isOk())
+                    .collect(Collectors.groupingBy(Result::getReason, Collectors.counting()));
+            Map<String, Long> sorted = new LinkedHashMap<>();
+            counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                    .forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+            return sorted;
+        }
+
+        public double getThroughputPerSecond() {
+            return elapsedNanos == 0 ? 0 : results.size() * 1e9 / elapsedNanos;
+        }
+
+        void writeResults(Writer writer) throws IOException {
+            for (Result result : results) {
+                result.write(writer);
+            }
+        }
+
+        void writeSummary(PrintWriter writer) {
+            writer.printf("Verified %d responses in %.3f s on %d threads, %.1f responses/s%n",
+                    results.size(), elapsedNanos / 1e9, threads, getThroughputPerSecond());
+            writer.printf("OK: %d, failed: %d%n", results.size() - getFailed(), getFailed());
+            if (!results.isEmpty()) {
+                List<Long> nanos = new ArrayList<>(results.size());
+                results.forEach(result -> nanos.add(result.getNanos()));
+                Collections.sort(nanos);
+                writer.printf("Per response: p50 %d us, p99 %d us, max %d us%n",
+                        percentile(nanos, 0.5) / NANOS_IN_MICROSECOND, percentile(nanos, 0.99) / NANOS_IN_MICROSECOND,
+                        nanos.get(nanos.size() - 1) / NANOS_IN_MICROSECOND);
+            }
+            for (Map.Entry<String, Long> reason : getFailureReasons().entrySet()) {
+                writer.printf("%8d  %s%n", reason.getValue(), reason.getKey());
+            }
+        }
+
+        private static long percentile(List<Long> sorted, double percentile) {
+            return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile * sorted.size()) - 1));
+        }
+    }
+}
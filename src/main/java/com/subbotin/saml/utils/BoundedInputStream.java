@@ -0,0 +1,62 @@
+package com.subbotin.saml.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails with {@link LimitExceededException} as soon as more than {@code maxBytes} are read, so an
+ * oversized payload is rejected while it is streamed instead of after it is buffered.
+ */
+public class BoundedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    public BoundedInputStream(InputStream input, long maxBytes) {
+        super(input);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result >= 0) {
+            count(1);
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int result = super.read(buffer, offset, length);
+        if (result > 0) {
+            count(result);
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long result = super.skip(n);
+        count(result);
+        return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long bytes) throws LimitExceededException {
+        count += bytes;
+        if (count > maxBytes) {
+            throw new LimitExceededException(maxBytes);
+        }
+    }
+
+    public static class LimitExceededException extends IOException {
+        public LimitExceededException(long maxBytes) {
+            super(String.format("Stream is longer than %d bytes", maxBytes));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.subbotin.saml.utils;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import org.opensaml.common.SAMLException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs failures of requests off the request thread. Every reason may log {@code maxPerSecond} failures a
+ * second, the rest are only counted and reported once a second as one line per reason. Accepted failures
+ * go to a bounded queue that a single thread writes in batches, a full queue drops them. The stack trace
+ * of a reason is written at most once per {@code stackTraceIntervalSeconds}, other failures of the reason
+ * are written as one line.
+ */
+public class FailureLog {
+    public static final String MAX_PER_SECOND = "failureLog.maxPerSecond";
+    public static final String QUEUE_CAPACITY = "failureLog.queueCapacity";
+    public static final String STACK_TRACE_INTERVAL_SECONDS = "failureLog.stackTraceIntervalSeconds";
+    public static final int DEFAULT_MAX_PER_SECOND = 5;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_STACK_TRACE_INTERVAL_SECONDS = 60;
+    public static final String OTHER_REASON = "other";
+    private static final int MAX_REASONS = 64;
+    private static final int BATCH_SIZE = 64;
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    static Logger logger = LoggerFactory.getLogger(FailureLog.class);
+    private static volatile FailureLog instance;
+
+    private final int maxPerSecond;
+    private final long stackTraceIntervalMillis;
+    private final BlockingQueue<Event> queue;
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+    private final Map<String, Long> stackTraceWrittenAt = new HashMap<>();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread appender;
+
+    public FailureLog(int maxPerSecond, int queueCapacity, int stackTraceIntervalSeconds) {
+        this.maxPerSecond = (int) Math.min(maxPerSecond, COUNT_MASK);
+        this.stackTraceIntervalMillis = TimeUnit.SECONDS.toMillis(stackTraceIntervalSeconds);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.appender = new Thread(this::append, "saml-failure-log");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    public static FailureLog getInstance() {
+        FailureLog failureLog = instance;
+        if (failureLog == null) {
+            synchronized (FailureLog.class) {
+                failureLog = instance;
+                if (failureLog == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    failureLog = new FailureLog(
+                            settings.getInt(MAX_PER_SECOND, DEFAULT_MAX_PER_SECOND),
+                            settings.getInt(QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                            settings.getInt(STACK_TRACE_INTERVAL_SECONDS, DEFAULT_STACK_TRACE_INTERVAL_SECONDS));
+                    instance = failureLog;
+                }
+            }
+        }
+        return failureLog;
+    }
+
+    public static void shutdownInstance() {
+        FailureLog failureLog = instance;
+        if (failureLog != null) {
+            failureLog.shutdown();
+        }
+    }
+
+    /**
+     * Returns the message of the first {@link SAMLException} in the causes of {@code failure}, or the
+     * simple name of its class, so the reason does not depend on the content of the request.
+     */
+    public static String getReason(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SAMLException && cause.getMessage() != null) {
+                return cause.getMessage();
+            }
+        }
+        return failure.getClass().getSimpleName();
+    }
+
+    /**
+     * Queues {@code cause} to be written to {@code target} as an error, unless {@code reason} is over its
+     * budget of the current second. Never blocks.
+     */
+    public void error(Logger target, String reason, @Nullable Throwable cause) {
+        Budget budget = getBudget(reason);
+        if (!budget.tryAcquire(System.currentTimeMillis() / 1000, maxPerSecond)) {
+            budget.suppressed.increment();
+            suppressed.increment();
+        } else if (!queue.offer(new Event(target, reason, cause, Thread.currentThread().getName()))) {
+            dropped.increment();
+        }
+    }
+
+    private Budget getBudget(String reason) {
+        Budget budget = budgets.get(reason);
+        if (budget == null) {
+            budget = budgets.computeIfAbsent(budgets.size() < MAX_REASONS ? reason : OTHER_REASON, key -> new Budget());
+        }
+        return budget;
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void append() {
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        long reportedAt = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Event event = queue.poll(1, TimeUnit.SECONDS);
+                if (event != null) {
+                    batch.add(event);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long now = System.currentTimeMillis();
+            if (now - reportedAt >= 1000) {
+                reportSuppressed(now - reportedAt);
+                reportedAt = now;
+            }
+        }
+        queue.drainTo(batch);
+        write(batch);
+        reportSuppressed(System.currentTimeMillis() - reportedAt);
+    }
+
+    private void write(List<Event> batch) {
+        for (Event event : batch) {
+            try {
+                if (event.cause == null) {
+                    event.target.error("{} [{}]", event.reason, event.thread);
+                } else if (isStackTraceDue(event.reason, event.time)) {
+                    event.target.error(event.reason + " [" + event.thread + "]", event.cause);
+                } else {
+                    event.target.error("{} [{}]: {}", event.reason, event.thread, event.cause.toString());
+                }
+                written.increment();
+            } catch (RuntimeException e) {
+                dropped.increment();
+            }
+        }
+        batch.clear();
+    }
+
+    private boolean isStackTraceDue(String reason, long time) {
+        Long writtenAt = stackTraceWrittenAt.get(reason);
+        if (writtenAt != null && time - writtenAt < stackTraceIntervalMillis) {
+            return false;
+        }
+        if (writtenAt != null || stackTraceWrittenAt.size() < MAX_REASONS) {
+            stackTraceWrittenAt.put(reason, time);
+        }
+        return true;
+    }
+
+    private void reportSuppressed(long periodMillis) {
+        for (Map.Entry<String, Budget> entry : budgets.entrySet()) {
+            long count = entry.getValue().suppressed.sumThenReset();
+            if (count > 0) {
+                logger.warn("{} more failures \"{}\" in the last {} ms were not logged", count, entry.getKey(), periodMillis);
+            }
+        }
+    }
+
+    void shutdown() {
+        appender.interrupt();
+        try {
+            appender.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Second and number of failures logged in it, packed into one long to be updated with a single CAS.
+     */
+    private static final class Budget {
+        final AtomicLong state = new AtomicLong();
+        final LongAdder suppressed = new LongAdder();
+
+        boolean tryAcquire(long second, int limit) {
+            while (true) {
+                long current = state.get();
+                long next = current >>> COUNT_BITS == second ? current + 1 : second << COUNT_BITS | 1;
+                if ((next & COUNT_MASK) > limit) {
+                    return false;
+                }
+                if (state.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static final class Event {
+        final Logger target;
+        final String reason;
+        final Throwable cause;
+        final String thread;
+        final long time = System.currentTimeMillis();
+
+        Event(Logger target, String reason, @Nullable Throwable cause, String thread) {
+            this.target = target;
+            this.reason = reason;
+            this.cause = cause;
+            this.thread = thread;
+        }
+    }
+}
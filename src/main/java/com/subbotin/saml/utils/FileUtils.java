@@ -2,12 +2,27 @@ package com.subbotin.saml.utils;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Properties;
 
 public final class FileUtils {
     public static String getProperty(String propertiesFileName, String property) throws IOException {
         Properties properties = new Properties();
-        properties.load(new FileInputStream(propertiesFileName));
+        try (InputStream input = new FileInputStream(propertiesFileName)) {
+            properties.load(input);
+        }
         return properties.getProperty(property);
     }
+
+    public static Properties loadProperties(Path propertiesFile) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(propertiesFile)) {
+            properties.load(input);
+        }
+        return properties;
+    }
+
+    private FileUtils() {}
 }
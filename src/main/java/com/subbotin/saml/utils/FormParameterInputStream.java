@@ -0,0 +1,103 @@
+package com.subbotin.saml.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the URL-decoded value of one parameter of an {@code application/x-www-form-urlencoded} body,
+ * so a large form field can be consumed without building the parameter map and its String first.
+ * Other parameters are skipped; a missing parameter reads as an empty stream.
+ */
+public class FormParameterInputStream extends InputStream {
+    private final InputStream input;
+    private final byte[] name;
+    private boolean valueStarted;
+    private boolean finished;
+
+    public FormParameterInputStream(InputStream input, String name) {
+        this.input = new BufferedInputStream(input);
+        this.name = name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (!valueStarted) {
+            valueStarted = findValue();
+            if (!valueStarted) {
+                finished = true;
+                return -1;
+            }
+        }
+        int b = input.read();
+        switch (b) {
+            case -1:
+            case '&':
+                finished = true;
+                return -1;
+            case '+':
+                return ' ';
+            case '%':
+                return (hexDigit(input.read()) << 4) | hexDigit(input.read());
+            default:
+                return b;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < length) {
+            int b = read();
+            if (b < 0) {
+                break;
+            }
+            buffer[offset + count++] = (byte) b;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private boolean findValue() throws IOException {
+        while (true) {
+            int matched = 0;
+            int b;
+            while ((b = input.read()) != -1 && b != '=' && b != '&') {
+                matched = matched >= 0 && matched < name.length && name[matched] == b ? matched + 1 : -1;
+            }
+            if (b == -1) {
+                return false;
+            }
+            if (b == '=' && matched == name.length) {
+                return true;
+            }
+            if (b == '=') {
+                while ((b = input.read()) != -1 && b != '&') {
+                    // the value of another parameter
+                }
+                if (b == -1) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static int hexDigit(int b) throws IOException {
+        int digit = Character.digit(b, 16);
+        if (digit < 0) {
+            throw new IOException("Form parameter has an incorrect percent-encoding");
+        }
+        return digit;
+    }
+}
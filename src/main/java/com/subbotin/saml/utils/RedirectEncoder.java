@@ -0,0 +1,139 @@
+package com.subbotin.saml.utils;
+
+import org.apache.http.client.utils.URIBuilder;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Builds HTTP-Redirect binding URLs without intermediate strings: an AuthnRequest is deflated by a
+ * {@link Deflater} kept per thread and Base64 and URL encoded in one pass into the URL being built. The
+ * part of the URL before the request is built with {@link URIBuilder}, once per tenant by
+ * {@code SamlSettings}, so the result is the URL that {@code URIBuilder} would build.
+ */
+public final class RedirectEncoder {
+    public static final String SAML_REQUEST = "SAMLRequest";
+    private static final String PLACEHOLDER = "X";
+    private static final int DEFLATE_LEVEL = 8;
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final ThreadLocal<DeflateBuffer> deflateBuffers = ThreadLocal.withInitial(DeflateBuffer::new);
+
+    /**
+     * Returns {@code samlEndpoint}, with its own query parameters encoded the way {@code URIBuilder} encodes
+     * them, followed by {@code SAMLRequest=}.
+     */
+    public static String getPrefix(String samlEndpoint) throws URISyntaxException {
+        URIBuilder uriBuilder = new URIBuilder(samlEndpoint);
+        uriBuilder.setCharset(StandardCharsets.UTF_8);
+        uriBuilder.addParameter(SAML_REQUEST, PLACEHOLDER);
+        String uri = uriBuilder.build().toString();
+        if (!uri.endsWith(SAML_REQUEST + "=" + PLACEHOLDER)) {
+            throw new URISyntaxException(samlEndpoint, "IdP endpoint must not have a fragment");
+        }
+        return uri.substring(0, uri.length() - PLACEHOLDER.length());
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code xml} deflated like {@code CompressionUtils.deflate}, then Base64
+     * and URL encoded.
+     */
+    public static void appendDeflated(byte[] xml, int length, StringBuilder url) {
+        DeflateBuffer buffer = deflateBuffers.get();
+        int written = buffer.deflate(xml, length);
+        appendBase64(buffer.output, 0, written, url);
+    }
+
+    /**
+     * Same bytes as {@code CompressionUtils.deflate}, but with the {@link Deflater} of the thread.
+     */
+    public static byte[] deflate(byte[] xml, int length) {
+        DeflateBuffer buffer = deflateBuffers.get();
+        int written = buffer.deflate(xml, length);
+        return Arrays.copyOf(buffer.output, written);
+    }
+
+    /**
+     * Appends standard Base64 of the bytes with '+', '/' and '=' percent-encoded.
+     */
+    public static void appendBase64(byte[] data, int offset, int length, StringBuilder url) {
+        url.ensureCapacity(url.length() + (length + 2) / 3 * 4 + length / 8);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            appendChar(url, bits >>> 18);
+            appendChar(url, bits >>> 12 & 0x3f);
+            appendChar(url, bits >>> 6 & 0x3f);
+            appendChar(url, bits & 0x3f);
+        }
+        if (end - i == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            appendChar(url, bits >>> 18);
+            appendChar(url, bits >>> 12 & 0x3f);
+            url.append("%3D%3D");
+        } else if (end - i == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            appendChar(url, bits >>> 18);
+            appendChar(url, bits >>> 12 & 0x3f);
+            appendChar(url, bits >>> 6 & 0x3f);
+            url.append("%3D");
+        }
+    }
+
+    /**
+     * URL-encodes an already Base64 encoded value: only '+', '/' and '=' need escaping.
+     */
+    public static void appendBase64(String base64, StringBuilder url) {
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            if (c == '+') {
+                url.append("%2B");
+            } else if (c == '/') {
+                url.append("%2F");
+            } else if (c == '=') {
+                url.append("%3D");
+            } else {
+                url.append(c);
+            }
+        }
+    }
+
+    private static void appendChar(StringBuilder url, int index) {
+        if (index == 62) {
+            url.append("%2B");
+        } else if (index == 63) {
+            url.append("%2F");
+        } else {
+            url.append(BASE64[index]);
+        }
+    }
+
+    private static final class DeflateBuffer {
+        final Deflater deflater = new Deflater(DEFLATE_LEVEL, true);
+        byte[] output = new byte[2048];
+
+        int deflate(byte[] input, int length) {
+            if (output.length < length) {
+                output = new byte[length + 64];
+            }
+            try {
+                deflater.setInput(input, 0, length);
+                deflater.finish();
+                int written = 0;
+                while (!deflater.finished()) {
+                    if (written == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    written += deflater.deflate(output, written, output.length - written);
+                }
+                return written;
+            } finally {
+                deflater.reset();
+            }
+        }
+    }
+
+    private RedirectEncoder() {}
+}
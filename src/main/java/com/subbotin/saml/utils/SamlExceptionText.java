@@ -16,8 +16,16 @@ public final class SamlExceptionText {
     public static final String MASK_DOES_NOT_HAVE_SIGNATURE_FOR_TEST = ".* does not have signature";
     public static final String MASK_HAS_INVALID_SIGNATURE = "%s has invalid signature";
     public static final String MASK_HAS_INVALID_SIGNATURE_FOR_TEST = ".* has invalid signature";
+    public static final String MASK_WAS_ALREADY_USED = "%s was already used";
+    public static final String MASK_WAS_ALREADY_USED_FOR_TEST = ".* was already used";
+    public static final String REPLAY_CACHE_IS_FULL = "Replay cache has no room for the ID";
     public static final String PROBLEM_DECODE_RESPONSE_FROM_BASE64 = "Problem decode response from Base64";
+    public static final String RESPONSE_IS_TOO_LARGE = "Response is too large";
     public static final String PROBLEM_DEFLATE_AND_ENCODE_REQUEST_TO_BASE64 = "Problem deflate AuthnRequest and encode to Base64";
+    public static final String SP_PRIVATE_KEY_IS_NOT_CONFIGURED = "SP private key is not configured";
+    public static final String PROBLEM_SIGN_AUTHN_REQUEST = "Problem sign AuthnRequest";
+    public static final String TENANT_IS_OVER_RATE_LIMIT = "Tenant is over its rate limit";
+    public static final String TENANT_IS_OVER_CONCURRENCY_LIMIT = "Tenant is over its limit of concurrent verifications";
 
     private SamlExceptionText() {}
 }
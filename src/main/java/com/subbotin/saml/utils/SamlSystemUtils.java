@@ -10,18 +10,26 @@ import java.util.UUID;
 public final class SamlSystemUtils {
     public static final String ISSUER_NAME = "https://realtimeboard.com";
     public static final int BACKLASH_FOR_MESSAGE_IN_SECONDS = 300;
-    public static String SESSION_USER = "SESSION_USER";
 
     public static Logger logger = LoggerFactory.getLogger(SamlSystemUtils.class);
+    private static boolean initialized;
 
-    public static void init() {
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
         try {
             DefaultBootstrap.bootstrap();
+            initialized = true;
         } catch (ConfigurationException e) {
             logger.error("Problem while bootstrapping openSAML library", e);
         }
     }
 
+    public static synchronized boolean isInitialized() {
+        return initialized;
+    }
+
     public static String generateId() {
         return "_" + UUID.randomUUID();
     }
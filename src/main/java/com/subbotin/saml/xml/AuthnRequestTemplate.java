@@ -0,0 +1,130 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.services.SamlSystemService;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.AuthnRequest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * AuthnRequest XML precompiled for one issuer and ACS URL. Only {@code ID} and {@code IssueInstant} differ
+ * between logins, they are written straight into a caller's byte buffer between constant UTF-8 parts.
+ * The parts are cut out of a request rendered once through the OpenSAML object tree with placeholder
+ * values, so the output matches {@link SamlSystemService#convertXmlObjectToString} byte for byte.
+ */
+public final class AuthnRequestTemplate {
+    private static final String ID_PLACEHOLDER = "_authn-request-template-id";
+    private static final DateTime ISSUE_INSTANT_PLACEHOLDER = new DateTime(0, DateTimeZone.UTC);
+    private static final String ISSUE_INSTANT_PLACEHOLDER_TEXT = "1970-01-01T00:00:00.000Z";
+    private static final int ISSUE_INSTANT_LENGTH = ISSUE_INSTANT_PLACEHOLDER_TEXT.length();
+
+    private final String assertionConsumerServiceUrl;
+    private final byte[] prefix;
+    private final byte[] middle;
+    private final byte[] suffix;
+
+    private AuthnRequestTemplate(String assertionConsumerServiceUrl, byte[] prefix, byte[] middle, byte[] suffix) {
+        this.assertionConsumerServiceUrl = assertionConsumerServiceUrl;
+        this.prefix = prefix;
+        this.middle = middle;
+        this.suffix = suffix;
+    }
+
+    public static AuthnRequestTemplate compile(SamlSystemService samlSystemService, String assertionConsumerServiceUrl, String issuerName) throws SAMLException {
+        AuthnRequest authnRequest = samlSystemService.createAuthnRequest(assertionConsumerServiceUrl, ID_PLACEHOLDER, ISSUE_INSTANT_PLACEHOLDER, issuerName);
+        String xml = samlSystemService.convertXmlObjectToString(authnRequest);
+
+        String idAttribute = " ID=\"" + ID_PLACEHOLDER + "\"";
+        String issueInstantAttribute = " IssueInstant=\"" + ISSUE_INSTANT_PLACEHOLDER_TEXT + "\"";
+        int idStart = xml.indexOf(idAttribute);
+        int issueInstantStart = xml.indexOf(issueInstantAttribute, idStart + idAttribute.length());
+        if (idStart < 0 || issueInstantStart < 0) {
+            throw new SAMLException("AuthnRequest attributes are serialized in an unexpected order, template can not be compiled");
+        }
+        int idValueStart = idStart + idAttribute.length() - ID_PLACEHOLDER.length() - 1;
+        int issueInstantValueStart = issueInstantStart + issueInstantAttribute.length() - ISSUE_INSTANT_LENGTH - 1;
+        return new AuthnRequestTemplate(assertionConsumerServiceUrl,
+                xml.substring(0, idValueStart).getBytes(StandardCharsets.UTF_8),
+                xml.substring(idValueStart + ID_PLACEHOLDER.length(), issueInstantValueStart).getBytes(StandardCharsets.UTF_8),
+                xml.substring(issueInstantValueStart + ISSUE_INSTANT_LENGTH).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getAssertionConsumerServiceUrl() {
+        return assertionConsumerServiceUrl;
+    }
+
+    public int getLength(String requestId) {
+        return prefix.length + requestId.length() + middle.length + ISSUE_INSTANT_LENGTH + suffix.length;
+    }
+
+    /**
+     * Writes the request into {@code buffer}, which must hold at least {@link #getLength(String)} bytes,
+     * and returns the number of bytes written. The request ID must be plain ASCII without XML markup,
+     * as produced by {@code SamlSystemUtils.generateId()}.
+     */
+    public int render(String requestId, long issueInstantMillis, byte[] buffer) {
+        int position = copy(prefix, buffer, 0);
+        for (int i = 0; i < requestId.length(); i++) {
+            char c = requestId.charAt(i);
+            if (c >= 0x80 || c == '"' || c == '<' || c == '&') {
+                throw new IllegalArgumentException("Request ID can not be written into template: " + requestId);
+            }
+            buffer[position++] = (byte) c;
+        }
+        position = copy(middle, buffer, position);
+        position = writeInstant(issueInstantMillis, buffer, position);
+        return copy(suffix, buffer, position);
+    }
+
+    private static int copy(byte[] source, byte[] buffer, int position) {
+        System.arraycopy(source, 0, buffer, position, source.length);
+        return position + source.length;
+    }
+
+    /**
+     * Writes {@code yyyy-MM-dd'T'HH:mm:ss.SSS'Z'} in UTC, the format OpenSAML uses for SAML dates.
+     */
+    private static int writeInstant(long millis, byte[] buffer, int position) {
+        long seconds = Math.floorDiv(millis, 1000L);
+        int millisOfSecond = (int) Math.floorMod(millis, 1000L);
+        long days = Math.floorDiv(seconds, 86400L);
+        int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+
+        // Proleptic Gregorian calendar date from days since 1970-01-01 (H. Hinnant, "civil_from_days").
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097L);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        position = writeDigits(year, 4, buffer, position);
+        buffer[position++] = '-';
+        position = writeDigits(month, 2, buffer, position);
+        buffer[position++] = '-';
+        position = writeDigits(day, 2, buffer, position);
+        buffer[position++] = 'T';
+        position = writeDigits(secondOfDay / 3600, 2, buffer, position);
+        buffer[position++] = ':';
+        position = writeDigits(secondOfDay / 60 % 60, 2, buffer, position);
+        buffer[position++] = ':';
+        position = writeDigits(secondOfDay % 60, 2, buffer, position);
+        buffer[position++] = '.';
+        position = writeDigits(millisOfSecond, 3, buffer, position);
+        buffer[position++] = 'Z';
+        return position;
+    }
+
+    private static int writeDigits(int value, int width, byte[] buffer, int position) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + width;
+    }
+}
@@ -0,0 +1,136 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.saml.MetadataCatalog;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.xml.util.XMLConstants;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the IdPs of a SAML metadata file, a single {@code EntityDescriptor} or an aggregate of nested
+ * {@code EntitiesDescriptor}s, in one streaming pass. Only what a tenant needs is kept: the HTTP-Redirect
+ * {@code SingleSignOnService}, the first signing certificate, {@code WantAuthnRequestsSigned} and the
+ * email domains from {@code shibmd:Scope}. {@code mdui:DomainHint} is only a hint for discovery and is not
+ * read. Entities without an IdP role or without one of the first two are skipped.
+ */
+public class MetadataReader {
+    public static final String SHIBMD_NS = "urn:mace:shibboleth:metadata:1.0";
+
+    private static final String ENTITY_DESCRIPTOR = "EntityDescriptor";
+    private static final String IDP_SSO_DESCRIPTOR = "IDPSSODescriptor";
+    private static final String KEY_DESCRIPTOR = "KeyDescriptor";
+    private static final String SINGLE_SIGN_ON_SERVICE = "SingleSignOnService";
+    private static final String X509_CERTIFICATE = "X509Certificate";
+    private static final String SCOPE = "Scope";
+    private static final String ENCRYPTION = "encryption";
+
+    private final XMLInputFactory inputFactory;
+
+    public MetadataReader() {
+        this.inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    /**
+     * Adds the IdPs of {@code input} to {@code builder} and returns how many were added.
+     */
+    public int read(InputStream input, MetadataCatalog.Builder builder) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+        try {
+            int added = 0;
+            Entity entity = null;
+            boolean inIdp = false;
+            boolean signingKey = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.DTD:
+                        throw new XMLStreamException("Metadata must not have a DTD", reader.getLocation());
+                    case XMLStreamConstants.START_ELEMENT:
+                        String namespace = reader.getNamespaceURI();
+                        String localName = reader.getLocalName();
+                        if (SAMLConstants.SAML20MD_NS.equals(namespace)) {
+                            if (ENTITY_DESCRIPTOR.equals(localName)) {
+                                entity = new Entity(reader.getAttributeValue(null, "entityID"));
+                            } else if (entity == null) {
+                                break;
+                            } else if (IDP_SSO_DESCRIPTOR.equals(localName)) {
+                                inIdp = true;
+                                entity.idp = true;
+                                entity.signAuthnRequest = Boolean.parseBoolean(reader.getAttributeValue(null, "WantAuthnRequestsSigned"));
+                            } else if (inIdp && KEY_DESCRIPTOR.equals(localName)) {
+                                signingKey = !ENCRYPTION.equals(reader.getAttributeValue(null, "use"));
+                            } else if (inIdp && SINGLE_SIGN_ON_SERVICE.equals(localName) && entity.samlEndpoint == null
+                                    && SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(reader.getAttributeValue(null, "Binding"))) {
+                                entity.samlEndpoint = reader.getAttributeValue(null, "Location");
+                            }
+                        } else if (entity == null || !inIdp) {
+                            break;
+                        } else if (signingKey && entity.certificate == null && X509_CERTIFICATE.equals(localName) && XMLConstants.XMLSIG_NS.equals(namespace)) {
+                            entity.certificate = removeWhitespace(reader.getElementText());
+                        } else if (SCOPE.equals(localName) && SHIBMD_NS.equals(namespace) && !"true".equals(reader.getAttributeValue(null, "regexp"))) {
+                            entity.domains.add(reader.getElementText().trim());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (!SAMLConstants.SAML20MD_NS.equals(reader.getNamespaceURI())) {
+                            break;
+                        } else if (KEY_DESCRIPTOR.equals(reader.getLocalName())) {
+                            signingKey = false;
+                        } else if (IDP_SSO_DESCRIPTOR.equals(reader.getLocalName())) {
+                            inIdp = false;
+                        } else if (ENTITY_DESCRIPTOR.equals(reader.getLocalName()) && entity != null) {
+                            if (entity.isComplete()) {
+                                builder.add(entity.entityId, entity.samlEndpoint, entity.certificate, entity.signAuthnRequest, entity.domains);
+                                added++;
+                            }
+                            entity = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return added;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String removeWhitespace(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static final class Entity {
+        final String entityId;
+        final List<String> domains = new ArrayList<>(2);
+        boolean idp;
+        boolean signAuthnRequest;
+        String samlEndpoint;
+        String certificate;
+
+        Entity(String entityId) {
+            this.entityId = entityId;
+        }
+
+        boolean isComplete() {
+            return idp && entityId != null && samlEndpoint != null && certificate != null && !certificate.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.exceptions.SamlFailure;
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.utils.FailureLog;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.xml.SAMLConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * One streaming pass over a decoded SAML Response that rejects what the DOM path would reject anyway:
+ * malformed XML, DTDs, a root other than {@code samlp:Response}, no or several assertions, too deep
+ * nesting and too many attribute values. Nothing is built while reading, so junk costs microseconds
+ * instead of a full parse and unmarshalling.
+ */
+public class SamlResponsePrefilter {
+    public static final String MAX_ATTRIBUTE_VALUES = "samlResponse.maxAttributeValues";
+    public static final int DEFAULT_MAX_ATTRIBUTE_VALUES = 10000;
+
+    private static final String RESPONSE = "Response";
+    private static final String ASSERTION = "Assertion";
+    private static final String ATTRIBUTE_VALUE = "AttributeValue";
+    static Logger logger = LoggerFactory.getLogger(SamlResponsePrefilter.class);
+    private static volatile SamlResponsePrefilter instance;
+
+    private final XMLInputFactory inputFactory;
+    private final int maxElementDepth;
+    private final int maxAttributeValues;
+
+    public SamlResponsePrefilter(int maxElementDepth, int maxAttributeValues) {
+        this.maxElementDepth = maxElementDepth;
+        this.maxAttributeValues = maxAttributeValues;
+        this.inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    public static SamlResponsePrefilter getInstance() {
+        SamlResponsePrefilter prefilter = instance;
+        if (prefilter == null) {
+            synchronized (SamlResponsePrefilter.class) {
+                prefilter = instance;
+                if (prefilter == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    prefilter = new SamlResponsePrefilter(
+                            settings.getInt(XmlParserPool.MAX_ELEMENT_DEPTH, XmlParserPool.DEFAULT_MAX_ELEMENT_DEPTH),
+                            settings.getInt(MAX_ATTRIBUTE_VALUES, DEFAULT_MAX_ATTRIBUTE_VALUES));
+                    instance = prefilter;
+                }
+            }
+        }
+        return prefilter;
+    }
+
+    public void check(byte[] xml) throws SAMLException {
+        check(xml, 0, xml.length);
+    }
+
+    /**
+     * Checks {@code length} bytes of {@code xml} from {@code offset}, the rest of the array is not read.
+     */
+    public void check(byte[] xml, int offset, int length) throws SAMLException {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(xml, offset, length));
+            int depth = 0;
+            int assertions = 0;
+            int attributeValues = 0;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.DTD:
+                        throw SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE;
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth > maxElementDepth) {
+                            throw SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE;
+                        }
+                        String namespace = reader.getNamespaceURI();
+                        String localName = reader.getLocalName();
+                        if (depth == 1 && !(RESPONSE.equals(localName) && SAMLConstants.SAML20P_NS.equals(namespace))) {
+                            throw SamlFailure.XMLOBJECT_NOT_CAST_TO_RESPONSE;
+                        } else if (depth == 2 && ASSERTION.equals(localName) && SAMLConstants.SAML20_NS.equals(namespace)) {
+                            if (++assertions > 1) {
+                                throw SamlFailure.MORE_THAN_ONE_ASSERTION_WAS_FOUND;
+                            }
+                        } else if (ATTRIBUTE_VALUE.equals(localName) && ++attributeValues > maxAttributeValues) {
+                            throw SamlFailure.RESPONSE_IS_TOO_LARGE;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (assertions == 0) {
+                throw SamlFailure.NO_ASSERTIONS_FOUND;
+            }
+        } catch (XMLStreamException e) {
+            FailureLog.getInstance().error(logger, SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE.getMessage(), e);
+            throw SamlFailure.PROBLEM_PARSING_XML_OF_THE_RESPONSE;
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // nothing was allocated outside of the reader
+            }
+        }
+    }
+}
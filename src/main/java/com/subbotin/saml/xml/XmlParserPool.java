@@ -0,0 +1,172 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.saml.CommonSettings;
+import com.subbotin.saml.saml.TenantRegistry;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Application-wide pool of hardened DOM parsers. At most {@code size} documents are parsed at the same
+ * time, a caller that finds the pool exhausted waits up to {@code borrowTimeoutMillis} (0 fails at once)
+ * and then gets an {@link XMLParserException}.
+ */
+public class XmlParserPool {
+    public static final String SIZE = "xmlParserPool.size";
+    public static final String BORROW_TIMEOUT_MILLIS = "xmlParserPool.borrowTimeoutMillis";
+    public static final String MAX_ELEMENT_DEPTH = "xmlParserPool.maxElementDepth";
+    public static final String ENTITY_EXPANSION_LIMIT = "xmlParserPool.entityExpansionLimit";
+    public static final int DEFAULT_MAX_ELEMENT_DEPTH = 64;
+    public static final int DEFAULT_ENTITY_EXPANSION_LIMIT = 100;
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 200;
+
+    static final String ENTITY_EXPANSION_LIMIT_ATTRIBUTE = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+    static final String MAX_ELEMENT_DEPTH_ATTRIBUTE = "http://www.oracle.com/xml/jaxp/properties/maxElementDepth";
+
+    static Logger logger = LoggerFactory.getLogger(XmlParserPool.class);
+    private static volatile XmlParserPool instance;
+
+    private final BasicParserPool parserPool = new BasicParserPool();
+    private final int size;
+    private final long borrowTimeoutMillis;
+    private final Semaphore permits;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    public XmlParserPool(int size, long borrowTimeoutMillis, int maxElementDepth, int entityExpansionLimit) {
+        this.size = size;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(size, true);
+
+        parserPool.setMaxPoolSize(size);
+        parserPool.setNamespaceAware(true);
+        parserPool.setIgnoreComments(true);
+        parserPool.setExpandEntityReferences(false);
+        parserPool.setXincludeAware(false);
+        parserPool.setDTDValidating(false);
+        parserPool.setBuilderFeatures(getSecureFeatures());
+        parserPool.setBuilderAttributes(getSupportedLimits(maxElementDepth, entityExpansionLimit));
+    }
+
+    public static XmlParserPool getInstance() {
+        XmlParserPool pool = instance;
+        if (pool == null) {
+            synchronized (XmlParserPool.class) {
+                pool = instance;
+                if (pool == null) {
+                    CommonSettings settings = TenantRegistry.getInstance().getCommonSettings();
+                    pool = new XmlParserPool(
+                            settings.getInt(SIZE, Runtime.getRuntime().availableProcessors() * 2),
+                            settings.getLong(BORROW_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS),
+                            settings.getInt(MAX_ELEMENT_DEPTH, DEFAULT_MAX_ELEMENT_DEPTH),
+                            settings.getInt(ENTITY_EXPANSION_LIMIT, DEFAULT_ENTITY_EXPANSION_LIMIT));
+                    instance = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    public Document parse(InputStream input) throws XMLParserException {
+        acquire();
+        try {
+            return parserPool.parse(input);
+        } finally {
+            inUse.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    public Document parse(Reader input) throws XMLParserException {
+        acquire();
+        try {
+            return parserPool.parse(input);
+        } finally {
+            inUse.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    private void acquire() throws XMLParserException {
+        boolean acquired;
+        try {
+            acquired = borrowTimeoutMillis > 0 ? permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejected.increment();
+            throw new XMLParserException("XML parser pool is exhausted, all " + size + " parsers are in use");
+        }
+        peakInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private static Map<String, Boolean> getSecureFeatures() {
+        Map<String, Boolean> features = new HashMap<>();
+        features.put(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        features.put("http://apache.org/xml/features/disallow-doctype-decl", true);
+        features.put("http://xml.org/sax/features/external-general-entities", false);
+        features.put("http://xml.org/sax/features/external-parameter-entities", false);
+        features.put("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return features;
+    }
+
+    /**
+     * The limits are JDK parser specific, an attribute the platform parser does not know is skipped
+     * instead of failing every parse.
+     */
+    private static Map<String, Object> getSupportedLimits(int maxElementDepth, int entityExpansionLimit) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        attributes.put(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        attributes.put(MAX_ELEMENT_DEPTH_ATTRIBUTE, String.valueOf(maxElementDepth));
+        attributes.put(ENTITY_EXPANSION_LIMIT_ATTRIBUTE, String.valueOf(entityExpansionLimit));
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        Map<String, Object> supported = new HashMap<>();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            try {
+                factory.setAttribute(attribute.getKey(), attribute.getValue());
+                supported.put(attribute.getKey(), attribute.getValue());
+            } catch (IllegalArgumentException e) {
+                logger.warn("XML parser {} does not support {}, the limit is not applied", factory.getClass().getName(), attribute.getKey());
+            }
+        }
+        return supported;
+    }
+}
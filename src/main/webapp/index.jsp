@@ -1,7 +1,7 @@
 <%@ page import="com.subbotin.saml.common.User" %>
-<%@ page import="com.subbotin.saml.utils.SamlSystemUtils" %>
+<%@ page import="com.subbotin.saml.common.Sessions" %>
 <%@ page import="com.subbotin.saml.common.Users" %>
-<%@ page contentType="text/html;charset=UTF-8" language="java" %>
+<%@ page contentType="text/html;charset=UTF-8" language="java" session="false" %>
 <html>
 <head>
     <meta charset="UTF-8">
@@ -9,8 +9,7 @@
 </head>
 <body>
 <%
-    SamlSystemUtils.init();
-    User user = (User) request.getSession().getAttribute(SamlSystemUtils.SESSION_USER);
+    User user = Sessions.getUser(request);
     if (user != null) {
 %>
 <h2>Добрый день, <%=user.getName()%> (<%=user.getEmail()%>). Вам доступен этот ресурс</h2>
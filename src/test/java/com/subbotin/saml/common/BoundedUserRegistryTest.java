@@ -0,0 +1,57 @@
+package com.subbotin.saml.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@Test
+public class BoundedUserRegistryTest {
+    private final AtomicLong now = new AtomicLong(1000);
+
+    public void shouldRegisterUserOnFirstLogin() {
+        UserRegistry userRegistry = new BoundedUserRegistry(10, 100, now::get);
+
+        User first = userRegistry.login("user@example.com", "First");
+        User second = userRegistry.login("user@example.com", "Second");
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(second.getName(), "Second");
+        Assert.assertEquals(userRegistry.getSize(), 1);
+        Assert.assertEquals(userRegistry.getMisses(), 1);
+        Assert.assertEquals(userRegistry.getHits(), 1);
+    }
+
+    public void shouldForgetUserWhoDidNotLogInForExpirationTime() {
+        UserRegistry userRegistry = new BoundedUserRegistry(10, 100, now::get);
+        userRegistry.login("old@example.com", "Old");
+        now.addAndGet(60);
+        userRegistry.login("recent@example.com", "Recent");
+        now.addAndGet(60);
+
+        Assert.assertNull(userRegistry.getUser("old@example.com"));
+        Assert.assertNotNull(userRegistry.getUser("recent@example.com"));
+
+        userRegistry.login("new@example.com", "New");
+
+        Assert.assertEquals(userRegistry.getSize(), 2);
+        Assert.assertEquals(userRegistry.getEvictions(), 1);
+    }
+
+    public void shouldEvictUserWithOldestLoginWhenFull() {
+        UserRegistry userRegistry = new BoundedUserRegistry(2, 1000, now::get);
+        userRegistry.login("first@example.com", "First");
+        now.incrementAndGet();
+        userRegistry.login("second@example.com", "Second");
+        now.incrementAndGet();
+        userRegistry.login("first@example.com", "First");
+        now.incrementAndGet();
+
+        userRegistry.login("third@example.com", "Third");
+
+        Assert.assertEquals(userRegistry.getSize(), 2);
+        Assert.assertNull(userRegistry.getUser("second@example.com"));
+        Assert.assertNotNull(userRegistry.getUser("first@example.com"));
+        Assert.assertNotNull(userRegistry.getUser("third@example.com"));
+    }
+}
@@ -0,0 +1,129 @@
+package com.subbotin.saml.common;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class MappedSessionUserStoreTest {
+    private static final long NOW = 1_000_000L;
+
+    @BeforeMethod
+    public void setUp() {
+        MappedSessionUserStore.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+    }
+
+    public void shouldReturnUserUntilSessionExpiresOrIsRemoved() {
+        MappedSessionUserStore store = new MappedSessionUserStore(64, 4);
+        store.put("first", new User("first@example.com", "\u0418\u043c\u044f"), NOW + 100, NOW);
+        store.put("second", new User("second@example.com", "Second"), NOW + 100, NOW);
+
+        User user = store.get("first", NOW + 50);
+        Assert.assertEquals(user.getEmail(), "first@example.com");
+        Assert.assertEquals(user.getName(), "\u0418\u043c\u044f");
+        Assert.assertNull(store.get("first", NOW + 100));
+        Assert.assertNull(store.get("unknown", NOW));
+
+        store.remove("second");
+
+        Assert.assertNull(store.get("second", NOW));
+    }
+
+    public void shouldRefuseNewSessionWhileBucketIsFullOfLiveSessions() {
+        MappedSessionUserStore store = new MappedSessionUserStore(MappedSessionUserStore.BUCKET_SIZE, 1);
+        for (int i = 0; i < MappedSessionUserStore.BUCKET_SIZE; i++) {
+            Assert.assertTrue(store.put("session" + i, new User(i + "@example.com", "User"), NOW + 100 + i, NOW));
+        }
+
+        Assert.assertFalse(store.put("new", new User("new@example.com", "New"), NOW + 1000, NOW));
+
+        Assert.assertEquals(store.getRejections(), 1);
+        for (int i = 0; i < MappedSessionUserStore.BUCKET_SIZE; i++) {
+            Assert.assertEquals(store.get("session" + i, NOW).getEmail(), i + "@example.com");
+        }
+        Assert.assertNull(store.get("new", NOW));
+        Assert.assertTrue(store.put("new", new User("new@example.com", "New"), NOW + 1000, NOW + 100));
+        Assert.assertNull(store.get("session0", NOW + 100));
+    }
+
+    public void shouldOverflowFullBucketIntoNextBuckets() {
+        MappedSessionUserStore store = new MappedSessionUserStore(2 * MappedSessionUserStore.BUCKET_SIZE, 1);
+        for (int i = 0; i < 2 * MappedSessionUserStore.BUCKET_SIZE; i++) {
+            Assert.assertTrue(store.put("session" + i, new User(i + "@example.com", "User"), NOW + 100, NOW));
+        }
+
+        Assert.assertFalse(store.put("new", new User("new@example.com", "New"), NOW + 100, NOW));
+        for (int i = 0; i < 2 * MappedSessionUserStore.BUCKET_SIZE; i++) {
+            Assert.assertEquals(store.get("session" + i, NOW).getEmail(), i + "@example.com");
+        }
+        store.remove("session0");
+        Assert.assertNull(store.get("session0", NOW));
+        Assert.assertTrue(store.put("new", new User("new@example.com", "New"), NOW + 100, NOW));
+    }
+
+    public void shouldHoldCapacityWithoutRefusals() {
+        MappedSessionUserStore store = new MappedSessionUserStore(MappedSessionUserStore.DEFAULT_SLOTS, 1);
+        for (int i = 0; i < store.getCapacity(); i++) {
+            store.put("session" + i, new User(i + "@example.com", "User"), NOW + 100, NOW);
+        }
+
+        Assert.assertEquals(store.getCapacity(), MappedSessionUserStore.DEFAULT_SLOTS / 2);
+        Assert.assertEquals(store.getRejections(), 0);
+    }
+
+    public void shouldCutNameThatDoesNotFitIntoSlot() {
+        MappedSessionUserStore store = new MappedSessionUserStore(64, 4);
+        store.put("session", new User("user@example.com", StringUtils.repeat('\u044f', MappedSessionUserStore.MAX_DATA)), NOW + 100, NOW);
+
+        User user = store.get("session", NOW);
+
+        Assert.assertEquals(user.getName(), StringUtils.repeat('\u044f', (MappedSessionUserStore.MAX_DATA - "user@example.com".length()) / 2));
+    }
+
+    public void shouldKeepSessionsOfFileAfterRestart() throws IOException {
+        Path file = Files.createTempFile("sessions", ".bin");
+        try {
+            MappedSessionUserStore store = MappedSessionUserStore.open(file, 64, 4);
+            try {
+                store.put("session", new User("user@example.com", "User"), System.currentTimeMillis() + 60000);
+            } finally {
+                store.close();
+            }
+            MappedSessionUserStore reopened = MappedSessionUserStore.open(file, 64, 4);
+            try {
+                Assert.assertEquals(reopened.get("session").getName(), "User");
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void shouldRefuseToMapFileTwiceInOneJvm() throws IOException {
+        Path file = Files.createTempFile("sessions", ".bin");
+        try {
+            MappedSessionUserStore store = MappedSessionUserStore.open(file, 64, 4);
+            try {
+                MappedSessionUserStore.open(file, 64, 4);
+                Assert.fail("File was mapped twice");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("already mapped"));
+            } finally {
+                store.close();
+            }
+            MappedSessionUserStore.open(file, 64, 4).close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
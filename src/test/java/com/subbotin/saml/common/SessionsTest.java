@@ -0,0 +1,167 @@
+package com.subbotin.saml.common;
+
+import com.subbotin.saml.exceptions.SessionTableIsFullException;
+import com.subbotin.saml.security.SessionTokenCodec;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@Test
+public class SessionsTest {
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private SessionUserStore previousStore;
+    private SessionTokenCodec previousCodec;
+    private Boolean previousTokenMode;
+    private long previousTtlMillis;
+    private boolean previousSecureCookie;
+    private SessionUserStore store;
+
+    @BeforeMethod
+    public void setUp() {
+        previousStore = Sessions.sessionUserStore;
+        previousCodec = Sessions.sessionTokenCodec;
+        previousTokenMode = Sessions.tokenMode;
+        previousTtlMillis = Sessions.ttlMillis;
+        previousSecureCookie = Sessions.secureCookie;
+        store = new MappedSessionUserStore(64, 4);
+        Sessions.sessionUserStore = store;
+        Sessions.tokenMode = false;
+        Sessions.ttlMillis = TTL_MILLIS;
+        Sessions.secureCookie = true;
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        Sessions.sessionUserStore = previousStore;
+        Sessions.sessionTokenCodec = previousCodec;
+        Sessions.tokenMode = previousTokenMode;
+        Sessions.ttlMillis = previousTtlMillis;
+        Sessions.secureCookie = previousSecureCookie;
+    }
+
+    public void shouldSetSessionCookieFlags() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        doReturn("/saml").when(request).getContextPath();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        Sessions.login(request, response, new User("user@example.com", "User"));
+
+        Cookie cookie = addedCookie(response);
+        Assert.assertEquals(cookie.getName(), Sessions.COOKIE_NAME);
+        Assert.assertEquals(cookie.getPath(), "/saml");
+        Assert.assertEquals(cookie.getMaxAge(), (int) TimeUnit.MILLISECONDS.toSeconds(TTL_MILLIS));
+        Assert.assertTrue(cookie.isHttpOnly());
+        Assert.assertTrue(cookie.getSecure());
+        Assert.assertEquals(store.get(cookie.getValue()).getEmail(), "user@example.com");
+    }
+
+    public void shouldLeaveCookieNotSecureWhenItIsTurnedOff() {
+        Sessions.secureCookie = false;
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        Sessions.login(mock(HttpServletRequest.class), response, new User("user@example.com", "User"));
+
+        Cookie cookie = addedCookie(response);
+        Assert.assertFalse(cookie.getSecure());
+        Assert.assertEquals(cookie.getPath(), "/");
+    }
+
+    public void shouldEndPreviousSessionOnLogin() {
+        store.put("previous", new User("user@example.com", "User"), System.currentTimeMillis() + TTL_MILLIS);
+        HttpServletRequest request = requestWithCookie("previous");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        Sessions.login(request, response, new User("user@example.com", "User"));
+
+        Assert.assertNull(store.get("previous"));
+        Assert.assertNotEquals(addedCookie(response).getValue(), "previous");
+    }
+
+    public void shouldClearStoreAndCookieOnLogout() {
+        store.put("session", new User("user@example.com", "User"), System.currentTimeMillis() + TTL_MILLIS);
+        HttpServletRequest request = requestWithCookie("session");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        Sessions.logout(request, response);
+
+        Assert.assertNull(store.get("session"));
+        verify(request).removeAttribute(Sessions.USER_ATTRIBUTE);
+        Cookie cookie = addedCookie(response);
+        Assert.assertEquals(cookie.getName(), Sessions.COOKIE_NAME);
+        Assert.assertEquals(cookie.getValue(), "");
+        Assert.assertEquals(cookie.getMaxAge(), 0);
+    }
+
+    @Test(expectedExceptions = SessionTableIsFullException.class)
+    public void shouldThrowWhenSessionTableIsFull() {
+        SessionUserStore fullStore = mock(SessionUserStore.class);
+        doReturn(false).when(fullStore).put(anyString(), any(User.class), anyLong());
+        Sessions.sessionUserStore = fullStore;
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        try {
+            Sessions.login(mock(HttpServletRequest.class), response, new User("user@example.com", "User"));
+        } finally {
+            verify(response, never()).addCookie(any(Cookie.class));
+        }
+    }
+
+    public void shouldReturnUserOfTokenSession() {
+        Sessions.tokenMode = true;
+        Sessions.sessionTokenCodec = new SessionTokenCodec(Collections.singletonMap(1, new SecretKeySpec(new byte[16], "AES")), 1);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        Sessions.login(mock(HttpServletRequest.class), response, new User("user@example.com", "\u0418\u043c\u044f"));
+
+        User user = Sessions.getUser(requestWithCookie(addedCookie(response).getValue()));
+        Assert.assertEquals(user.getEmail(), "user@example.com");
+        Assert.assertEquals(user.getName(), "\u0418\u043c\u044f");
+        Assert.assertNull(store.get(addedCookie(response).getValue()));
+    }
+
+    public void shouldResolveUserOncePerRequest() {
+        SessionUserStore countingStore = mock(SessionUserStore.class);
+        User user = new User("user@example.com", "User");
+        doReturn(user).when(countingStore).get("session");
+        Sessions.sessionUserStore = countingStore;
+        HttpServletRequest request = requestWithCookie("session");
+
+        Assert.assertSame(Sessions.getUser(request), user);
+        verify(request).setAttribute(Sessions.USER_ATTRIBUTE, user);
+        doReturn(user).when(request).getAttribute(Sessions.USER_ATTRIBUTE);
+
+        Assert.assertSame(Sessions.getUser(request), user);
+        verify(countingStore, times(1)).get("session");
+    }
+
+    private static HttpServletRequest requestWithCookie(String value) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        doReturn(new Cookie[]{new Cookie("other", "value"), new Cookie(Sessions.COOKIE_NAME, value)}).when(request).getCookies();
+        return request;
+    }
+
+    private static Cookie addedCookie(HttpServletResponse response) {
+        ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+        verify(response).addCookie(cookie.capture());
+        return cookie.getValue();
+    }
+}
@@ -0,0 +1,118 @@
+package com.subbotin.saml.common;
+
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class UserPersistenceTest {
+    private static final long EXPIRE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        UserPersistence.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+        UserJournal.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+        directory = Files.createTempDirectory("users");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public void shouldRecoverUsersFromJournalWithoutSnapshot() throws IOException {
+        BoundedUserRegistry registry = newRegistry();
+        UserPersistence persistence = UserPersistence.open(directory, registry, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE);
+        try {
+            registry.login("first@example.com", "\u0418\u043c\u044f");
+            registry.login("second@example.com", "Second");
+            persistence.flush();
+
+            BoundedUserRegistry recovered = newRegistry();
+            UserPersistence.recover(directory, recovered);
+
+            Assert.assertEquals(recovered.getSize(), 2);
+            Assert.assertEquals(recovered.getUser("first@example.com").getName(), "\u0418\u043c\u044f");
+            Assert.assertFalse(Files.exists(directory.resolve(UserPersistence.SNAPSHOT)));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    public void shouldRecoverSnapshotAndJournalTail() throws IOException {
+        BoundedUserRegistry registry = newRegistry();
+        UserPersistence persistence = UserPersistence.open(directory, registry, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE);
+        try {
+            registry.login("first@example.com", "First");
+            persistence.snapshot();
+            registry.login("first@example.com", "Renamed");
+            registry.login("second@example.com", "Second");
+            persistence.flush();
+
+            BoundedUserRegistry recovered = newRegistry();
+            UserPersistence.recover(directory, recovered);
+
+            Assert.assertEquals(recovered.getSize(), 2);
+            Assert.assertEquals(recovered.getUser("first@example.com").getName(), "Renamed");
+            Assert.assertFalse(Files.exists(UserJournal.getPath(directory, 0)));
+        } finally {
+            persistence.close();
+        }
+
+        BoundedUserRegistry restarted = newRegistry();
+        UserPersistence reopened = UserPersistence.open(directory, restarted, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE);
+        reopened.close();
+        Assert.assertEquals(restarted.getSize(), 2);
+    }
+
+    public void shouldSkipTornRecordAndExpiredUsers() throws IOException {
+        BoundedUserRegistry registry = newRegistry();
+        UserPersistence persistence = UserPersistence.open(directory, registry, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE);
+        try {
+            registry.login("old@example.com", "Old");
+            now.addAndGet(EXPIRE_AFTER_MILLIS / 2);
+            registry.login("first@example.com", "First");
+            registry.login("torn@example.com", "Torn");
+            persistence.flush();
+            Path journal = UserJournal.getPath(directory, 0);
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+            now.addAndGet(EXPIRE_AFTER_MILLIS / 2);
+
+            BoundedUserRegistry recovered = newRegistry();
+            UserPersistence.recover(directory, recovered);
+
+            Assert.assertEquals(recovered.getSize(), 1);
+            Assert.assertNotNull(recovered.getUser("first@example.com"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    private BoundedUserRegistry newRegistry() {
+        return new BoundedUserRegistry(100, EXPIRE_AFTER_MILLIS, now::get);
+    }
+}
@@ -0,0 +1,62 @@
+package com.subbotin.saml.metrics;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class PrometheusExporterTest {
+    private Metrics metrics;
+
+    @BeforeMethod
+    public void setUp() {
+        metrics = new Metrics();
+    }
+
+    public void shouldWriteStageHistogramsByTenant() throws IOException {
+        metrics.record(Stage.ACS_PARSE, "example.com", TimeUnit.MICROSECONDS.toNanos(40));
+        metrics.record(Stage.ACS_PARSE, "example.com", TimeUnit.MILLISECONDS.toNanos(3));
+
+        String output = export();
+
+        String labels = "pipeline=\"acs\",stage=\"parse\",tenant=\"example.com\"";
+        Assert.assertTrue(output.contains("# TYPE saml_stage_duration_seconds histogram\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_bucket{" + labels + ",le=\"2.5E-5\"} 0\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_bucket{" + labels + ",le=\"5.0E-5\"} 1\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_bucket{" + labels + ",le=\"0.005\"} 2\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_sum{" + labels + "} 0.00304\n"));
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_count{" + labels + "} 2\n"));
+    }
+
+    public void shouldRecordCompletedStagesAndFailureReason() throws IOException {
+        StageTimer timer = metrics.startTimer();
+        timer.stage(Stage.ACS_DECODE);
+        timer.fail(Stage.ACS, "Say \"no\"", Metrics.UNKNOWN_TENANT);
+
+        String output = export();
+
+        Assert.assertTrue(output.contains("saml_stage_duration_seconds_count{pipeline=\"acs\",stage=\"decode\",tenant=\"unknown\"} 1\n"));
+        Assert.assertFalse(output.contains("stage=\"prefilter\""));
+        Assert.assertTrue(output.contains("saml_failures_total{pipeline=\"acs\",reason=\"Say \\\"no\\\"\"} 1\n"));
+    }
+
+    public void shouldCapFailureReasons() {
+        for (int i = 0; i < 100; i++) {
+            metrics.countFailure(Stage.ACS, "reason " + i);
+        }
+
+        Assert.assertEquals(metrics.getFailures().get(Stage.ACS).size(), 65);
+        Assert.assertEquals(metrics.getFailures().get(Stage.ACS).get(Metrics.OTHER_REASON).longValue(), 36);
+    }
+
+    private String export() throws IOException {
+        StringWriter writer = new StringWriter();
+        new PrometheusExporter(metrics).write(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.subbotin.saml.saml;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class DomainResolverTest {
+    private DomainResolver<String> domainResolver;
+
+    @BeforeMethod
+    public void setUp() {
+        DomainResolver.Builder<String> builder = new DomainResolver.Builder<>();
+        builder.putIfAbsent("Example.com", "example");
+        builder.putIfAbsent("eu.example.com", "eu");
+        builder.putIfAbsent("realtimeboard.com", "rtb");
+        domainResolver = builder.build();
+    }
+
+    public void shouldMatchEmailAndDomainIgnoringCase() {
+        Assert.assertEquals(domainResolver.get("user@example.com"), "example");
+        Assert.assertEquals(domainResolver.get("User@EXAMPLE.Com"), "example");
+        Assert.assertEquals(domainResolver.get("example.com"), "example");
+        Assert.assertEquals(domainResolver.getDomain("user@EXAMPLE.com"), "example.com");
+    }
+
+    public void shouldMatchLongestRegisteredSuffix() {
+        Assert.assertEquals(domainResolver.get("user@mail.example.com"), "example");
+        Assert.assertEquals(domainResolver.get("user@EU.example.com"), "eu");
+        Assert.assertEquals(domainResolver.get("user@mail.eu.example.com"), "eu");
+        Assert.assertEquals(domainResolver.getDomain("user@mail.eu.example.com"), "eu.example.com");
+    }
+
+    public void shouldMatchOnlyWholeLabels() {
+        Assert.assertNull(domainResolver.get("user@notexample.com"));
+        Assert.assertNull(domainResolver.get("user@example.com.evil.org"));
+        Assert.assertNull(domainResolver.get("example.com@evil.org"));
+        Assert.assertNull(domainResolver.get("user@com"));
+        Assert.assertNull(domainResolver.get("user@"));
+    }
+
+    public void shouldKeepFirstValueOfDomain() {
+        DomainResolver.Builder<String> builder = new DomainResolver.Builder<>();
+
+        Assert.assertTrue(builder.putIfAbsent("example.com", "first"));
+        Assert.assertFalse(builder.putIfAbsent("EXAMPLE.COM ", "second"));
+        Assert.assertFalse(builder.putIfAbsent(" ", "blank"));
+
+        DomainResolver<String> resolver = builder.build();
+        Assert.assertEquals(resolver.get("example.com"), "first");
+        Assert.assertEquals(resolver.size(), 1);
+    }
+
+    public void shouldFindEveryDomainOfLargeIndex() {
+        DomainResolver.Builder<Integer> builder = new DomainResolver.Builder<>();
+        for (int i = 0; i < 100000; i++) {
+            builder.putIfAbsent("tenant" + i + ".example.com", i);
+        }
+        DomainResolver<Integer> resolver = builder.build();
+
+        for (int i = 0; i < 100000; i += 997) {
+            Assert.assertEquals(resolver.get("user@mail.Tenant" + i + ".example.com"), Integer.valueOf(i));
+        }
+        Assert.assertNull(resolver.get("user@tenant100000.example.com"));
+        Assert.assertEquals(resolver.size(), 100000);
+    }
+}
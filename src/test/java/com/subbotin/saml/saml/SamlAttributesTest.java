@@ -0,0 +1,70 @@
+package com.subbotin.saml.saml;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.xml.XMLObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Test
+public class SamlAttributesTest {
+
+    public void shouldExtractOnlyRequestedAttribute() {
+        Attribute firstName = attribute("FirstName", "John");
+        Attribute groups = attribute("Groups", "admins", "users");
+        Assertion assertion = assertion(firstName, groups);
+
+        SamlAttributes samlAttributes = new SamlAttributes(assertion, Collections.emptySet());
+
+        Assert.assertEquals(samlAttributes.getFirstValue("FirstName"), "John");
+        Assert.assertEquals(samlAttributes.get("FirstName"), Collections.singletonList("John"));
+        Assert.assertTrue(samlAttributes.containsKey("Groups"));
+        Assert.assertNull(samlAttributes.get("LastName"));
+        verify(groups, never()).getAttributeValues();
+
+        Assert.assertEquals(samlAttributes.get("Groups"), Arrays.asList("admins", "users"));
+        Assert.assertEquals(samlAttributes.size(), 2);
+    }
+
+    public void shouldHideAttributesOutsideOfAllowList() {
+        Assertion assertion = assertion(attribute("FirstName", "John"), attribute("Groups", "admins"));
+
+        SamlAttributes samlAttributes = new SamlAttributes(assertion, Collections.singleton("FirstName"));
+
+        Assert.assertNull(samlAttributes.get("Groups"));
+        Assert.assertEquals(samlAttributes, Collections.singletonMap("FirstName", Collections.singletonList("John")));
+    }
+
+    private static Assertion assertion(Attribute... attributes) {
+        AttributeStatement attributeStatement = mock(AttributeStatement.class);
+        doReturn(Arrays.asList(attributes)).when(attributeStatement).getAttributes();
+        Assertion assertion = mock(Assertion.class);
+        doReturn(Collections.singletonList(attributeStatement)).when(assertion).getAttributeStatements();
+        return assertion;
+    }
+
+    private static Attribute attribute(String name, String... values) {
+        Attribute attribute = mock(Attribute.class);
+        doReturn(name).when(attribute).getName();
+        XMLObject[] xmlObjects = new XMLObject[values.length];
+        for (int i = 0; i < values.length; i++) {
+            xmlObjects[i] = mock(XMLObject.class, RETURNS_DEEP_STUBS);
+            when(xmlObjects[i].getDOM().getTextContent()).thenReturn(values[i]);
+        }
+        List<XMLObject> attributeValues = Arrays.asList(xmlObjects);
+        doReturn(attributeValues).when(attribute).getAttributeValues();
+        return attribute;
+    }
+}
@@ -0,0 +1,242 @@
+package com.subbotin.saml.saml;
+
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.NameIDType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues signed SAML Responses the way an IdP does, for the tests, the benchmarks and the local mock IdP,
+ * so it can create a throwaway self-signed key pair.
+ */
+public class SamlResponseGenerator {
+    public static final String ISSUER_NAME = "urn:sso-saml-example:synthetic-idp";
+    private static final int VALIDITY_IN_MINUTES = 5;
+
+    private final BasicCredential credential;
+    private final X509Certificate certificate;
+    private final String signatureAlgorithm;
+    private final String digestAlgorithm;
+
+    public SamlResponseGenerator(PrivateKey privateKey, X509Certificate certificate, String signatureAlgorithm, String digestAlgorithm) {
+        this.credential = new BasicCredential();
+        this.credential.setPrivateKey(privateKey);
+        this.credential.setPublicKey(certificate.getPublicKey());
+        this.certificate = certificate;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public static SamlResponseGenerator createSelfSigned() throws GeneralSecurityException {
+        return createSelfSigned("RSA", 2048, "SHA256withRSA", SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SignatureConstants.ALGO_ID_DIGEST_SHA256);
+    }
+
+    public static SamlResponseGenerator createSelfSigned(String keyAlgorithm, int keySize, String jcaSignatureAlgorithm,
+                                                         String signatureAlgorithm, String digestAlgorithm) throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm);
+        keyPairGenerator.initialize(keySize);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Name name = new X500Name("CN=localhost");
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now),
+                new Date(now - TimeUnit.DAYS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(3650)), name, keyPair.getPublic());
+        try {
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(
+                    certificateBuilder.build(new JcaContentSignerBuilder(jcaSignatureAlgorithm).build(keyPair.getPrivate())));
+            return new SamlResponseGenerator(keyPair.getPrivate(), certificate, signatureAlgorithm, digestAlgorithm);
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException("Problem signing self-signed certificate", e);
+        }
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Returns the certificate the way it is written in {@code x509Certificate} of the tenant settings.
+     */
+    public String getCertificateBase64() throws GeneralSecurityException {
+        return Base64.encodeBase64String(certificate.getEncoded());
+    }
+
+    public String generate(String destination, String email, Map<String, List<String>> attributes, DateTime issueInstant,
+                           boolean signResponse) throws SAMLException {
+        return generate(destination, email, attributes, issueInstant, issueInstant.plusMinutes(VALIDITY_IN_MINUTES), signResponse);
+    }
+
+    public String generate(String destination, String email, Map<String, List<String>> attributes, DateTime issueInstant,
+                           DateTime notOnOrAfter, boolean signResponse) throws SAMLException {
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID(SamlSystemUtils.generateId());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(issueInstant);
+        response.setDestination(destination);
+        response.setIssuer(buildIssuer());
+
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS_URI);
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+
+        Assertion assertion = buildAssertion(destination, email, attributes, issueInstant, notOnOrAfter);
+        response.getAssertions().add(assertion);
+
+        Signature assertionSignature = buildSignature();
+        assertion.setSignature(assertionSignature);
+        setDigestAlgorithm(assertionSignature);
+        Signature responseSignature = null;
+        if (signResponse) {
+            responseSignature = buildSignature();
+            response.setSignature(responseSignature);
+            setDigestAlgorithm(responseSignature);
+        }
+
+        try {
+            Element dom = Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+            Signer.signObject(assertionSignature);
+            if (responseSignature != null) {
+                Signer.signObject(responseSignature);
+            }
+            return XMLHelper.nodeToString(dom);
+        } catch (MarshallingException | SignatureException e) {
+            throw new SAMLException("Problem signing generated response", e);
+        }
+    }
+
+    public String generateBase64(String destination, String email, Map<String, List<String>> attributes, DateTime issueInstant,
+                                 boolean signResponse) throws SAMLException {
+        return Base64.encodeBase64String(generate(destination, email, attributes, issueInstant, signResponse).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Assertion buildAssertion(String destination, String email, Map<String, List<String>> attributes, DateTime issueInstant,
+                                     DateTime notOnOrAfter) {
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(SamlSystemUtils.generateId());
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(issueInstant);
+        assertion.setIssuer(buildIssuer());
+
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setFormat(NameIDType.EMAIL);
+        nameID.setValue(email);
+        SubjectConfirmationData subjectConfirmationData = build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        subjectConfirmationData.setRecipient(destination);
+        subjectConfirmationData.setNotOnOrAfter(notOnOrAfter);
+        SubjectConfirmation subjectConfirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        subjectConfirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        subjectConfirmation.setSubjectConfirmationData(subjectConfirmationData);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID);
+        subject.getSubjectConfirmations().add(subjectConfirmation);
+        assertion.setSubject(subject);
+
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(issueInstant);
+        conditions.setNotOnOrAfter(notOnOrAfter);
+        assertion.setConditions(conditions);
+
+        AuthnContextClassRef authnContextClassRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        authnContextClassRef.setAuthnContextClassRef(AuthnContext.PPT_AUTHN_CTX);
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContext.setAuthnContextClassRef(authnContextClassRef);
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(issueInstant);
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        if (!attributes.isEmpty()) {
+            AttributeStatement attributeStatement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+            for (Map.Entry<String, List<String>> entry : attributes.entrySet()) {
+                Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+                attribute.setName(entry.getKey());
+                attribute.setNameFormat(Attribute.BASIC);
+                for (String value : entry.getValue()) {
+                    XSString attributeValue = (XSString) Configuration.getBuilderFactory().getBuilder(XSString.TYPE_NAME)
+                            .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+                    attributeValue.setValue(value);
+                    attribute.getAttributeValues().add(attributeValue);
+                }
+                attributeStatement.getAttributes().add(attribute);
+            }
+            assertion.getAttributeStatements().add(attributeStatement);
+        }
+        return assertion;
+    }
+
+    private Issuer buildIssuer() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(ISSUER_NAME);
+        return issuer;
+    }
+
+    private Signature buildSignature() {
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        signature.setSignatureAlgorithm(signatureAlgorithm);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        return signature;
+    }
+
+    private void setDigestAlgorithm(Signature signature) {
+        for (Object contentReference : signature.getContentReferences()) {
+            ((SAMLObjectContentReference) contentReference).setDigestAlgorithm(digestAlgorithm);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName qName) {
+        return (T) Configuration.getBuilderFactory().getBuilder(qName).buildObject(qName);
+    }
+}
@@ -0,0 +1,177 @@
+package com.subbotin.saml.saml;
+
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class TenantRegistryTest {
+    private Path directory;
+    private TenantRegistry tenantRegistry;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        TenantRegistry.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+        directory = Files.createTempDirectory("tenants");
+        writeFile(TenantRegistry.COMMON_PROPERTIES, "acsUrl=https://realtimeboard.com/sso/acs");
+        writeFile("example.com.properties", "samlEndpoint=https://idp.example.com\nx509Certificate=certificate");
+        tenantRegistry = new TenantRegistry(directory);
+        tenantRegistry.reload();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tenantRegistry.stopWatching();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public void shouldLoadTenantsAndCommonSettings() {
+        SamlSettings samlSettings = tenantRegistry.getSamlSettings("example.com");
+
+        Assert.assertNotNull(samlSettings);
+        Assert.assertEquals(samlSettings.getSamlEndpoint(), "https://idp.example.com");
+        Assert.assertEquals(samlSettings.getX509Certificate(), "certificate");
+        Assert.assertFalse(samlSettings.isSignAuthnRequest());
+        Assert.assertEquals(tenantRegistry.getCommonSettings().getAcsUrl(), "https://realtimeboard.com/sso/acs");
+        Assert.assertNull(tenantRegistry.getSamlSettings("common"));
+        Assert.assertNull(tenantRegistry.getSamlSettings("unknown.com"));
+    }
+
+    public void shouldResolveEmailsAndSubdomains() {
+        Assert.assertNotNull(tenantRegistry.getSamlSettings("User@Mail.EXAMPLE.com"));
+        Assert.assertEquals(tenantRegistry.getTenantDomain("user@mail.example.com"), "example.com");
+        Assert.assertNull(tenantRegistry.getSamlSettings("user@notexample.com"));
+    }
+
+    public void shouldReadAuthnRequestSigningFlag() throws IOException {
+        writeFile("signed.com.properties", "samlEndpoint=https://idp.signed.com\nx509Certificate=certificate\nsignAuthnRequest= true");
+
+        tenantRegistry.reload();
+
+        Assert.assertTrue(tenantRegistry.getSamlSettings("signed.com").isSignAuthnRequest());
+    }
+
+    public void shouldTakeLimitsNotSetByTenantFromCommonSettings() throws IOException {
+        writeFile(TenantRegistry.COMMON_PROPERTIES, "rateLimit.perSecond=10\nrateLimit.burst=20\nmaxConcurrentVerifications=4");
+        writeFile("limited.com.properties", "samlEndpoint=https://idp.limited.com\nx509Certificate=certificate\nrateLimit.perSecond=100");
+
+        tenantRegistry.reload();
+
+        Assert.assertEquals(tenantRegistry.getLimits("user@example.com"), new TenantLimits(10, 20, 4));
+        Assert.assertEquals(tenantRegistry.getLimits("user@limited.com"), new TenantLimits(100, 100, 4));
+        Assert.assertEquals(tenantRegistry.getLimits("unknown.com"), new TenantLimits(10, 20, 4));
+    }
+
+    public void shouldSkipTenantWithoutCertificate() throws IOException {
+        writeFile("broken.com.properties", "samlEndpoint=https://idp.broken.com");
+
+        tenantRegistry.reload();
+
+        Assert.assertNull(tenantRegistry.getSamlSettings("broken.com"));
+        Assert.assertNotNull(tenantRegistry.getSamlSettings("example.com"));
+    }
+
+    public void shouldKeepPreviousSettingsOfHalfWrittenFile() throws IOException {
+        writeFile("example.com.properties", "samlEndpoint=https://idp2.example.com");
+
+        tenantRegistry.reload();
+
+        Assert.assertEquals(tenantRegistry.getSamlSettings("example.com").getSamlEndpoint(), "https://idp.example.com");
+    }
+
+    public void shouldServeIdpsOfMetadataBehindPropertiesTenants() throws IOException {
+        writeFile(TenantRegistry.COMMON_PROPERTIES, "acsUrl=https://realtimeboard.com/sso/acs\nmetadata.files=federation.xml");
+        writeFile("federation.xml", "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\""
+                + " xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\">"
+                + idp("https://idp.example.com", "example.com") + idp("https://idp.example.org", "example.org") + "</md:EntitiesDescriptor>");
+
+        tenantRegistry.reload();
+
+        Assert.assertEquals(tenantRegistry.getSamlSettings("example.com").getX509Certificate(), "certificate");
+        Assert.assertEquals(tenantRegistry.getSamlSettings("example.org").getSamlEndpoint(), "https://idp.example.org/sso");
+        Assert.assertNotNull(tenantRegistry.getSamlSettingsByEntityId("https://idp.example.com"));
+        Assert.assertEquals(tenantRegistry.getTenants().size(), 1);
+    }
+
+    public void shouldTrustOnlyIssuerWhoseScopeHasDomainOfUser() throws IOException {
+        writeFile(TenantRegistry.COMMON_PROPERTIES, "acsUrl=https://realtimeboard.com/sso/acs\nmetadata.files=federation.xml");
+        writeFile("federation.xml", "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\""
+                + " xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\">"
+                + idp("https://idp.victim.org", "victim.org") + idp("https://idp.attacker.org", "attacker.org")
+                + idp("https://idp.shared.org", "shared.org") + idp("https://idp.other.org", "shared.org") + "</md:EntitiesDescriptor>");
+
+        tenantRegistry.reload();
+
+        Assert.assertNotNull(tenantRegistry.getTrustedSamlSettings("https://idp.victim.org", "user@victim.org"));
+        Assert.assertNull(tenantRegistry.getTrustedSamlSettings("https://idp.attacker.org", "user@victim.org"));
+        Assert.assertNull(tenantRegistry.getTrustedSamlSettings(null, "user@victim.org"));
+        Assert.assertNull(tenantRegistry.getTrustedSamlSettings("https://idp.shared.org", "user@shared.org"));
+        Assert.assertNull(tenantRegistry.getTrustedSamlSettings("https://idp.other.org", "user@shared.org"));
+        Assert.assertEquals(tenantRegistry.getTrustedSamlSettings("https://idp.attacker.org", "user@example.com").getX509Certificate(), "certificate");
+    }
+
+    public void shouldNotifyListenersOnReload() throws IOException {
+        AtomicReference<Collection<SamlSettings>> reloaded = new AtomicReference<>();
+        tenantRegistry.addListener(reloaded::set);
+        writeFile("realtimeboard.com.properties", "samlEndpoint=https://idp.realtimeboard.com\nx509Certificate=other");
+
+        tenantRegistry.reload();
+
+        Assert.assertEquals(reloaded.get().size(), 2);
+    }
+
+    public void shouldReloadWhenFilesChange() throws IOException, InterruptedException {
+        tenantRegistry.startWatching();
+
+        writeFile("realtimeboard.com.properties", "samlEndpoint=https://idp.realtimeboard.com\nx509Certificate=other");
+        Assert.assertTrue(waitFor(() -> tenantRegistry.getSamlSettings("realtimeboard.com") != null));
+
+        writeFile("example.com.properties", "samlEndpoint=https://idp2.example.com\nx509Certificate=rotated");
+        Assert.assertTrue(waitFor(() -> "rotated".equals(tenantRegistry.getSamlSettings("example.com").getX509Certificate())));
+
+        Files.delete(directory.resolve("example.com.properties"));
+        Assert.assertTrue(waitFor(() -> tenantRegistry.getSamlSettings("example.com") == null));
+    }
+
+    private static String idp(String entityId, String domain) {
+        return "<md:EntityDescriptor entityID=\"" + entityId + "\"><md:IDPSSODescriptor><md:Extensions><shibmd:Scope>" + domain
+                + "</shibmd:Scope></md:Extensions><md:KeyDescriptor><ds:KeyInfo><ds:X509Data><ds:X509Certificate>metadata"
+                + "</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor><md:SingleSignOnService"
+                + " Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"" + entityId + "/sso\"/>"
+                + "</md:IDPSSODescriptor></md:EntityDescriptor>";
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Files.write(directory.resolve(name), content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private boolean waitFor(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.get()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.SamlResponseGenerator;
+import com.subbotin.saml.services.SamlSystemServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.validation.ValidationException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import java.security.PublicKey;
+import java.util.Collections;
+
+@Test
+public class PooledSignatureValidatorTest {
+    private static final String ACS_URL = "https://realtimeboard.com/sso/acs";
+    private static final String EMAIL = "user@example.com";
+
+    private SamlResponseGenerator rsaSha256;
+
+    @BeforeClass
+    public void setUpClass() throws Exception {
+        SamlSystemUtils.init();
+        rsaSha256 = SamlResponseGenerator.createSelfSigned();
+    }
+
+    public void shouldVerifyResponseAndAssertionSignatures() throws Exception {
+        Response response = generate(rsaSha256, true);
+        PooledSignatureValidator validator = new PooledSignatureValidator(publicKey(rsaSha256));
+        long fallbacks = PooledSignatureValidator.getFallbacks();
+
+        validator.validate(response.getSignature());
+        validator.validate(response.getAssertions().get(0).getSignature());
+
+        Assert.assertEquals(PooledSignatureValidator.getFallbacks(), fallbacks);
+    }
+
+    public void shouldVerifyRsaSha1AndEcdsaSignatures() throws Exception {
+        SamlResponseGenerator rsaSha1 = SamlResponseGenerator.createSelfSigned("RSA", 2048, "SHA1withRSA",
+                SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1, SignatureConstants.ALGO_ID_DIGEST_SHA1);
+        SamlResponseGenerator ecdsa = SamlResponseGenerator.createSelfSigned("EC", 256, "SHA256withECDSA",
+                SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, SignatureConstants.ALGO_ID_DIGEST_SHA256);
+
+        for (SamlResponseGenerator generator : new SamlResponseGenerator[]{rsaSha1, ecdsa}) {
+            Assertion assertion = generate(generator, false).getAssertions().get(0);
+            new PooledSignatureValidator(publicKey(generator)).validate(assertion.getSignature());
+        }
+    }
+
+    @Test(expectedExceptions = ValidationException.class, expectedExceptionsMessageRegExp = "Digest of the signed element does not match")
+    public void shouldRejectChangedAssertion() throws Exception {
+        Assertion assertion = generate(rsaSha256, false).getAssertions().get(0);
+        assertion.getSubject().getNameID().getDOM().setTextContent("admin@example.com");
+
+        new PooledSignatureValidator(publicKey(rsaSha256)).validate(assertion.getSignature());
+    }
+
+    @Test(expectedExceptions = ValidationException.class, expectedExceptionsMessageRegExp = "Signature value does not match")
+    public void shouldRejectSignatureOfAnotherKey() throws Exception {
+        Assertion assertion = generate(rsaSha256, false).getAssertions().get(0);
+
+        new PooledSignatureValidator(publicKey(SamlResponseGenerator.createSelfSigned())).validate(assertion.getSignature());
+    }
+
+    @Test(expectedExceptions = ValidationException.class, expectedExceptionsMessageRegExp = "Signature reference does not point to the signed element")
+    public void shouldRejectReferenceToAnotherElement() throws Exception {
+        Response response = generate(rsaSha256, true);
+        Element reference = (Element) response.getSignature().getDOM()
+                .getElementsByTagNameNS(XMLConstants.XMLSIG_NS, "Reference").item(0);
+        reference.setAttributeNS(null, "URI", "#" + response.getAssertions().get(0).getID());
+
+        new PooledSignatureValidator(publicKey(rsaSha256)).validate(response.getSignature());
+    }
+
+    public void shouldFallBackToOpenSamlForUnsupportedTransform() throws Exception {
+        Assertion assertion = generate(rsaSha256, false).getAssertions().get(0);
+        Element transform = (Element) assertion.getSignature().getDOM()
+                .getElementsByTagNameNS(XMLConstants.XMLSIG_NS, "Transform").item(1);
+        transform.setAttributeNS(null, "Algorithm", SignatureConstants.TRANSFORM_C14N_EXCL_WITH_COMMENTS);
+        long fallbacks = PooledSignatureValidator.getFallbacks();
+
+        try {
+            new PooledSignatureValidator(publicKey(rsaSha256)).validate(assertion.getSignature());
+            Assert.fail("Signature with a changed transform must not be valid");
+        } catch (ValidationException e) {
+            Assert.assertEquals(PooledSignatureValidator.getFallbacks(), fallbacks + 1);
+        }
+    }
+
+    public void shouldConvertConcatenatedEcdsaValueToDer() throws Exception {
+        byte[] concatenated = {0, 0x7f, (byte) 0x80, 0x01};
+
+        Assert.assertEquals(PooledSignatureValidator.toDer(concatenated), new byte[]{0x30, 0x08, 0x02, 0x01, 0x7f, 0x02, 0x03, 0x00, (byte) 0x80, 0x01});
+    }
+
+    /**
+     * Reads the key the way tenant settings do, the generator's certificate object needs the BouncyCastle provider for it.
+     */
+    private static PublicKey publicKey(SamlResponseGenerator generator) throws Exception {
+        return CertificateUtils.getCertificate(generator.getCertificateBase64()).getPublicKey();
+    }
+
+    private static Response generate(SamlResponseGenerator generator, boolean signResponse) throws Exception {
+        String xml = generator.generate(ACS_URL, EMAIL, Collections.singletonMap("FirstName", Collections.singletonList("Alexey")),
+                DateTime.now(), signResponse);
+        return (Response) new SamlSystemServiceImpl().convertStringToXmlObject(xml);
+    }
+}
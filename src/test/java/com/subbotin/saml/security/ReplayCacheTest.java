@@ -0,0 +1,74 @@
+package com.subbotin.saml.security;
+
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class ReplayCacheTest {
+    private static final long NOW = 1_000_000L;
+
+    @BeforeMethod
+    public void setUp() {
+        ReplayCache.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+    }
+
+    public void shouldRejectRepeatedIdUntilItExpires() {
+        ReplayCache replayCache = new ReplayCache(1024, 4);
+
+        Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.ACCEPTED);
+        Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 100, NOW + 50), ReplayCache.Mark.REPLAYED);
+        Assert.assertEquals(replayCache.markUsed("_other", NOW + 100, NOW + 50), ReplayCache.Mark.ACCEPTED);
+        Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 300, NOW + 100), ReplayCache.Mark.ACCEPTED);
+        Assert.assertEquals(replayCache.getReplays(), 1);
+    }
+
+    public void shouldFlushInMemoryTableWithoutFile() {
+        ReplayCache replayCache = new ReplayCache(1024, 4);
+        Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.ACCEPTED);
+
+        replayCache.flush();
+
+        Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.REPLAYED);
+    }
+
+    public void shouldRefuseNewIdWhileBucketIsFullOfUnexpiredIds() {
+        ReplayCache replayCache = new ReplayCache(ReplayCache.BUCKET_SIZE, 1);
+        for (int i = 0; i < ReplayCache.BUCKET_SIZE; i++) {
+            Assert.assertEquals(replayCache.markUsed("_id" + i, NOW + 100 + i, NOW), ReplayCache.Mark.ACCEPTED);
+        }
+
+        Assert.assertEquals(replayCache.markUsed("_new", NOW + 1000, NOW), ReplayCache.Mark.FULL);
+
+        Assert.assertEquals(replayCache.getOverflows(), 1);
+        for (int i = 0; i < ReplayCache.BUCKET_SIZE; i++) {
+            Assert.assertEquals(replayCache.markUsed("_id" + i, NOW + 100 + i, NOW + 99), ReplayCache.Mark.REPLAYED);
+        }
+        Assert.assertEquals(replayCache.markUsed("_new", NOW + 1000, NOW + 100), ReplayCache.Mark.ACCEPTED);
+    }
+
+    public void shouldKeepIdsInFileBetweenRestarts() throws IOException {
+        Path file = Files.createTempFile("replay", ".cache");
+        try {
+            ReplayCache replayCache = ReplayCache.open(file, 1024, 4);
+            Assert.assertEquals(replayCache.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.ACCEPTED);
+            replayCache.flush();
+
+            ReplayCache reopened = ReplayCache.open(file, 1024, 4);
+            Assert.assertEquals(reopened.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.REPLAYED);
+
+            ReplayCache resized = ReplayCache.open(file, 2048, 4);
+            Assert.assertEquals(resized.markUsed("_assertion", NOW + 100, NOW), ReplayCache.Mark.ACCEPTED);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
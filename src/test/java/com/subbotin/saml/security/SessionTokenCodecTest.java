@@ -0,0 +1,114 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.common.User;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class SessionTokenCodecTest {
+    private static final long NOW = 1_000_000L;
+    private static final SecretKey FIRST_KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final SecretKey SECOND_KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @BeforeMethod
+    public void setUp() {
+        SessionTokenCodec.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+    }
+
+    public void shouldReturnUserOfTokenUntilItExpires() {
+        SessionTokenCodec codec = new SessionTokenCodec(Collections.singletonMap(1, FIRST_KEY), 1);
+        String token = codec.encode(new User("user@example.com", "\u0418\u043c\u044f"), NOW + 100);
+
+        User user = codec.decode(token, NOW + 50);
+        Assert.assertEquals(user.getEmail(), "user@example.com");
+        Assert.assertEquals(user.getName(), "\u0418\u043c\u044f");
+        Assert.assertNull(codec.decode(token, NOW + 100));
+        Assert.assertEquals(codec.getRejected(), 1);
+    }
+
+    public void shouldRejectTamperedAndMalformedTokens() {
+        SessionTokenCodec codec = new SessionTokenCodec(Collections.singletonMap(1, FIRST_KEY), 1);
+        String token = codec.encode(new User("user@example.com", "User"), NOW + 100);
+        char[] tampered = token.toCharArray();
+        int last = tampered.length / 2;
+        tampered[last] = tampered[last] == 'A' ? 'B' : 'A';
+
+        Assert.assertNull(codec.decode(new String(tampered), NOW));
+        Assert.assertNull(codec.decode("not a token", NOW));
+        Assert.assertNull(codec.decode(StringUtils.repeat('A', 4096), NOW));
+        Assert.assertEquals(codec.getRejected(), 3);
+    }
+
+    public void shouldAcceptTokensOfOldKeyUntilItIsRemoved() {
+        String oldToken = new SessionTokenCodec(Collections.singletonMap(1, FIRST_KEY), 1).encode(new User("old@example.com", "Old"), NOW + 100);
+        Map<Integer, SecretKey> keys = new HashMap<>();
+        keys.put(1, FIRST_KEY);
+        keys.put(2, SECOND_KEY);
+        SessionTokenCodec rotated = new SessionTokenCodec(keys, 2);
+        String newToken = rotated.encode(new User("new@example.com", "New"), NOW + 100);
+
+        Assert.assertEquals(rotated.decode(oldToken, NOW).getEmail(), "old@example.com");
+        Assert.assertEquals(rotated.decode(newToken, NOW).getEmail(), "new@example.com");
+
+        SessionTokenCodec withoutOldKey = new SessionTokenCodec(Collections.singletonMap(2, SECOND_KEY), 2);
+        Assert.assertNull(withoutOldKey.decode(oldToken, NOW));
+        Assert.assertEquals(withoutOldKey.decode(newToken, NOW).getEmail(), "new@example.com");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRefuseActiveKeyOutsideOfKeyring() {
+        new SessionTokenCodec(Collections.singletonMap(1, FIRST_KEY), 2);
+    }
+
+    public void shouldLoadKeysOfKeyFile() throws IOException {
+        Path file = Files.createTempFile("session", ".keys");
+        try {
+            Files.write(file, "1=AAAAAAAAAAAAAAAAAAAAAA==\n".getBytes(StandardCharsets.ISO_8859_1));
+
+            Map<Integer, SecretKey> keys = SessionTokenCodec.loadKeys(file.getParent(), file.getFileName().toString());
+
+            Assert.assertEquals(keys.keySet(), Collections.singleton(1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRefuseToStartWithoutKeyFile() {
+        SessionTokenCodec.loadKeys(Paths.get("."), "");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRefuseToStartWithUnreadableKeyFile() {
+        SessionTokenCodec.loadKeys(Paths.get("."), "missing-session-token.keys");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRefuseToStartWithInvalidKey() throws IOException {
+        Path file = Files.createTempFile("session", ".keys");
+        try {
+            Files.write(file, "1=c2hvcnQ=\n".getBytes(StandardCharsets.ISO_8859_1));
+
+            SessionTokenCodec.loadKeys(file.getParent(), file.getFileName().toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.SamlSettings;
+import org.apache.cxf.helpers.IOUtils;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.validation.Validator;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+
+@Test
+public class SignatureValidatorCacheTest {
+    private SignatureValidatorCache signatureValidatorCache;
+
+    @BeforeMethod
+    public void setUp() {
+        signatureValidatorCache = new SignatureValidatorCache();
+    }
+
+    public void shouldParseCertificateOnce() throws IOException, CertificateException {
+        String certificate = getResourceFileAsString("certs/correct.key.pem");
+
+        Validator<Signature> first = signatureValidatorCache.getValidator(certificate);
+        Validator<Signature> second = signatureValidatorCache.getValidator(certificate);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(signatureValidatorCache.getMisses(), 1);
+        Assert.assertEquals(signatureValidatorCache.getHits(), 1);
+    }
+
+    public void shouldShareValidatorForSameFingerprint() throws IOException, CertificateException {
+        Validator<Signature> withHeaders = signatureValidatorCache.getValidator(getResourceFileAsString("certs/correct.key.pem"));
+        Validator<Signature> withoutHeaders = signatureValidatorCache.getValidator(getResourceFileAsString("certs/correct.key.without.headers.pem"));
+
+        Assert.assertSame(withHeaders, withoutHeaders);
+        Assert.assertEquals(signatureValidatorCache.size(), 1);
+    }
+
+    public void shouldDropCertificatesRemovedFromTenants() throws IOException, CertificateException {
+        String certificate = getResourceFileAsString("certs/correct.key.pem");
+        Validator<Signature> validator = signatureValidatorCache.getValidator(certificate);
+
+        signatureValidatorCache.onReload(Collections.singletonList(new SamlSettings("https://idp.example.com", "rotated")));
+
+        Assert.assertEquals(signatureValidatorCache.size(), 0);
+        Assert.assertNotSame(signatureValidatorCache.getValidator(certificate), validator);
+    }
+
+    @Test(expectedExceptions = CertificateException.class)
+    public void shouldNotCacheIncorrectCertificate() throws IOException, CertificateException {
+        signatureValidatorCache.getValidator(getResourceFileAsString("certs/bad.key.pem"));
+    }
+
+    private String getResourceFileAsString(String path) throws IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream(path)) {
+            return IOUtils.toString(input);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.subbotin.saml.security;
+
+import com.subbotin.saml.saml.TenantLimits;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class TenantLimiterTest {
+
+    public void shouldAdmitBurstAndRejectUntilBucketIsRefilled() {
+        TenantLimiter tenantLimiter = new TenantLimiter(tenant -> new TenantLimits(1, 3, 0), 4);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 0);
+        }
+        Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 1);
+        Assert.assertEquals(tenantLimiter.tryAcquire("other.com"), 0);
+        Assert.assertEquals(tenantLimiter.getRejections().get("example.com").get(TenantLimiter.RATE), Long.valueOf(1));
+    }
+
+    public void shouldLimitConcurrentVerificationsOfTenant() {
+        TenantLimiter tenantLimiter = new TenantLimiter(tenant -> new TenantLimits(0, 0, 2), 4);
+
+        TenantLimiter.Permit first = tenantLimiter.tryEnterVerification("example.com");
+        TenantLimiter.Permit second = tenantLimiter.tryEnterVerification("example.com");
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertNull(tenantLimiter.tryEnterVerification("example.com"));
+        Assert.assertNotNull(tenantLimiter.tryEnterVerification("other.com"));
+
+        first.release();
+
+        Assert.assertNotNull(tenantLimiter.tryEnterVerification("example.com"));
+        Assert.assertEquals(tenantLimiter.getRejections().get("example.com").get(TenantLimiter.CONCURRENCY), Long.valueOf(1));
+    }
+
+    public void shouldNotLimitTenantWithoutLimits() {
+        TenantLimiter tenantLimiter = new TenantLimiter(tenant -> TenantLimits.UNLIMITED, 4);
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 0);
+            Assert.assertSame(tenantLimiter.tryEnterVerification("example.com"), TenantLimiter.NO_PERMIT);
+        }
+    }
+
+    public void shouldApplyChangedLimitsAndKeepRejectionsOnReload() {
+        Map<String, TenantLimits> limits = new HashMap<>();
+        limits.put("example.com", new TenantLimits(1, 1, 0));
+        TenantLimiter tenantLimiter = new TenantLimiter(limits::get, 4);
+        Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 0);
+        Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 1);
+
+        limits.put("example.com", new TenantLimits(1, 2, 0));
+        tenantLimiter.onReload(Collections.emptyList());
+
+        Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 0);
+        Assert.assertEquals(tenantLimiter.tryAcquire("example.com"), 0);
+        Assert.assertEquals(tenantLimiter.getRejections().get("example.com").get(TenantLimiter.RATE), Long.valueOf(1));
+    }
+}
@@ -1,7 +1,17 @@
 package com.subbotin.saml.services;
 
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.metrics.Stage;
+import com.subbotin.saml.saml.AuthnRequestRenderer;
+import com.subbotin.saml.saml.SamlAttributes;
 import com.subbotin.saml.saml.SamlRequest;
 import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.security.RedirectSigner;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.cxf.common.util.CompressionUtils;
+import org.apache.cxf.helpers.IOUtils;
 import org.opensaml.common.SAMLException;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.AuthnRequest;
@@ -11,22 +21,30 @@ import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.validation.Validator;
 import org.slf4j.Logger;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
 import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 
@@ -34,13 +52,22 @@ import static org.mockito.Matchers.eq;
 public class SamlServiceImplTest {
     private SamlSystemService samlSystemService;
     private SamlServiceImpl samlServiceSpy;
+    private RedirectSigner originalRedirectSigner;
 
     @BeforeMethod
     public void setUp() throws Exception {
         SamlServiceImpl.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
         samlSystemService = mock(SamlSystemService.class);
         SamlServiceImpl.samlSystemService = samlSystemService;
+        SamlServiceImpl.authnRequestRenderer = AuthnRequestRenderer.OBJECT_TREE;
+        SamlServiceImpl.samlResponseMaxBytes = SamlServiceImpl.DEFAULT_SAML_RESPONSE_MAX_BYTES;
         samlServiceSpy = spy(SamlServiceImpl.class);
+        originalRedirectSigner = SamlServiceImpl.redirectSigner;
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        SamlServiceImpl.redirectSigner = originalRedirectSigner;
     }
 
     public void shouldCallAllInnerMethodWhenCreateRequest() throws SAMLException {
@@ -48,7 +75,7 @@ public class SamlServiceImplTest {
         doReturn(authnRequest).when(samlSystemService).createAuthnRequest(anyString(), anyString(), any(), anyString());
         doReturn("1").when(samlSystemService).convertXmlObjectToString(authnRequest);
 
-        SamlRequest samlRequest = samlServiceSpy.createSamlRequest("https://realtimeboard.com/saml/acs");
+        SamlRequest samlRequest = samlServiceSpy.createSamlRequest("https://realtimeboard.com/saml/acs", null);
 
         verify(samlSystemService).createAuthnRequest(eq("https://realtimeboard.com/saml/acs"), anyString(), any(), anyString());
         verify(samlSystemService).convertXmlObjectToString(eq(authnRequest));
@@ -59,7 +86,7 @@ public class SamlServiceImplTest {
 
     public void shouldCallAllInnerMethodWhenCreateResponse() throws SAMLException {
         XMLObject xmlObject = mock(XMLObject.class);
-        doReturn(xmlObject).when(samlSystemService).convertStringToXmlObject(anyString());
+        doReturn(xmlObject).when(samlSystemService).convertStreamToXmlObject(any());
         Response response = mock(Response.class);
         doReturn(response).when(samlSystemService).getResponseAndValidateSchema(xmlObject);
         doNothing().when(samlSystemService).checkStatusCode(response);
@@ -73,7 +100,8 @@ public class SamlServiceImplTest {
 
         SamlResponse samlResponse = samlServiceSpy.createSamlResponse("test");
 
-        verify(samlSystemService).convertStringToXmlObject(anyString());
+        verify(samlSystemService).prefilterResponse(any(), anyInt(), anyInt());
+        verify(samlSystemService).convertStreamToXmlObject(any());
         verify(samlSystemService).getResponseAndValidateSchema(eq(xmlObject));
         verify(samlSystemService).checkStatusCode(eq(response));
         verify(samlSystemService).getCheckedAssertion(eq(response));
@@ -119,9 +147,63 @@ public class SamlServiceImplTest {
         Assert.assertEquals(userName, "first last");
     }
 
+    public void shouldTakeOnlyFirstValuesOfNameAttributes() {
+        SamlResponse samlResponse = mock(SamlResponse.class);
+        SamlAttributes attributeValues = mock(SamlAttributes.class);
+        doReturn("first").when(attributeValues).getFirstValue("FirstName");
+        doReturn(null).when(attributeValues).getFirstValue("LastName");
+        doReturn(attributeValues).when(samlResponse).getAttributeValues();
+
+        String userName = samlServiceSpy.getUserName(samlResponse);
+
+        Assert.assertEquals(userName, "first");
+        verify(attributeValues, never()).get(any());
+    }
+
     public void shouldGetUriRequest() {
-        URI uri = samlServiceSpy.getUriRequest("https://onelogin.com/saml", "1");
+        URI uri = samlServiceSpy.getUriRequest("https://onelogin.com/saml", "1", null);
 
         Assert.assertEquals(uri.toString(), "https://onelogin.com/saml?SAMLRequest=1");
     }
+
+    public void shouldBuildRedirectUrlFromRenderedTemplate() throws Exception {
+        SamlSystemUtils.init();
+        SamlServiceImpl.samlSystemService = new SamlSystemServiceImpl();
+        SamlServiceImpl.authnRequestRenderer = AuthnRequestRenderer.TEMPLATE;
+
+        String redirectUrl = samlServiceSpy.getRedirectUrl(new SamlSettings("https://idp.example.com/saml?tenant=rtb", "cert"), "https://realtimeboard.com/saml/acs", null);
+
+        String prefix = "https://idp.example.com/saml?tenant=rtb&SAMLRequest=";
+        Assert.assertTrue(redirectUrl.startsWith(prefix), redirectUrl);
+        byte[] deflated = Base64.decodeBase64(URLDecoder.decode(redirectUrl.substring(prefix.length()), "UTF-8"));
+        String authnRequest = IOUtils.toString(CompressionUtils.inflate(deflated), StandardCharsets.UTF_8.name());
+        Assert.assertTrue(authnRequest.contains("AssertionConsumerServiceURL=\"https://realtimeboard.com/saml/acs\""), authnRequest);
+    }
+
+    public void shouldLabelLoginMetricsWithTenantOfEmail() throws Exception {
+        SamlSystemUtils.init();
+        SamlServiceImpl.samlSystemService = new SamlSystemServiceImpl();
+        Metrics metrics = new Metrics();
+        SamlServiceImpl samlService = new SamlServiceImpl(metrics);
+
+        samlService.getRedirectUrl(new SamlSettings("https://idp.example.com/saml", "cert"), "https://realtimeboard.com/saml/acs", "user@realtimeboard.com");
+        samlService.getUriRequest("https://idp.example.com/saml", "1", "user@unknown.invalid");
+
+        Assert.assertEquals(metrics.getHistograms(Stage.LOGIN_URI).keySet(), new HashSet<>(Arrays.asList("realtimeboard.com", Metrics.UNKNOWN_TENANT)));
+    }
+
+    public void shouldAppendSignedQueryToEndpointParameters() throws SAMLException {
+        RedirectSigner redirectSigner = mock(RedirectSigner.class);
+        doAnswer(invocation -> {
+            StringBuilder url = (StringBuilder) invocation.getArguments()[0];
+            int queryStart = (Integer) invocation.getArguments()[1];
+            Assert.assertEquals(url.substring(queryStart), "SAMLRequest=1");
+            return url.append("&SigAlg=a&Signature=b");
+        }).when(redirectSigner).appendSignature(any(StringBuilder.class), anyInt());
+        SamlServiceImpl.redirectSigner = redirectSigner;
+
+        URI uri = samlServiceSpy.getSignedUriRequest("https://idp.example.com/saml?tenant=rtb", "1", null, null);
+
+        Assert.assertEquals(uri.toString(), "https://idp.example.com/saml?tenant=rtb&SAMLRequest=1&SigAlg=a&Signature=b");
+    }
 }
\ No newline at end of file
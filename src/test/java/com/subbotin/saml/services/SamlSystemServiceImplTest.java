@@ -1,5 +1,7 @@
 package com.subbotin.saml.services;
 
+import com.subbotin.saml.exceptions.SamlFailure;
+import com.subbotin.saml.utils.BoundedInputStream;
 import com.subbotin.saml.utils.SamlExceptionText;
 import com.subbotin.saml.utils.SamlSystemUtils;
 import org.apache.cxf.helpers.IOUtils;
@@ -55,6 +57,7 @@ public class SamlSystemServiceImplTest {
         SamlSystemServiceImpl.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
         SamlSystemUtils.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
         SamlSystemUtils.init();
+        SamlSystemServiceImpl.attributeAllowList = Collections.emptySet();
     }
 
     public void testCreateAuthnRequest() throws Exception {
@@ -173,6 +176,28 @@ public class SamlSystemServiceImplTest {
         samlSystemService.checkConditions(assertion);
     }
 
+    public void shouldRejectWithSharedFailureWithoutStackTrace() {
+        Assertion assertion = mock(Assertion.class, RETURNS_DEEP_STUBS);
+        when(assertion.getConditions().getNotBefore()).thenReturn(ISSUE_INSTANT.minusHours(1));
+        when(assertion.getConditions().getNotOnOrAfter()).thenReturn(ISSUE_INSTANT.minusHours(1));
+
+        SAMLException first = checkConditions(assertion);
+        SAMLException second = checkConditions(assertion);
+
+        Assert.assertSame(first, SamlFailure.CONDITIONS_HAVE_EXPIRED);
+        Assert.assertSame(second, first);
+        Assert.assertEquals(first.getStackTrace().length, 0);
+    }
+
+    private SAMLException checkConditions(Assertion assertion) {
+        try {
+            samlSystemService.checkConditions(assertion);
+        } catch (SAMLException e) {
+            return e;
+        }
+        throw new AssertionError("Expired assertion is accepted");
+    }
+
     public void shouldNotThrowExceptionConditions() throws SAMLException {
         Assertion assertion = mock(Assertion.class, RETURNS_DEEP_STUBS);
         when(assertion.getConditions().getNotBefore()).thenReturn(ISSUE_INSTANT.minusHours(1));
@@ -181,6 +206,22 @@ public class SamlSystemServiceImplTest {
         samlSystemService.checkConditions(assertion);
     }
 
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.MASK_WAS_ALREADY_USED_FOR_TEST)
+    public void shouldThrowExceptionAssertionWasAlreadyUsed() throws SAMLException {
+        Response response = mock(Response.class);
+        when(response.getID()).thenReturn(SamlSystemUtils.generateId());
+        Assertion assertion = mock(Assertion.class, RETURNS_DEEP_STUBS);
+        when(assertion.getID()).thenReturn(SamlSystemUtils.generateId());
+        when(assertion.getConditions().getNotOnOrAfter()).thenReturn(ISSUE_INSTANT.plusHours(1));
+
+        try {
+            samlSystemService.checkReplay(response, assertion);
+        } catch (SAMLException e) {
+            Assert.fail("First use of the assertion is rejected", e);
+        }
+        samlSystemService.checkReplay(response, assertion);
+    }
+
     public void shouldReturnSomeValue() {
         Assertion assertion = mock(Assertion.class, RETURNS_DEEP_STUBS);
         String subjectNameID = "test@test.ru";
@@ -221,6 +262,21 @@ public class SamlSystemServiceImplTest {
         samlSystemService.convertStringToXmlObject(xml);
     }
 
+    public void shouldGetXmlObjectFromStream() throws SAMLException, IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("xml/correct.response.xml")) {
+            XMLObject xmlObject = samlSystemService.convertStreamToXmlObject(input);
+
+            Assert.assertNotNull(xmlObject);
+        }
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.RESPONSE_IS_TOO_LARGE)
+    public void shouldThrowExceptionResponseIsTooLarge() throws SAMLException, IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("xml/correct.response.xml")) {
+            samlSystemService.convertStreamToXmlObject(new BoundedInputStream(input, 100));
+        }
+    }
+
     private String getResourceFileAsString(String path) throws IOException {
         try (InputStream input = getClass().getClassLoader().getResourceAsStream(path)) {
             return IOUtils.toString(input);
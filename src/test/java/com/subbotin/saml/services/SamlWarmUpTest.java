@@ -0,0 +1,47 @@
+package com.subbotin.saml.services;
+
+import com.subbotin.saml.metrics.LatencyHistogram;
+import com.subbotin.saml.metrics.Metrics;
+import com.subbotin.saml.metrics.Stage;
+import com.subbotin.saml.saml.TenantRegistry;
+import com.subbotin.saml.security.SignatureValidatorCache;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+@Test
+public class SamlWarmUpTest {
+    @BeforeMethod
+    public void setUp() {
+        SamlSystemUtils.init();
+        SamlWarmUp.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+        SamlServiceImpl.samlSystemService = new SamlSystemServiceImpl();
+    }
+
+    public void shouldCheckWarmUpResponseWithoutTouchingMetricsAndCacheOfRealLogins() throws Exception {
+        Metrics warmUpMetrics = new Metrics();
+        int cached = SignatureValidatorCache.getInstance().size();
+        long signatureChecks = countSignatureChecks(Metrics.getInstance());
+
+        new SamlWarmUp(new SamlServiceImpl(warmUpMetrics), TenantRegistry.getInstance()).run(3);
+
+        Assert.assertEquals(countSignatureChecks(warmUpMetrics), 3);
+        Assert.assertEquals(countSignatureChecks(Metrics.getInstance()), signatureChecks);
+        Assert.assertTrue(warmUpMetrics.getFailures().isEmpty());
+        Assert.assertEquals(SignatureValidatorCache.getInstance().size(), cached);
+    }
+
+    private static long countSignatureChecks(Metrics metrics) {
+        long count = 0;
+        for (LatencyHistogram histogram : metrics.getHistograms(Stage.ACS_ASSERTION_SIGNATURE).values()) {
+            long[] cumulativeCounts = histogram.getCumulativeCounts();
+            count += cumulativeCounts[cumulativeCounts.length - 1];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,191 @@
+package com.subbotin.saml.servlets;
+
+import com.subbotin.saml.exceptions.SessionTableIsFullException;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@Test
+public class SamlWorkerPoolTest {
+    private SamlWorkerPool samlWorkerPool;
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        SamlWorkerPool.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+        samlWorkerPool = new SamlWorkerPool(1, 1, 30000, 5);
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+    }
+
+    public void shouldRunTaskOnWorkerAndCompleteRequest() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = completeLatch(asyncRequest(request, response));
+
+        samlWorkerPool.execute(request, response, (req, resp) -> resp.sendRedirect("index.jsp"));
+
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        verify(response).sendRedirect("index.jsp");
+    }
+
+    public void shouldAnswerServiceUnavailableWhenQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        SamlWorkerPool.Task blocking = (req, resp) -> {
+            started.countDown();
+            await(release);
+        };
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        asyncRequest(request, response);
+        samlWorkerPool.execute(request, response, blocking);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        samlWorkerPool.execute(request, response, blocking);
+
+        HttpServletRequest rejectedRequest = mock(HttpServletRequest.class);
+        HttpServletResponse rejectedResponse = mock(HttpServletResponse.class);
+        AsyncContext rejectedContext = asyncRequest(rejectedRequest, rejectedResponse);
+        samlWorkerPool.execute(rejectedRequest, rejectedResponse, blocking);
+
+        verify(rejectedResponse).setHeader("Retry-After", "5");
+        verify(rejectedResponse).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(rejectedContext).complete();
+        Assert.assertEquals(samlWorkerPool.getRejected(), 1);
+    }
+
+    public void shouldAnswerServerErrorWhenTaskFails() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = completeLatch(asyncRequest(request, response));
+
+        samlWorkerPool.execute(request, response, (req, resp) -> {
+            throw new IllegalStateException("failed");
+        });
+
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    public void shouldAnswerServiceUnavailableWhenSessionTableIsFull() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = completeLatch(asyncRequest(request, response));
+
+        samlWorkerPool.execute(request, response, (req, resp) -> {
+            throw new SessionTableIsFullException("full");
+        });
+
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        verify(response).setHeader("Retry-After", "5");
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    public void shouldDropWritesOfTaskThatTimedOutWhileRunning() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = asyncRequest(request, response);
+        samlWorkerPool.execute(request, response, (req, resp) -> {
+            started.countDown();
+            await(release);
+            resp.addCookie(new Cookie("SAML_SESSION", "id"));
+            resp.sendRedirect("index.jsp");
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        release.countDown();
+        awaitIdleWorker();
+
+        verify(response).setHeader("Retry-After", "5");
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(response, never()).addCookie(any());
+        verify(response, never()).sendRedirect("index.jsp");
+        verify(asyncContext, times(1)).complete();
+        Assert.assertEquals(samlWorkerPool.getRejected(), 1);
+    }
+
+    public void shouldLeaveResponseOfFinishedTaskToWorker() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = asyncRequest(request, response);
+        CountDownLatch completed = completeLatch(asyncContext);
+        samlWorkerPool.execute(request, response, (req, resp) -> resp.sendRedirect("index.jsp"));
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+        verify(response, never()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(asyncContext, times(1)).complete();
+        Assert.assertEquals(samlWorkerPool.getRejected(), 0);
+    }
+
+    /**
+     * The pool has one thread, so once a later task ran the earlier one has finished.
+     */
+    private void awaitIdleWorker() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = completeLatch(asyncRequest(request, response));
+        samlWorkerPool.execute(request, response, (req, resp) -> {
+        });
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static AsyncContext asyncRequest(HttpServletRequest request, HttpServletResponse response) {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        doReturn(request).when(asyncContext).getRequest();
+        doReturn(response).when(asyncContext).getResponse();
+        doReturn(true).when(request).isAsyncSupported();
+        doReturn(asyncContext).when(request).startAsync(request, response);
+        return asyncContext;
+    }
+
+    private static CountDownLatch completeLatch(AsyncContext asyncContext) {
+        CountDownLatch completed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            completed.countDown();
+            return null;
+        }).when(asyncContext).complete();
+        return completed;
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
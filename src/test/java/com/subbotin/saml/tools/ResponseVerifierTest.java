@@ -0,0 +1,116 @@
+package com.subbotin.saml.tools;
+
+import com.subbotin.saml.exceptions.SamlResponseIsNotCorrectException;
+import com.subbotin.saml.exceptions.ValidateSignatureForResponseWasUnsuccessfulException;
+import com.subbotin.saml.saml.SamlResponse;
+import com.subbotin.saml.saml.SamlSettings;
+import com.subbotin.saml.services.SamlService;
+import com.subbotin.saml.tools.CapturedResponses.CapturedResponse;
+import com.subbotin.saml.utils.SamlExceptionText;
+import org.opensaml.common.SAMLException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Test
+public class ResponseVerifierTest {
+    private static final String CERTIFICATE = "certificate";
+    private static final String INVALID_SIGNATURE = String.format(SamlExceptionText.MASK_HAS_INVALID_SIGNATURE, "Assertion");
+
+    private SamlService samlService;
+    private ResponseVerifier verifier;
+
+    @BeforeMethod
+    public void setUp() {
+        samlService = mock(SamlService.class);
+        verifier = new ResponseVerifier(samlService);
+        mockResponse("good", "user@example.com");
+        mockResponse("unknown", "user@unknown.com");
+        mockResponse("forged", "user@example.com");
+        when(samlService.createSamlResponse("expired"))
+                .thenThrow(new SamlResponseIsNotCorrectException(new SAMLException(SamlExceptionText.CONDITIONS_HAVE_EXPIRED)));
+        SamlSettings samlSettings = new SamlSettings("https://idp.example.com", CERTIFICATE);
+        when(samlService.getTrustedSamlSettings(samlService.createSamlResponse("good"))).thenReturn(samlSettings);
+        when(samlService.getTrustedSamlSettings(samlService.createSamlResponse("forged"))).thenReturn(samlSettings);
+    }
+
+    public void shouldVerifyResponsesInParallelAndCountFailureReasons() throws Exception {
+        SamlResponse forged = samlService.createSamlResponse("forged");
+        doThrow(new ValidateSignatureForResponseWasUnsuccessfulException(new SAMLException(INVALID_SIGNATURE)))
+                .when(samlService).checkSignature(forged, CERTIFICATE);
+        List<CapturedResponse> responses = Arrays.asList(
+                new CapturedResponse("1", "good"),
+                new CapturedResponse("2", "expired"),
+                new CapturedResponse("3", "unknown"),
+                new CapturedResponse("4", "forged"),
+                new CapturedResponse("5", "expired"));
+
+        ResponseVerifier.Report report = verifier.verifyAll(responses, 2);
+
+        Assert.assertEquals(report.getResults().size(), 5);
+        Assert.assertTrue(report.getResults().get(0).isOk());
+        Assert.assertEquals(report.getResults().get(2).getReason(), ResponseVerifier.TENANT_IS_NOT_CONFIGURED);
+        Assert.assertEquals(report.getFailed(), 4);
+        Map<String, Long> reasons = report.getFailureReasons();
+        Assert.assertEquals(reasons.keySet().iterator().next(), SamlExceptionText.CONDITIONS_HAVE_EXPIRED);
+        Assert.assertEquals(reasons.get(SamlExceptionText.CONDITIONS_HAVE_EXPIRED), Long.valueOf(2));
+        Assert.assertEquals(reasons.get(INVALID_SIGNATURE), Long.valueOf(1));
+
+        StringWriter output = new StringWriter();
+        report.writeResults(output);
+        Assert.assertTrue(output.toString().startsWith("{\"id\":\"1\",\"ok\":true,\"subject\":\"user@example.com\",\"tenant\":\"example.com\",\"reason\":null,\"micros\":"));
+        Assert.assertTrue(output.toString().contains("{\"id\":\"2\",\"ok\":false,\"subject\":null,\"tenant\":null,\"reason\":\"" + SamlExceptionText.CONDITIONS_HAVE_EXPIRED + "\""));
+    }
+
+    public void shouldLoadJsonLinesWithOptionalIds() throws IOException {
+        Path file = Files.createTempFile("captured", ".jsonl");
+        try {
+            Files.write(file, ("{\"id\": \"a\\\"1\", \"SAMLResponse\": \"PHNhbWw+\\n\", \"status\": 200}\n"
+                    + "\n"
+                    + "{\"SAMLResponse\":\"PHg+\"}\n").getBytes(StandardCharsets.UTF_8));
+
+            List<CapturedResponse> responses = CapturedResponses.load(file);
+
+            Assert.assertEquals(responses.size(), 2);
+            Assert.assertEquals(responses.get(0).id, "a\"1");
+            Assert.assertEquals(responses.get(0).samlResponse, "PHNhbWw+");
+            Assert.assertEquals(responses.get(1).id, "line-3");
+            Assert.assertEquals(responses.get(1).samlResponse, "PHg+");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void shouldDecodeUnicodeEscapes() throws IOException {
+        Assert.assertEquals(CapturedResponses.parseObject("{\"id\": \"\\u0041\\u00e9\"}", 1).get("id"), "A\u00e9");
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Line 7 has an invalid .u escape at 8")
+    public void shouldRejectUnicodeEscapeWithoutFourHexDigits() throws IOException {
+        CapturedResponses.parseObject("{\"id\": \"\\u00g1\"}", 7);
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Line 2 has an invalid .u escape at 8")
+    public void shouldRejectUnicodeEscapeCutByEndOfLine() throws IOException {
+        CapturedResponses.parseObject("{\"id\": \"\\u00", 2);
+    }
+
+    private void mockResponse(String samlResponse, String subject) {
+        SamlResponse response = mock(SamlResponse.class);
+        when(response.getSubjectNameId()).thenReturn(subject);
+        when(samlService.createSamlResponse(samlResponse)).thenReturn(response);
+    }
+}
@@ -0,0 +1,78 @@
+package com.subbotin.saml.utils;
+
+import com.subbotin.saml.exceptions.SamlFailure;
+import com.subbotin.saml.exceptions.SamlResponseIsNotCorrectException;
+import com.subbotin.saml.exceptions.UserCanNotUseSamlException;
+import org.slf4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+@Test
+public class FailureLogTest {
+
+    @BeforeClass
+    public void setUpClass() {
+        FailureLog.logger = mock(Logger.class, RETURNS_DEEP_STUBS);
+    }
+
+    public void shouldLogFailuresOfReasonUpToLimitAndCountTheRest() throws InterruptedException {
+        FailureLog failureLog = new FailureLog(2, 16, 60);
+        Logger logger = mock(Logger.class);
+        IOException cause = new IOException("broken");
+        try {
+            long second = System.currentTimeMillis() / 1000;
+            for (int i = 0; i < 5; i++) {
+                failureLog.error(logger, "reason", cause);
+            }
+            if (System.currentTimeMillis() / 1000 != second) {
+                return;
+            }
+
+            awaitWritten(failureLog, 2);
+            verify(logger).error(anyString(), same(cause));
+            verify(logger).error(eq("{} [{}]: {}"), eq("reason"), anyString(), eq(cause.toString()));
+            Assert.assertEquals(failureLog.getSuppressed(), 3);
+            Assert.assertEquals(failureLog.getDropped(), 0);
+        } finally {
+            failureLog.shutdown();
+        }
+    }
+
+    public void shouldKeepSeparateBudgetPerReason() throws InterruptedException {
+        FailureLog failureLog = new FailureLog(1, 16, 60);
+        Logger logger = mock(Logger.class);
+        try {
+            failureLog.error(logger, "first", null);
+            failureLog.error(logger, "second", null);
+
+            awaitWritten(failureLog, 2);
+            verify(logger).error(eq("{} [{}]"), eq("first"), anyString());
+            verify(logger).error(eq("{} [{}]"), eq("second"), anyString());
+        } finally {
+            failureLog.shutdown();
+        }
+    }
+
+    public void shouldTakeReasonFromSamlCause() {
+        Assert.assertEquals(FailureLog.getReason(new SamlResponseIsNotCorrectException(SamlFailure.NO_ASSERTIONS_FOUND)), SamlExceptionText.NO_ASSERTIONS_FOUND);
+        Assert.assertEquals(FailureLog.getReason(new UserCanNotUseSamlException("user@example.com")), "UserCanNotUseSamlException");
+    }
+
+    private static void awaitWritten(FailureLog failureLog, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (failureLog.getWritten() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(failureLog.getWritten(), count);
+    }
+}
@@ -0,0 +1,38 @@
+package com.subbotin.saml.utils;
+
+import org.apache.cxf.helpers.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+@Test
+public class FormParameterInputStreamTest {
+
+    public void shouldDecodeParameterValue() throws IOException {
+        Assert.assertEquals(read("RelayState=abc&SAMLResponse=PD94%2B+bWw%3D&other=1", "SAMLResponse"), "PD94+ bWw=");
+    }
+
+    public void shouldSkipParameterWithSameNamePrefix() throws IOException {
+        Assert.assertEquals(read("SAMLResponseX=1&SAMLResponse=2", "SAMLResponse"), "2");
+    }
+
+    public void shouldReadEmptyWhenParameterIsMissing() throws IOException {
+        Assert.assertEquals(read("RelayState=abc&flag", "SAMLResponse"), "");
+    }
+
+    @Test(expectedExceptions = BoundedInputStream.LimitExceededException.class)
+    public void shouldFailWhenLimitIsExceeded() throws IOException {
+        InputStream input = new FormParameterInputStream(new ByteArrayInputStream("SAMLResponse=123456".getBytes(StandardCharsets.US_ASCII)), "SAMLResponse");
+
+        IOUtils.readBytesFromStream(new BoundedInputStream(input, 5));
+    }
+
+    private String read(String body, String name) throws IOException {
+        InputStream input = new FormParameterInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), name);
+        return new String(IOUtils.readBytesFromStream(input), StandardCharsets.US_ASCII);
+    }
+}
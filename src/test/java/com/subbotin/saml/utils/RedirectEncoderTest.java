@@ -0,0 +1,66 @@
+package com.subbotin.saml.utils;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.cxf.common.util.CompressionUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+@Test
+public class RedirectEncoderTest {
+    private static final String AUTHN_REQUEST = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" "
+            + "ID=\"_a1b2\" Version=\"2.0\" AssertionConsumerServiceURL=\"https://sp.example.com/saml/acs?x=1&amp;y=2\"/>";
+
+    public void shouldEncodeLikeUriBuilder() throws Exception {
+        String samlEndpoint = "https://idp.example.com/sso?tenant=a%20b&lang=ru";
+        byte[] xml = AUTHN_REQUEST.getBytes(StandardCharsets.UTF_8);
+        StringBuilder url = new StringBuilder(RedirectEncoder.getPrefix(samlEndpoint));
+
+        RedirectEncoder.appendDeflated(xml, xml.length, url);
+
+        Assert.assertEquals(url.toString(), buildWithUriBuilder(samlEndpoint, Base64.encodeBase64String(CompressionUtils.deflate(xml))));
+    }
+
+    public void shouldDeflateLikeCompressionUtilsWithReusedDeflater() throws Exception {
+        Random random = new Random(42);
+        for (int length : new int[] {100, 5000, 70000}) {
+            byte[] data = new byte[length + 7];
+            random.nextBytes(data);
+
+            Assert.assertEquals(RedirectEncoder.deflate(data, length), CompressionUtils.deflate(Arrays.copyOf(data, length)), "length " + length);
+        }
+    }
+
+    public void shouldEscapeBase64Padding() {
+        for (int length = 0; length < 8; length++) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (0xfb + i);
+            }
+            StringBuilder fromBytes = new StringBuilder();
+            StringBuilder fromString = new StringBuilder();
+
+            RedirectEncoder.appendBase64(data, 0, length, fromBytes);
+            RedirectEncoder.appendBase64(Base64.encodeBase64String(data), fromString);
+
+            Assert.assertEquals(fromBytes.toString(), fromString.toString());
+        }
+    }
+
+    @Test(expectedExceptions = URISyntaxException.class)
+    public void shouldRejectEndpointWithFragment() throws URISyntaxException {
+        RedirectEncoder.getPrefix("https://idp.example.com/sso#login");
+    }
+
+    private static String buildWithUriBuilder(String samlEndpoint, String samlRequest) throws URISyntaxException {
+        URIBuilder uriBuilder = new URIBuilder(samlEndpoint);
+        uriBuilder.setCharset(StandardCharsets.UTF_8);
+        uriBuilder.addParameter(RedirectEncoder.SAML_REQUEST, samlRequest);
+        return uriBuilder.build().toString();
+    }
+}
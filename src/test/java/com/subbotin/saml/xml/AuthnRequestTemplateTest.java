@@ -0,0 +1,54 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.services.SamlSystemService;
+import com.subbotin.saml.services.SamlSystemServiceImpl;
+import com.subbotin.saml.utils.SamlSystemUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.common.SAMLException;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+@Test
+public class AuthnRequestTemplateTest {
+    private SamlSystemService samlSystemService = new SamlSystemServiceImpl();
+
+    @BeforeMethod
+    public void setUp() {
+        SamlSystemUtils.init();
+    }
+
+    @DataProvider
+    public Object[][] requests() {
+        return new Object[][]{
+                {"https://realtimeboard.com/sso/acs", "https://realtimeboard.com", new DateTime(2016, 10, 10, 12, 56, 35, 7, DateTimeZone.UTC)},
+                {"https://example.com/acs?a=1&b=<2>\"", "https://example.com/?x=\"&y='", new DateTime(2024, 2, 29, 23, 59, 59, 999, DateTimeZone.UTC)},
+                {"https://пример.рф/acs", "urn:issuer", new DateTime(2000, 3, 1, 0, 0, 0, 0, DateTimeZone.forOffsetHours(3))},
+                {"https://realtimeboard.com/sso/acs", "https://realtimeboard.com", new DateTime(1999, 12, 31, 23, 0, 0, 120, DateTimeZone.UTC)},
+        };
+    }
+
+    @Test(dataProvider = "requests")
+    public void shouldRenderSameBytesAsObjectTree(String acsUrl, String issuerName, DateTime issueInstant) throws SAMLException {
+        String requestId = SamlSystemUtils.generateId();
+        String expected = samlSystemService.convertXmlObjectToString(samlSystemService.createAuthnRequest(acsUrl, requestId, issueInstant, issuerName));
+        AuthnRequestTemplate authnRequestTemplate = AuthnRequestTemplate.compile(samlSystemService, acsUrl, issuerName);
+        byte[] buffer = new byte[authnRequestTemplate.getLength(requestId)];
+
+        int length = authnRequestTemplate.render(requestId, issueInstant.getMillis(), buffer);
+
+        Assert.assertEquals(length, buffer.length);
+        Assert.assertEquals(new String(buffer, 0, length, StandardCharsets.UTF_8), expected);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectIdWithMarkup() throws SAMLException {
+        AuthnRequestTemplate authnRequestTemplate = AuthnRequestTemplate.compile(samlSystemService, "https://realtimeboard.com/sso/acs", "https://realtimeboard.com");
+
+        authnRequestTemplate.render("_\"id", 0, new byte[4096]);
+    }
+}
@@ -0,0 +1,75 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.saml.MetadataCatalog;
+import com.subbotin.saml.saml.SamlSettings;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+@Test
+public class MetadataReaderTest {
+
+    public void shouldReadIdpsOfAggregate() throws Exception {
+        MetadataCatalog.Builder builder = new MetadataCatalog.Builder();
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("xml/federation.metadata.xml")) {
+            Assert.assertEquals(new MetadataReader().read(input, builder), 2);
+        }
+        MetadataCatalog metadataCatalog = builder.build();
+
+        SamlSettings example = metadataCatalog.getByDomain("example.org");
+        Assert.assertNotNull(example);
+        Assert.assertEquals(example.getSamlEndpoint(), "https://idp.example.org/sso/redirect");
+        Assert.assertEquals(example.getX509Certificate(), "MIICSIGNING");
+        Assert.assertTrue(example.isSignAuthnRequest());
+
+        SamlSettings university = metadataCatalog.getByEntityId("https://login.university.edu/saml");
+        Assert.assertNotNull(university);
+        Assert.assertEquals(university.getX509Certificate(), "UNIVERSITY");
+        Assert.assertFalse(university.isSignAuthnRequest());
+        Assert.assertNull(metadataCatalog.getByDomain("university.edu"));
+
+        Assert.assertNull(metadataCatalog.getByDomain("example.net"));
+        Assert.assertNull(metadataCatalog.getByEntityId("https://sp.example.com/sp"));
+        Assert.assertEquals(metadataCatalog.getDomainCount(), 1);
+    }
+
+    public void shouldLeaveOutDomainClaimedByTwoIdps() {
+        MetadataCatalog.Builder builder = new MetadataCatalog.Builder();
+        builder.add("https://victim", "https://victim/sso", "VICTIM", false, Collections.singletonList("example.org"));
+        builder.add("https://second", "https://second/sso", "SECOND", false, Collections.singletonList("Example.org"));
+
+        MetadataCatalog metadataCatalog = builder.build();
+
+        Assert.assertNull(metadataCatalog.getByDomain("example.org"));
+        Assert.assertFalse(metadataCatalog.isInScope("https://second", "user@example.org"));
+        Assert.assertFalse(metadataCatalog.isInScope("https://victim", "user@example.org"));
+        Assert.assertEquals(metadataCatalog.size(), 2);
+        Assert.assertEquals(builder.getConflicts(), 1);
+    }
+
+    public void shouldTrustIdpOnlyForItsOwnScope() {
+        MetadataCatalog.Builder builder = new MetadataCatalog.Builder();
+        builder.add("https://victim", "https://victim/sso", "VICTIM", false, Collections.singletonList("victim.org"));
+        builder.add("https://attacker", "https://attacker/sso", "ATTACKER", false, Collections.singletonList("attacker.org"));
+
+        MetadataCatalog metadataCatalog = builder.build();
+
+        Assert.assertTrue(metadataCatalog.isInScope("https://victim", "user@mail.victim.org"));
+        Assert.assertFalse(metadataCatalog.isInScope("https://attacker", "user@victim.org"));
+        Assert.assertFalse(metadataCatalog.isInScope("https://unknown", "user@victim.org"));
+        Assert.assertSame(metadataCatalog.getByEntityId("https://victim"), metadataCatalog.getByDomain("victim.org"));
+    }
+
+    @Test(expectedExceptions = XMLStreamException.class)
+    public void shouldRejectDtd() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE md [<!ENTITY x \"x\">]>"
+                + "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"&x;\"/>";
+
+        new MetadataReader().read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), new MetadataCatalog.Builder());
+    }
+}
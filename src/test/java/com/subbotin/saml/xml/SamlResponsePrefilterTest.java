@@ -0,0 +1,80 @@
+package com.subbotin.saml.xml;
+
+import com.subbotin.saml.utils.SamlExceptionText;
+import org.apache.cxf.helpers.IOUtils;
+import org.opensaml.common.SAMLException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+@Test
+public class SamlResponsePrefilterTest {
+    private static final String RESPONSE_START = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">";
+    private static final String ASSERTION = "<saml:Assertion><saml:AttributeStatement><saml:Attribute Name=\"Groups\">"
+            + "<saml:AttributeValue>a</saml:AttributeValue><saml:AttributeValue>b</saml:AttributeValue>"
+            + "</saml:Attribute></saml:AttributeStatement></saml:Assertion>";
+    private static final String RESPONSE_END = "</samlp:Response>";
+
+    private final SamlResponsePrefilter prefilter = new SamlResponsePrefilter(8, 2);
+
+    public void shouldAcceptResponse() throws SAMLException, IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream("xml/correct.response.xml")) {
+            new SamlResponsePrefilter(64, 100).check(IOUtils.readBytesFromStream(input));
+        }
+        prefilter.check(bytes(RESPONSE_START + ASSERTION + RESPONSE_END));
+    }
+
+    public void shouldReadOnlyGivenRangeOfBuffer() throws SAMLException {
+        byte[] response = bytes(RESPONSE_START + ASSERTION + RESPONSE_END);
+        byte[] buffer = new byte[response.length + 16];
+        System.arraycopy(response, 0, buffer, 0, response.length);
+        buffer[response.length] = '<';
+
+        prefilter.check(buffer, 0, response.length);
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.XMLOBJECT_NOT_CAST_TO_RESPONSE)
+    public void shouldRejectWrongRoot() throws SAMLException {
+        prefilter.check(bytes("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>"));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.NO_ASSERTIONS_FOUND)
+    public void shouldRejectResponseWithoutAssertion() throws SAMLException {
+        prefilter.check(bytes(RESPONSE_START + RESPONSE_END));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.MORE_THAN_ONE_ASSERTION_WAS_FOUND)
+    public void shouldRejectSeveralAssertions() throws SAMLException {
+        prefilter.check(bytes(RESPONSE_START + ASSERTION + ASSERTION + RESPONSE_END));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.RESPONSE_IS_TOO_LARGE)
+    public void shouldRejectTooManyAttributeValues() throws SAMLException {
+        prefilter.check(bytes(RESPONSE_START + ASSERTION.replace("</saml:Attribute>", "<saml:AttributeValue>c</saml:AttributeValue></saml:Attribute>") + RESPONSE_END));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.PROBLEM_PARSING_XML_OF_THE_RESPONSE)
+    public void shouldRejectDeepNesting() throws SAMLException {
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            nested.append("<a>");
+        }
+        prefilter.check(bytes(RESPONSE_START + nested));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.PROBLEM_PARSING_XML_OF_THE_RESPONSE)
+    public void shouldRejectDoctype() throws SAMLException {
+        prefilter.check(bytes("<!DOCTYPE r [<!ENTITY e \"e\">]>" + RESPONSE_START + ASSERTION + RESPONSE_END));
+    }
+
+    @Test(expectedExceptions = SAMLException.class, expectedExceptionsMessageRegExp = SamlExceptionText.PROBLEM_PARSING_XML_OF_THE_RESPONSE)
+    public void shouldRejectMalformedXml() throws SAMLException {
+        prefilter.check(bytes("garbage"));
+    }
+
+    private static byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package com.subbotin.saml.xml;
+
+import org.opensaml.xml.parse.XMLParserException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class XmlParserPoolTest {
+
+    public void shouldParseDocument() throws XMLParserException {
+        XmlParserPool xmlParserPool = new XmlParserPool(2, 0, 64, 100);
+
+        String name = xmlParserPool.parse(toStream("<a xmlns=\"urn:test\"><b/></a>")).getDocumentElement().getNamespaceURI();
+
+        Assert.assertEquals(name, "urn:test");
+        Assert.assertEquals(xmlParserPool.getInUse(), 0);
+        Assert.assertEquals(xmlParserPool.getPeakInUse(), 1);
+    }
+
+    @Test(expectedExceptions = XMLParserException.class)
+    public void shouldRejectDoctype() throws XMLParserException {
+        XmlParserPool xmlParserPool = new XmlParserPool(1, 0, 64, 100);
+
+        xmlParserPool.parse(toStream("<!DOCTYPE a [<!ENTITY x \"x\">]><a>&x;</a>"));
+    }
+
+    @Test(expectedExceptions = XMLParserException.class)
+    public void shouldRejectTooDeepDocument() throws XMLParserException {
+        XmlParserPool xmlParserPool = new XmlParserPool(1, 0, 3, 100);
+
+        xmlParserPool.parse(toStream("<a><b><c><d/></c></b></a>"));
+    }
+
+    public void shouldFailFastWhenExhausted() throws Exception {
+        XmlParserPool xmlParserPool = new XmlParserPool(1, 0, 64, 100);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> slowParse = executor.submit(() -> xmlParserPool.parse(new BlockingInputStream("<a/>", reading, release)));
+            Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            try {
+                xmlParserPool.parse(toStream("<a/>"));
+                Assert.fail("Pool must be exhausted");
+            } catch (XMLParserException e) {
+                Assert.assertEquals(xmlParserPool.getRejected(), 1);
+                Assert.assertEquals(xmlParserPool.getInUse(), 1);
+            }
+
+            release.countDown();
+            slowParse.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(xmlParserPool.getInUse(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static InputStream toStream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class BlockingInputStream extends InputStream {
+        private final InputStream delegate;
+        private final CountDownLatch reading;
+        private final CountDownLatch release;
+
+        BlockingInputStream(String xml, CountDownLatch reading, CountDownLatch release) {
+            this.delegate = toStream(xml);
+            this.reading = reading;
+            this.release = release;
+        }
+
+        @Override
+        public int read() throws IOException {
+            reading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return delegate.read();
+        }
+    }
+}